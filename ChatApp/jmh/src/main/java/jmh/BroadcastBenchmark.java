@@ -0,0 +1,61 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.ClientRegistry;
+import server.MessageRouter;
+import server.OutboundQueue;
+import server.Room;
+
+/**
+ * One message published to a room of 10 to 10,000 members, with every
+ * member's queue then written out the way a writer does, to an
+ * in-memory channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+	@Param({ "10", "100", "1000", "10000" })
+	public int recipients;
+
+	private OutboundQueue[] queues;
+	private Room room;
+	private final MemoryChannel channel = new MemoryChannel();
+
+	@Setup
+	public void setUp() {
+		MessageRouter router = new MessageRouter(new ClientRegistry<OutboundQueue>(recipients));
+		queues = new OutboundQueue[recipients];
+		for (int i = 0; i < recipients; i++) {
+			queues[i] = Queues.create(1024);
+			router.join("user" + i, queues[i]);
+		}
+		room = router.getLobby();
+		for (OutboundQueue queue : queues)
+			channel.drain(queue);
+	}
+
+	@Benchmark
+	public long broadcast() {
+		long bytes = room.publish("user0", "hello everyone, this is a typical chat line");
+		for (OutboundQueue queue : queues)
+			bytes += channel.drain(queue);
+		return bytes;
+	}
+}
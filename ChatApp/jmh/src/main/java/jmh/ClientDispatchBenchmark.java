@@ -0,0 +1,83 @@
+package jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import chatApp.BinaryCodec;
+import chatApp.Protocols;
+
+import server.Frame;
+
+/**
+ * A client reading and dispatching server messages from an in-memory
+ * stream, in the text and the binary framing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientDispatchBenchmark {
+	private static final Protocols[] MIX = {
+		Protocols.BROADCAST, Protocols.BROADCAST, Protocols.BROADCAST, Protocols.BROADCAST,
+		Protocols.BROADCAST, Protocols.PRIVATEMESSAGETARGET, Protocols.PING, Protocols.JOINED };
+
+	@Param({ "text", "binary" })
+	public String framing;
+
+	private ByteArrayInputStream in;
+	private boolean binary;
+
+	@Setup
+	public void setUp() throws IOException {
+		binary = framing.equals("binary");
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < 4096; i++) {
+			Protocols type = MIX[i % MIX.length];
+			String payload = type == Protocols.PING ? "" : type == Protocols.JOINED ? "room" + i
+					: "user" + (i % 100) + ": message number " + i + " with a bit of text";
+			Frame frame = payload.isEmpty() ? Frame.of(type) : Frame.of(type, payload);
+			frame.writeTo(stream, binary);
+		}
+		in = new ByteArrayInputStream(stream.toByteArray());
+	}
+
+	/**
+	 * Reads one message and switches on it as ChatClient.run does.
+	 */
+	@Benchmark
+	public long dispatch() throws IOException {
+		BinaryCodec.Message message = BinaryCodec.readServerMessage(in, binary);
+		if (message == null) {
+			in.reset();
+			message = BinaryCodec.readServerMessage(in, binary);
+		}
+		switch (message.type) {
+		case PING:
+			return 1;
+		case JOINED:
+		case BROADCAST:
+		case PRIVATEMESSAGESENDER:
+		case PRIVATEMESSAGETARGET:
+		case ERROR:
+			return message.payload.length();
+		default:
+			return 0;
+		}
+	}
+}
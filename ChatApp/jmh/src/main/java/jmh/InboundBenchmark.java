@@ -0,0 +1,191 @@
+package jmh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.ClientRegistry;
+import server.InboundLine;
+import server.LineDecoder;
+import server.MessageRouter;
+import server.OutboundQueue;
+import server.Room;
+
+/**
+ * One inbound message, from the bytes read off the socket to the
+ * frames queued for its recipients, comparing the old path, which made
+ * a String of every line and of its target, with the byte path the
+ * server now takes.  Run it with -prof gc: gc.alloc.rate.norm is the
+ * heap bytes per message.
+ *
+ * Lines are decoded from a direct buffer, as the transports read them,
+ * and routed on the calling thread.  Recipients are in-memory outbound
+ * queues that nobody drains, so the frames queued are the only thing
+ * that has to stay allocated; the decode paths show the decoder on its
+ * own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(InboundBenchmark.LINES)
+public class InboundBenchmark {
+	static final int LINES = 1000;
+	private static final int USERS = 100;
+
+	@Param({ "string", "bytes" })
+	public String path;
+
+	private LineDecoder decoder;
+	private ByteBuffer privateLines;
+	private ByteBuffer broadcastLines;
+	private LineDecoder.Handler decode;
+	private LineDecoder.Handler privateMessage;
+	private LineDecoder.Handler broadcast;
+
+	@Setup
+	public void setUp() {
+		ClientRegistry<OutboundQueue> clients = new ClientRegistry<OutboundQueue>(USERS);
+		MessageRouter router = new MessageRouter(clients);
+		for (int i = 0; i < USERS; i++)
+			router.join("user" + i, Queues.create(4));
+		OutboundQueue self = clients.lookup("user0");
+		Room lobby = router.getLobby();
+
+		StringBuilder privates = new StringBuilder();
+		StringBuilder broadcasts = new StringBuilder();
+		for (int i = 0; i < LINES; i++) {
+			privates.append("@user").append(1 + i % (USERS - 1)).append(" are you there?\n");
+			broadcasts.append("message number ").append(i).append('\n');
+		}
+		privateLines = direct(privates.toString());
+		broadcastLines = direct(broadcasts.toString());
+
+		decoder = new LineDecoder(1024);
+		boolean bytes = path.equals("bytes");
+		decode = bytes ? new ViewDecode() : new StringDecode();
+		privateMessage = bytes ? new BytePrivate(router, self) : new StringPrivate(router);
+		broadcast = bytes ? new ByteBroadcast(router, lobby) : new StringBroadcast(router, lobby);
+	}
+
+	private static ByteBuffer direct(String lines) {
+		byte[] bytes = lines.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		return buffer;
+	}
+
+	@Benchmark
+	public void decode() throws IOException {
+		run(privateLines, decode);
+	}
+
+	@Benchmark
+	public void privateMessage() throws IOException {
+		run(privateLines, privateMessage);
+	}
+
+	@Benchmark
+	public void broadcast() throws IOException {
+		run(broadcastLines, broadcast);
+	}
+
+	private void run(ByteBuffer lines, LineDecoder.Handler handler) throws IOException {
+		lines.rewind();
+		decoder.decode(lines, handler);
+	}
+
+	private static final class StringDecode implements LineDecoder.Handler {
+		int length;
+
+		public void line(InboundLine line) {
+			length += line.toString().length();
+		}
+	}
+
+	private static final class ViewDecode implements LineDecoder.Handler {
+		int length;
+
+		public void line(InboundLine line) {
+			length += line.length();
+		}
+	}
+
+	/**
+	 * The private message as Session.chat used to handle it.
+	 */
+	private static final class StringPrivate implements LineDecoder.Handler {
+		private final MessageRouter router;
+
+		StringPrivate(MessageRouter router) {
+			this.router = router;
+		}
+
+		public void line(InboundLine line) {
+			String text = line.toString();
+			router.privateMessage("user0", MessageRouter.privateMessageTarget(text), text);
+		}
+	}
+
+	private static final class BytePrivate implements LineDecoder.Handler {
+		private final MessageRouter router;
+		private final OutboundQueue self;
+		private final byte[] from = "user0: ".getBytes(StandardCharsets.UTF_8);
+		private final ClientRegistry.Key target = new ClientRegistry.Key();
+
+		BytePrivate(MessageRouter router, OutboundQueue self) {
+			this.router = router;
+			this.self = self;
+		}
+
+		public void line(InboundLine line) {
+			line.copyTo(1, line.indexOf((byte) ' ', 1), target);
+			router.privateMessage("user0", from, self, line, target);
+		}
+	}
+
+	private static final class StringBroadcast implements LineDecoder.Handler {
+		private final MessageRouter router;
+		private final Room room;
+
+		StringBroadcast(MessageRouter router, Room room) {
+			this.router = router;
+			this.room = room;
+		}
+
+		public void line(InboundLine line) {
+			router.broadcast(room, "user0", line.toString());
+		}
+	}
+
+	private static final class ByteBroadcast implements LineDecoder.Handler {
+		private final MessageRouter router;
+		private final Room room;
+		private final byte[] from = "user0: ".getBytes(StandardCharsets.UTF_8);
+
+		ByteBroadcast(MessageRouter router, Room room) {
+			this.router = router;
+			this.room = room;
+		}
+
+		public void line(InboundLine line) {
+			router.broadcast(room, from, line);
+		}
+	}
+}
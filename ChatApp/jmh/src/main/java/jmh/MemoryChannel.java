@@ -0,0 +1,61 @@
+package jmh;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import server.Frame;
+import server.OutboundQueue;
+
+/**
+ * Stands in for a client's socket: accepts every byte at once and only
+ * counts them.
+ */
+final class MemoryChannel implements GatheringByteChannel {
+	private final Frame[] frames = new Frame[64];
+	private final ByteBuffer[] batch = new ByteBuffer[64];
+	long written;
+
+	public int write(ByteBuffer src) {
+		int n = src.remaining();
+		src.position(src.limit());
+		written += n;
+		return n;
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length) {
+		long n = 0;
+		for (int i = offset; i < offset + length; i++)
+			n += write(srcs[i]);
+		return n;
+	}
+
+	public long write(ByteBuffer[] srcs) {
+		return write(srcs, 0, srcs.length);
+	}
+
+	public boolean isOpen() {
+		return true;
+	}
+
+	public void close() {
+	}
+
+	/**
+	 * Drains a queue the way the server's writers do: a batch of frames
+	 * per gathering write.
+	 *
+	 * @return the bytes written
+	 */
+	long drain(OutboundQueue queue) {
+		long bytes = 0;
+		int n;
+		while ((n = queue.drainTo(frames, 0)) > 0) {
+			for (int i = 0; i < n; i++) {
+				batch[i] = frames[i].buffer(false);
+				frames[i] = null;
+			}
+			bytes += write(batch, 0, n);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,101 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.ClientRegistry;
+import server.MessageRouter;
+import server.OutboundQueue;
+
+/**
+ * 1 to 8 threads claiming and releasing screen names from a small
+ * shared pool, so they keep colliding.  Each operation claims a name
+ * and, if it was free, leaves again at once, as a client that connects
+ * and quits would.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameClaimBenchmark {
+	private static final int POOL = 64;
+
+	@State(Scope.Benchmark)
+	public static class Names {
+		MessageRouter router;
+		String[] names;
+
+		@Setup
+		public void setUp() {
+			router = new MessageRouter(new ClientRegistry<OutboundQueue>());
+			names = new String[POOL];
+			for (int i = 0; i < POOL; i++)
+				names[i] = "name" + i;
+		}
+	}
+
+	/**
+	 * One thread's connections, one per name in the pool.
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+		OutboundQueue[] queues;
+		int next;
+
+		@Setup
+		public void setUp() {
+			queues = new OutboundQueue[POOL];
+			for (int i = 0; i < POOL; i++)
+				queues[i] = Queues.create(64);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public long threads1(Names names, Client client) {
+		return claim(names, client);
+	}
+
+	@Benchmark
+	@Threads(2)
+	public long threads2(Names names, Client client) {
+		return claim(names, client);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public long threads4(Names names, Client client) {
+		return claim(names, client);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public long threads8(Names names, Client client) {
+		return claim(names, client);
+	}
+
+	private static long claim(Names names, Client client) {
+		int i = client.next++ & (POOL - 1);
+		OutboundQueue queue = client.queues[i];
+		MessageRouter router = names.router;
+		if (!router.join(names.names[i], queue))
+			return 0;
+		router.leave(names.names[i], queue, router.getLobby());
+		long greeted = 0;
+		while (queue.poll() != null)
+			greeted++;
+		return greeted;
+	}
+}
@@ -0,0 +1,73 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.ClientRegistry;
+import server.MessageRouter;
+import server.OutboundQueue;
+
+/**
+ * Parsing an "@name text" line and routing it among 10 to 10,000
+ * connected users, then writing out the sender's and the target's
+ * queues.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrivateMessageBenchmark {
+	@Param({ "10", "100", "1000", "10000" })
+	public int users;
+
+	private MessageRouter router;
+	private OutboundQueue[] queues;
+	private String[] names;
+	private String[] lines;
+	private int next;
+	private final MemoryChannel channel = new MemoryChannel();
+
+	@Setup
+	public void setUp() {
+		router = new MessageRouter(new ClientRegistry<OutboundQueue>(users));
+		queues = new OutboundQueue[users];
+		names = new String[users];
+		for (int i = 0; i < users; i++) {
+			names[i] = "user" + i;
+			queues[i] = Queues.create(1024);
+			router.join(names[i], queues[i]);
+			channel.drain(queues[i]);
+		}
+		// A fixed, spread out sequence of targets, one in eight unknown.
+		lines = new String[1024];
+		for (int i = 0; i < lines.length; i++) {
+			String target = i % 8 == 7 ? "nobody" + i : names[(i * 7919) % users];
+			lines[i] = "@" + target + " are you around?";
+		}
+	}
+
+	@Benchmark
+	public long privateMessage() {
+		int i = next++ & (lines.length - 1);
+		String line = lines[i];
+		String sender = names[i % names.length];
+		String target = MessageRouter.privateMessageTarget(line);
+		if (target == null || !router.privateMessage(sender, target, line))
+			return 0;
+		long bytes = channel.drain(queues[i % queues.length]);
+		return bytes + channel.drain(router.getClients().lookup(target));
+	}
+}
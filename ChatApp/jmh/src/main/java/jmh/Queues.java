@@ -0,0 +1,24 @@
+package jmh;
+
+import server.OutboundQueue;
+import server.SlowConsumerPolicy;
+
+final class Queues {
+	private static final OutboundQueue.Listener IGNORE = new OutboundQueue.Listener() {
+		public void onReady() {
+		}
+
+		public void onOverflow() {
+		}
+	};
+
+	private Queues() {
+	}
+
+	/**
+	 * @return an in-memory outbound queue that nobody is told about
+	 */
+	static OutboundQueue create(int capacity) {
+		return new OutboundQueue(capacity, SlowConsumerPolicy.DROP_OLDEST, IGNORE);
+	}
+}
@@ -0,0 +1,78 @@
+package benchmark;
+
+import chatApp.Protocols;
+
+import server.AllocationStats;
+import server.ClientRegistry;
+import server.Frame;
+import server.MessageRouter;
+import server.OutboundQueue;
+import server.Room;
+import server.SlowConsumerPolicy;
+
+/**
+ * Shows the heap cost of one broadcast per delivered message, comparing
+ * the old fan-out, which built and encoded the line again for every
+ * recipient, with the encode-once frames a Room publishes.
+ *
+ * Recipients are in-memory outbound queues that nobody drains, so the
+ * numbers cover only the fan-out itself.
+ *
+ * Usage: BroadcastAllocationBenchmark [messages]
+ */
+public class BroadcastAllocationBenchmark {
+	private static final int[] RECIPIENTS = { 10, 100, 1000, 10000 };
+
+	private static final OutboundQueue.Listener IGNORE = new OutboundQueue.Listener() {
+		public void onReady() {
+		}
+
+		public void onOverflow() {
+		}
+	};
+
+	public static void main(String[] args) {
+		// Before AllocationStats is loaded, so Room records what it costs.
+		System.setProperty("chat.allocation.stats", "true");
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		System.out.println("path,recipients,bytes/delivery");
+		for (int recipients : RECIPIENTS) {
+			ClientRegistry<OutboundQueue> clients = new ClientRegistry<OutboundQueue>(recipients);
+			MessageRouter router = new MessageRouter(clients);
+			for (int i = 0; i < recipients; i++)
+				router.join("user" + i, new OutboundQueue(4, SlowConsumerPolicy.DROP_OLDEST, IGNORE));
+			int rounds = Math.max(10, messages / recipients);
+
+			// Warm up both paths before measuring.
+			perRecipient(clients, rounds);
+			encodeOnce(router.getLobby(), rounds);
+
+			System.out.printf("per-recipient,%d,%.1f%n", recipients, perRecipient(clients, rounds));
+			System.out.printf("encode-once,%d,%.1f%n", recipients, encodeOnce(router.getLobby(), rounds));
+		}
+	}
+
+	/**
+	 * The fan-out as Handler.run used to do it.
+	 */
+	private static double perRecipient(ClientRegistry<OutboundQueue> clients, int rounds) {
+		long before = AllocationStats.currentThreadAllocatedBytes();
+		long deliveries = 0;
+		for (int r = 0; r < rounds; r++) {
+			String input = "message number " + r;
+			for (OutboundQueue client : clients.clients()) {
+				client.offer(Frame.of(Protocols.BROADCAST, "sender" + ": " + input));
+				deliveries++;
+			}
+		}
+		return (double) (AllocationStats.currentThreadAllocatedBytes() - before) / deliveries;
+	}
+
+	private static double encodeOnce(Room room, int rounds) {
+		AllocationStats.reset();
+		for (int r = 0; r < rounds; r++)
+			room.publish("sender", "message number " + r);
+		return AllocationStats.bytesPerDelivery();
+	}
+}
@@ -0,0 +1,189 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import chatApp.Driver;
+
+/**
+ * Opens a large number of idle, named connections to a ChatServer and
+ * reports how many the server held on to and what each one cost it,
+ * once with platform threads and once with virtual threads.
+ *
+ * The server runs as a child JVM so its resident memory and thread
+ * count can be read from /proc (Linux only).  Heartbeats are turned off
+ * there so idle clients are not reaped while the test runs.  Ephemeral
+ * ports run out at about 28k connections per source address, so the
+ * clients bind to 127.0.0.1, 127.0.0.2, ... in turn.
+ *
+ * Usage: IdleConnectionLoadTest [connections ...]   (default 10000 100000)
+ */
+public class IdleConnectionLoadTest {
+	private static final int PORT = Driver.getPort();
+	private static final int PER_SOURCE_ADDRESS = 20000;
+	private static final int IN_FLIGHT = 500;
+
+	public static void main(String[] args) throws Exception {
+		List<Integer> counts = new ArrayList<Integer>();
+		for (String arg : args)
+			counts.add(Integer.parseInt(arg));
+		if (counts.isEmpty()) {
+			counts.add(10000);
+			counts.add(100000);
+		}
+
+		System.out.println("mode,requested,connected,server threads,server RSS MB,KB/connection");
+		for (int count : counts) {
+			run("platform", count);
+			run("virtual", count);
+		}
+	}
+
+	private static void run(String mode, int count) throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-Dchat.heartbeat.interval=0");
+		command.add("server.ChatServer");
+		if (mode.equals("virtual"))
+			command.add("--virtual");
+		Process server = new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+
+		List<SocketChannel> channels = new ArrayList<SocketChannel>();
+		try {
+			waitForPort();
+			long baseline = residentKilobytes(server.pid());
+			int connected = connect(count, channels);
+			// Let the server settle before sampling it.
+			Thread.sleep(2000);
+			long rss = residentKilobytes(server.pid());
+			int threads = threadCount(server.pid());
+			System.out.printf("%s,%d,%d,%d,%d,%.1f%n", mode, count, connected, threads, rss / 1024,
+					connected == 0 ? 0.0 : (double) (rss - baseline) / connected);
+		} finally {
+			for (SocketChannel channel : channels) {
+				try {
+					channel.close();
+				} catch (IOException ignored) { }
+			}
+			server.destroy();
+			server.waitFor();
+		}
+	}
+
+	private static void waitForPort() throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			try {
+				SocketChannel.open(new InetSocketAddress("localhost", PORT)).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IllegalStateException("server did not start");
+	}
+
+	/**
+	 * Connects and names clients, keeping at most IN_FLIGHT handshakes
+	 * outstanding, and stops early once the server stops accepting.
+	 *
+	 * @return the number of clients that received NAMEACCEPTED
+	 */
+	private static int connect(int count, List<SocketChannel> channels) throws IOException {
+		Selector selector = Selector.open();
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		int started = 0;
+		int accepted = 0;
+		int failed = 0;
+		int pending = 0;
+		long deadline = System.currentTimeMillis() + 600000;
+
+		while ((started < count || pending > 0) && failed < 100 && System.currentTimeMillis() < deadline) {
+			while (started < count && pending < IN_FLIGHT) {
+				String source = "127.0.0." + (1 + started / PER_SOURCE_ADDRESS);
+				SocketChannel channel = SocketChannel.open();
+				try {
+					channel.bind(new InetSocketAddress(source, 0));
+					channel.connect(new InetSocketAddress("127.0.0.1", PORT));
+					channel.configureBlocking(false);
+					channel.write(ByteBuffer.wrap(("idle" + started + "\n").getBytes(StandardCharsets.UTF_8)));
+					channel.register(selector, SelectionKey.OP_READ, new StringBuilder());
+					channels.add(channel);
+					pending++;
+				} catch (IOException e) {
+					channel.close();
+					failed++;
+				}
+				started++;
+			}
+
+			if (selector.select(5000) == 0 && pending > 0) {
+				// The server has stopped answering.
+				break;
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				SocketChannel channel = (SocketChannel) key.channel();
+				StringBuilder seen = (StringBuilder) key.attachment();
+				buffer.clear();
+				int n;
+				try {
+					n = channel.read(buffer);
+				} catch (IOException e) {
+					n = -1;
+				}
+				if (n < 0) {
+					key.cancel();
+					pending--;
+					failed++;
+					continue;
+				}
+				seen.append(new String(buffer.array(), 0, n, StandardCharsets.UTF_8));
+				if (seen.indexOf("NAMEACCEPTED") >= 0) {
+					// Stay connected, but stop watching.
+					key.cancel();
+					pending--;
+					accepted++;
+				}
+			}
+		}
+		selector.close();
+		return accepted;
+	}
+
+	private static long residentKilobytes(long pid) throws IOException {
+		return Long.parseLong(status(pid, "VmRSS:").replace("kB", "").trim());
+	}
+
+	private static int threadCount(long pid) throws IOException {
+		return Integer.parseInt(status(pid, "Threads:").trim());
+	}
+
+	private static String status(long pid, String field) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				if (line.startsWith(field))
+					return line.substring(field.length());
+		} finally {
+			in.close();
+		}
+		throw new IOException(field + " not found for " + pid);
+	}
+}
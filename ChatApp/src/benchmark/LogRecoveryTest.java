@@ -0,0 +1,179 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import store.FsyncPolicy;
+import store.LogRecord;
+import store.MessageLog;
+
+/**
+ * Checks that the message log survives a crash.  For each kind of
+ * damage a fresh log is filled across a few segments and closed, the
+ * tail of its last segment is damaged the way a crash could leave it,
+ * and the log is opened again.  Every record before the damage must
+ * come back as it was written, and new messages must be appended after
+ * them and still be there after another reopen.
+ *
+ * Every check prints a PASS or FAIL line with what came back; the exit
+ * status is 1 if any check failed.
+ *
+ * Usage: LogRecoveryTest [records]   (default 3000, about three
+ * segments)
+ */
+public class LogRecoveryTest {
+	private static final int SEGMENT_BYTES = 1024 * 1024;
+	private static final int APPENDED = 100;
+	private static final char[] FILLER = new char[1000];
+
+	static {
+		Arrays.fill(FILLER, 'x');
+	}
+
+	private static int failures;
+
+	public static void main(String[] args) throws Exception {
+		int records = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+
+		recover("clean close", records, 0);
+		recover("garbled last record", records, 1);
+		recover("file cut inside the last record", records, 1);
+		recover("garbage after the last record", records, 0);
+		recover("length of the last record zeroed", records, 1);
+
+		System.out.println(failures == 0 ? "All checks passed." : failures + " checks failed.");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static String text(long offset) {
+		return "message " + offset + " " + new String(FILLER, 0, (int) (offset * 7 % FILLER.length));
+	}
+
+	/**
+	 * @param lost how many records at the end the damage takes away
+	 */
+	private static void recover(String damage, int records, int lost) throws IOException, InterruptedException {
+		File dir = Files.createTempDirectory("chat-log").toFile();
+		try {
+			MessageLog log = open(dir);
+			append(log, 0, records);
+			log.close();
+
+			File last = lastSegment(dir);
+			check(damage, "fills more than one segment", dir.list().length > 2 ? "yes" : "no", "yes");
+			damage(damage, last);
+
+			log = open(dir);
+			int kept = records - lost;
+			check(damage, "recovers the intact records", String.valueOf(log.nextOffset()), String.valueOf(kept));
+			check(damage, "reads them back", verify(log, 0, kept), "ok");
+
+			append(log, kept, APPENDED);
+			log.close();
+			log = open(dir);
+			check(damage, "appends after them", String.valueOf(log.nextOffset()), String.valueOf(kept + APPENDED));
+			check(damage, "reads the appended records back", verify(log, 0, kept + APPENDED), "ok");
+			log.close();
+		} finally {
+			for (File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	private static MessageLog open(File dir) throws IOException {
+		return MessageLog.open(dir, SEGMENT_BYTES, FsyncPolicy.NONE, 1000, 2 * APPENDED);
+	}
+
+	/**
+	 * Appends count messages and waits for each batch to be written, so
+	 * none are dropped for a full queue.
+	 */
+	private static void append(MessageLog log, long from, int count) throws InterruptedException {
+		for (long offset = from; offset < from + count; offset++) {
+			if (!log.append("lobby", "user" + offset % 10, text(offset)))
+				throw new IllegalStateException("log dropped message " + offset);
+			while (log.nextOffset() < offset + 1 - APPENDED)
+				Thread.sleep(1);
+		}
+		while (log.nextOffset() < from + count)
+			Thread.sleep(1);
+	}
+
+	/**
+	 * @return "ok", or the first record that is missing or different
+	 */
+	private static String verify(MessageLog log, long from, int count) {
+		List<LogRecord> read = log.read(from, count + 1);
+		if (read.size() != count)
+			return read.size() + " records";
+		for (LogRecord record : read) {
+			long offset = record.getOffset();
+			if (!record.getSender().equals("user" + offset % 10) || !record.getText().equals(text(offset)))
+				return "record " + offset + " differs";
+		}
+		return "ok";
+	}
+
+	private static File lastSegment(File dir) {
+		String[] names = dir.list();
+		Arrays.sort(names);
+		String last = null;
+		for (String name : names)
+			if (name.endsWith(".log"))
+				last = name;
+		return new File(dir, last);
+	}
+
+	/**
+	 * Damages the last record of a segment, or what follows it.  Records
+	 * are an int length and an int checksum, then the body; the rest of
+	 * the file is zero.
+	 */
+	private static void damage(String damage, File segment) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			long pos = 0;
+			long lastRecord = -1;
+			while (pos + 8 <= file.length()) {
+				file.seek(pos);
+				int length = file.readInt();
+				if (length <= 0)
+					break;
+				lastRecord = pos;
+				pos += 8 + length;
+			}
+			if (lastRecord < 0)
+				throw new IllegalStateException("no records in " + segment);
+
+			if (damage.equals("garbled last record")) {
+				file.seek(pos - 1);
+				int b = file.read();
+				file.seek(pos - 1);
+				file.write(b ^ 0xFF);
+			} else if (damage.equals("file cut inside the last record")) {
+				file.setLength(pos - 3);
+			} else if (damage.equals("garbage after the last record")) {
+				file.seek(pos);
+				file.write(new byte[] { 0, 0, 0, 0, 1, 2, 3, 4, (byte) 0xFF, 0x7F, 5 });
+			} else if (damage.equals("length of the last record zeroed")) {
+				file.seek(lastRecord);
+				file.writeInt(0);
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void check(String damage, String name, String got, String want) {
+		boolean pass = got.equals(want);
+		if (!pass)
+			failures++;
+		System.out.println((pass ? "PASS " : "FAIL ") + damage + ": " + name + (pass ? "" : "; got \"" + got
+				+ "\", wanted \"" + want + "\""));
+	}
+}
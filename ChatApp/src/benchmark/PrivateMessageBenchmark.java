@@ -0,0 +1,92 @@
+package benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import chatApp.Protocols;
+
+import server.ClientRegistry;
+import server.Frame;
+import server.MessageRouter;
+import server.OutboundQueue;
+import server.SlowConsumerPolicy;
+
+/**
+ * Measures private message throughput as the number of connected users
+ * grows.  MessageRouter.privateMessage should stay flat, while the old
+ * Handler.run approach of scanning every client for the sender and the
+ * target slows down linearly.
+ *
+ * Recipients are in-memory outbound queues, so no sockets are involved.
+ *
+ * Usage: PrivateMessageBenchmark [millis per run]
+ */
+public class PrivateMessageBenchmark {
+	private static final int[] USERS = { 10, 100, 1000, 10000, 50000 };
+
+	private static final OutboundQueue.Listener IGNORE = new OutboundQueue.Listener() {
+		public void onReady() {
+		}
+
+		public void onOverflow() {
+		}
+	};
+
+	public static void main(String[] args) {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+
+		System.out.println("users,direct DMs/s,scanning DMs/s");
+		for (int users : USERS) {
+			ClientRegistry<OutboundQueue> clients = new ClientRegistry<OutboundQueue>(users);
+			String[] names = new String[users];
+			for (int i = 0; i < users; i++) {
+				names[i] = "user" + i;
+				clients.claim(names[i], new OutboundQueue(4, SlowConsumerPolicy.DROP_OLDEST, IGNORE));
+			}
+			MessageRouter router = new MessageRouter(clients);
+
+			// Warm up, then measure.
+			direct(router, names, millis / 2);
+			scanning(clients, names, millis / 2);
+			System.out.println(users + "," + direct(router, names, millis) + "," + scanning(clients, names, millis));
+		}
+	}
+
+	private static long direct(MessageRouter router, String[] names, long millis) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long count = 0;
+		long end = System.nanoTime() + millis * 1000000L;
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < 100; i++) {
+				String sender = names[random.nextInt(names.length)];
+				String target = names[random.nextInt(names.length)];
+				router.privateMessage(sender, target, "@" + target + " hi");
+			}
+			count += 100;
+		}
+		return count * 1000 / millis;
+	}
+
+	/**
+	 * The private message loop as Handler.run used to do it.
+	 */
+	private static long scanning(ClientRegistry<OutboundQueue> clients, String[] names, long millis) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long count = 0;
+		long end = System.nanoTime() + millis * 1000000L;
+		while (System.nanoTime() < end) {
+			String sender = names[random.nextInt(names.length)];
+			String target = names[random.nextInt(names.length)];
+			String input = "@" + target + " hi";
+			if (!clients.contains(target))
+				continue;
+			for (String ckey : clients.names()) {
+				if (ckey.equals(sender))
+					clients.lookup(ckey).offer(Frame.of(Protocols.PRIVATEMESSAGESENDER, sender + ": " + input));
+				else if (ckey.equals(target))
+					clients.lookup(ckey).offer(Frame.of(Protocols.PRIVATEMESSAGETARGET, sender + ": " + input));
+			}
+			count++;
+		}
+		return count * 1000 / millis;
+	}
+}
@@ -0,0 +1,159 @@
+package benchmark;
+
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import server.ClientRegistry;
+
+/**
+ * Compares ClientRegistry with the synchronized Hashtable that
+ * ChatServer used to keep its clients in.
+ *
+ * A fixed population of simulated clients is registered first.  Then
+ * several threads hammer the registry with the same mix a busy server
+ * produces: private-message target lookups, broadcasts that walk every
+ * client, and clients leaving and rejoining under a new name.  The
+ * Hashtable side takes the global lock exactly where the old
+ * Handler.run did.
+ *
+ * Usage: RegistryContentionBenchmark [threads] [seconds]
+ */
+public class RegistryContentionBenchmark {
+	private static final int[] POPULATIONS = { 1000, 10000 };
+
+	/**
+	 * The operations both registries have to support.
+	 */
+	private interface Registry {
+		boolean claim(String name, Object client);
+		void release(String name, Object client);
+		boolean exists(String name);
+		int broadcast();
+	}
+
+	private static class LockedHashtable implements Registry {
+		private final Hashtable<String, Object> clients = new Hashtable<String, Object>();
+
+		public boolean claim(String name, Object client) {
+			synchronized (clients) {
+				if (clients.containsKey(name))
+					return false;
+				clients.put(name, client);
+				return true;
+			}
+		}
+
+		public void release(String name, Object client) {
+			synchronized (clients) {
+				clients.remove(name);
+			}
+		}
+
+		public boolean exists(String name) {
+			synchronized (clients) {
+				return clients.containsKey(name);
+			}
+		}
+
+		public int broadcast() {
+			int delivered = 0;
+			synchronized (clients) {
+				for (String key : clients.keySet())
+					if (clients.get(key) != null)
+						delivered++;
+			}
+			return delivered;
+		}
+	}
+
+	private static class Concurrent implements Registry {
+		private final ClientRegistry<Object> clients = new ClientRegistry<Object>();
+
+		public boolean claim(String name, Object client) {
+			return clients.claim(name, client);
+		}
+
+		public void release(String name, Object client) {
+			clients.release(name, client);
+		}
+
+		public boolean exists(String name) {
+			return clients.lookup(name) != null;
+		}
+
+		public int broadcast() {
+			int delivered = 0;
+			for (Object client : clients.clients())
+				if (client != null)
+					delivered++;
+			return delivered;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		System.out.println("registry,clients,threads,lookups/s,broadcasts/s,churn/s");
+		for (int population : POPULATIONS) {
+			run("hashtable", new LockedHashtable(), population, threads, seconds);
+			run("concurrent", new Concurrent(), population, threads, seconds);
+		}
+	}
+
+	private static void run(String label, final Registry registry, final int population, int threads, int seconds)
+			throws InterruptedException {
+		for (int i = 0; i < population; i++)
+			registry.claim("user" + i, new Object());
+
+		final LongAdder lookups = new LongAdder();
+		final LongAdder broadcasts = new LongAdder();
+		final LongAdder churn = new LongAdder();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					Object self = new Object();
+					int generation = 0;
+					String name = "worker" + id + "-" + generation;
+					registry.claim(name, self);
+					while (running.get()) {
+						int op = random.nextInt(100);
+						if (op < 90) {
+							// @target existence check
+							if (registry.exists("user" + random.nextInt(population)))
+								lookups.increment();
+						} else if (op < 99) {
+							// a client leaves and a new one registers
+							registry.release(name, self);
+							name = "worker" + id + "-" + (++generation);
+							registry.claim(name, self);
+							churn.increment();
+						} else {
+							registry.broadcast();
+							broadcasts.increment();
+						}
+					}
+					registry.release(name, self);
+					done.countDown();
+				}
+			});
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		Thread.sleep(seconds * 1000L);
+		running.set(false);
+		done.await();
+
+		System.out.println(label + "," + population + "," + threads + ","
+				+ lookups.sum() / seconds + "," + broadcasts.sum() / seconds + "," + churn.sum() / seconds);
+	}
+}
@@ -0,0 +1,146 @@
+package benchmark;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import store.FsyncPolicy;
+import store.MessageLog;
+import store.SearchIndex;
+
+/**
+ * Measures SearchIndex on a large log: how fast it indexes, how big the
+ * index gets next to the log, and how long queries take.  The log is
+ * filled with generated chat in a few rooms, with word frequencies
+ * skewed the way real text is, so there are very common words, rare
+ * words and everything between.  A log already in dir is topped up
+ * rather than rewritten, so the slow part only has to run once.
+ *
+ * Usage: SearchBenchmark dir [messages] [queries per kind]
+ */
+public class SearchBenchmark {
+	private static final int VOCABULARY = 50000;
+	private static final String[] SYLLABLES = { "ka", "lo", "mi", "ne", "ru", "sa", "to", "vi", "ze", "po", "da",
+			"fe", "gu", "hi", "jo", "be" };
+	private static final String[] USERS = new String[1000];
+	private static final String[] ROOMS = { "lobby", "dev", "ops", "random", "music", "games", "news", "help" };
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: SearchBenchmark dir [messages] [queries per kind]");
+			return;
+		}
+		File dir = new File(args[0]);
+		long messages = args.length > 1 ? Long.parseLong(args[1]) : 10000000;
+		int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		for (int i = 0; i < USERS.length; i++)
+			USERS[i] = "user" + i;
+
+		MessageLog log = MessageLog.open(dir, 64 << 20, FsyncPolicy.NONE, 1000, 65536);
+		SearchIndex index = SearchIndex.open(log, new File(dir, "search"), 16384, 1000, 8, 1L << 30, 20);
+		Random random = new Random(42);
+
+		long start = System.nanoTime();
+		long have = log.nextOffset();
+		for (long i = have; i < messages; i++) {
+			String text = sentence(random);
+			String room = ROOMS[random.nextInt(ROOMS.length)];
+			while (!log.append(room, USERS[random.nextInt(USERS.length)], text))
+				Thread.sleep(1);
+		}
+		while (index.indexedOffset() < messages)
+			Thread.sleep(100);
+		long seconds = Math.max(1, (System.nanoTime() - start) / 1000000000L);
+		if (messages > have)
+			System.out.println("Logged and indexed " + (messages - have) + " messages in " + seconds + " s ("
+					+ (messages - have) / seconds + " messages/s)");
+		System.out.println("Log " + size(dir, false) / (1 << 20) + " MB, index " + size(new File(dir, "search"), true)
+				/ (1 << 20) + " MB in " + index.segmentCount() + " segments");
+
+		System.out.println("query,median us,p99 us,results");
+		run(index, "common word", queries, random, new Maker() {
+			public String make(Random random) {
+				return word(random.nextInt(10));
+			}
+		});
+		run(index, "rare word", queries, random, new Maker() {
+			public String make(Random random) {
+				return word(VOCABULARY - 1 - random.nextInt(VOCABULARY / 2));
+			}
+		});
+		run(index, "common AND rare", queries, random, new Maker() {
+			public String make(Random random) {
+				return word(random.nextInt(10)) + " " + word(VOCABULARY - 1 - random.nextInt(VOCABULARY / 2));
+			}
+		});
+		run(index, "two mid words", queries, random, new Maker() {
+			public String make(Random random) {
+				return word(100 + random.nextInt(900)) + " " + word(100 + random.nextInt(900));
+			}
+		});
+		run(index, "from: in:", queries, random, new Maker() {
+			public String make(Random random) {
+				return "from:" + USERS[random.nextInt(USERS.length)] + " in:" + ROOMS[random.nextInt(ROOMS.length)];
+			}
+		});
+		run(index, "deep page", queries, random, new Maker() {
+			public String make(Random random) {
+				return word(random.nextInt(10)) + " page:" + (messages / 2);
+			}
+		});
+
+		index.close();
+		log.close();
+	}
+
+	private interface Maker {
+		String make(Random random);
+	}
+
+	private static void run(SearchIndex index, String name, int queries, Random random, Maker maker) {
+		long[] micros = new long[queries];
+		long results = 0;
+		for (int i = 0; i < queries; i++) {
+			SearchIndex.Query query = SearchIndex.Query.parse(USERS[0], Long.MIN_VALUE, maker.make(random));
+			long start = System.nanoTime();
+			results += index.search(query).getResults().size();
+			micros[i] = (System.nanoTime() - start) / 1000;
+		}
+		Arrays.sort(micros);
+		System.out.println(name + "," + micros[queries / 2] + "," + micros[queries * 99 / 100] + ","
+				+ results / queries);
+	}
+
+	/**
+	 * A chat line of 4 to 15 words, drawn so that word i is about i
+	 * times rarer than word 1.
+	 */
+	private static String sentence(Random random) {
+		int words = 4 + random.nextInt(12);
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0)
+				s.append(' ');
+			s.append(word((int) Math.pow(VOCABULARY, random.nextDouble()) - 1));
+		}
+		return s.toString();
+	}
+
+	private static String word(int n) {
+		StringBuilder s = new StringBuilder();
+		do {
+			s.append(SYLLABLES[n % SYLLABLES.length]);
+			n /= SYLLABLES.length;
+		} while (n > 0);
+		return s.toString();
+	}
+
+	private static long size(File dir, boolean all) {
+		long total = 0;
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files)
+			if (file.isFile() && (all || file.getName().endsWith(".log")))
+				total += file.length();
+		return total;
+	}
+}
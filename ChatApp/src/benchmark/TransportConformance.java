@@ -0,0 +1,318 @@
+package benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import chatApp.BinaryCodec;
+import chatApp.Driver;
+import chatApp.Protocols;
+
+/**
+ * Runs the same protocol checks against every server transport, so
+ * a client cannot tell them apart, and then puts each under the same
+ * load with client.LoadGenerator to compare their throughput.
+ *
+ * Each transport gets a fresh server in a child JVM, started with
+ * "--transport=name", a one second heartbeat and no other settings.
+ * Every check prints a PASS or FAIL line with what came back; the exit
+ * status is 1 if any check failed.  Every -Dload.* property given to
+ * this program is passed on to the load generator, whose summary is
+ * printed with the transport in front.
+ *
+ * Usage: TransportConformance [transport ...]   (default blocking
+ * virtual nio)
+ *
+ * -Dconformance.load=false: only run the checks
+ */
+public class TransportConformance {
+	private static final int PORT = Driver.getPort();
+	private static final int QUIET_MILLIS = 300;
+	private static final int WAIT_MILLIS = 3000;
+	// Heartbeats are shortened so the PING check does not take long.
+	private static final long HEARTBEAT_MILLIS = 1000;
+
+	private static int failures;
+	private static String loadHeader = "";
+
+	public static void main(String[] args) throws Exception {
+		List<String> transports = Arrays.asList(args);
+		if (transports.isEmpty())
+			transports = Arrays.asList("blocking", "virtual", "nio");
+		boolean load = Boolean.parseBoolean(System.getProperty("conformance.load", "true"));
+
+		List<String> rows = new ArrayList<String>();
+		for (String transport : transports) {
+			Process server = start(transport);
+			try {
+				waitForPort();
+				System.out.println("--- " + transport);
+				conform(transport);
+				if (load)
+					rows.add(transport + "," + load());
+			} finally {
+				server.destroy();
+				server.waitFor();
+			}
+		}
+
+		if (load) {
+			System.out.println("transport," + loadHeader);
+			for (String row : rows)
+				System.out.println(row);
+		}
+		System.out.println(failures == 0 ? "All checks passed." : failures + " checks failed.");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static String java() {
+		return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+	}
+
+	private static Process start(String transport) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(java());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("server.ServerCore");
+		command.add("--transport=" + transport);
+		command.add("--port=" + PORT);
+		command.add("--heartbeat.interval=" + HEARTBEAT_MILLIS);
+		command.add("--heartbeat.timeout=" + HEARTBEAT_MILLIS);
+		return new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+	}
+
+	private static void waitForPort() throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket("localhost", PORT).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IllegalStateException("server did not start");
+	}
+
+	private static void check(String transport, String name, String got, String want) {
+		boolean pass = got.equals(want);
+		if (!pass)
+			failures++;
+		System.out.println((pass ? "PASS " : "FAIL ") + transport + ": " + name + (pass ? "" : "; got \"" + got
+				+ "\", wanted \"" + want + "\""));
+	}
+
+	/**
+	 * Walks a few clients through the protocol.  Every client reads what
+	 * it is sent, so each check starts from an empty stream.
+	 */
+	private static void conform(String t) throws IOException, InterruptedException {
+		Client unnamed = new Client();
+		check(t, "asks for a name", unnamed.read(), "SUBMITNAME");
+		unnamed.send("bad name");
+		check(t, "refuses a name with a space", unnamed.read() + " | " + unnamed.read(),
+				"ERROR ERROR: Screen names cannot be empty or contain spaces. | SUBMITNAME");
+		char[] tooLong = new char[64 * 1024];
+		Arrays.fill(tooLong, 'x');
+		unnamed.send(new String(tooLong));
+		check(t, "drops a line that is too long", unnamed.read(), "(closed)");
+
+		Client alice = new Client();
+		alice.read();
+		alice.send("alice");
+		check(t, "accepts a name", alice.read(), "NAMEACCEPTED");
+
+		Client bob = new Client();
+		bob.read();
+		bob.send("alice");
+		check(t, "refuses a taken name", bob.read() + " | " + bob.read(),
+				"ERROR ERROR: The name alice is already in use. | SUBMITNAME");
+		bob.send("bob");
+		check(t, "accepts another name", bob.read(), "NAMEACCEPTED");
+
+		Client carol = new Client();
+		carol.read();
+		carol.send("HELLO carol");
+		String welcome = carol.read();
+		check(t, "welcomes a HELLO", welcome.startsWith("WELCOME carol ") ? "WELCOME carol" : welcome,
+				"WELCOME carol");
+		Client impostor = new Client();
+		impostor.read();
+		impostor.send("HELLO alice");
+		check(t, "rejects a HELLO for a taken name", impostor.read(), "REJECTED TAKEN alice is already in use.");
+		impostor.close();
+
+		Client dave = new Client();
+		dave.read();
+		dave.send(BinaryCodec.UPGRADE_REQUEST);
+		check(t, "upgrades to binary", dave.read(), "BINARYACCEPTED");
+		dave.binary = true;
+		check(t, "asks for a name in binary", dave.read(), "SUBMITNAME");
+		dave.send(Protocols.SUBMITNAME, "dave");
+		check(t, "accepts a name in binary", dave.read(), "NAMEACCEPTED");
+
+		alice.send("hello all");
+		check(t, "broadcast reaches the sender", alice.read(), "MESSAGE alice: hello all");
+		check(t, "broadcast reaches a text client", bob.read(), "MESSAGE alice: hello all");
+		check(t, "broadcast reaches a HELLO client", carol.read(), "MESSAGE alice: hello all");
+		check(t, "broadcast reaches a binary client", dave.read(), "MESSAGE alice: hello all");
+
+		alice.send("@bob psst");
+		check(t, "private message to the sender", alice.read(), "PRIVATEMESSAGESENDER alice: @bob psst");
+		check(t, "private message to the target", bob.read(), "PRIVATEMESSAGETARGET alice: @bob psst");
+		check(t, "private message skips the others", carol.quiet(), "(nothing)");
+		alice.send("@carl psst");
+		check(t, "private message to nobody", alice.read(), "ERROR ERROR: User @carl does not exist!");
+		alice.send("@carl");
+		check(t, "private message without text", alice.read(),
+				"ERROR ERROR: There must be a space between the name and the message.");
+
+		bob.send("/join dev");
+		check(t, "joins a room", bob.read(), "JOINED dev");
+		alice.send("lobby only");
+		alice.read();
+		carol.read();
+		dave.read();
+		check(t, "broadcast stays in its room", bob.quiet(), "(nothing)");
+		bob.send("/join dev");
+		check(t, "refuses the room it is in", bob.read(), "ERROR ERROR: You are already in dev.");
+		bob.send("/leave");
+		check(t, "leaves for the lobby", bob.read(), "JOINED lobby");
+		bob.drain();
+
+		alice.send("QUIT");
+		check(t, "QUIT closes the connection", alice.read(), "(closed)");
+		Client again = new Client();
+		again.read();
+		again.send("alice");
+		check(t, "QUIT frees the name", again.read(), "NAMEACCEPTED");
+		again.drain();
+
+		// Everyone has been quiet since; carol answers, dave does not.
+		check(t, "pings a quiet client", carol.read(WAIT_MILLIS), "PING");
+		carol.send("PONG");
+		check(t, "pings in binary", dave.read(WAIT_MILLIS), "PING");
+		check(t, "drops a client that does not answer", dave.read(WAIT_MILLIS), "(closed)");
+		carol.send("still here");
+		check(t, "keeps a client that answers", carol.read(), "MESSAGE carol: still here");
+
+		bob.close();
+		carol.close();
+		again.close();
+	}
+
+	/**
+	 * Runs the load generator against the server.
+	 *
+	 * @return its summary row; the line before it is the header
+	 */
+	private static String load() throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(java());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		for (String name : System.getProperties().stringPropertyNames())
+			if (name.startsWith("load."))
+				command.add("-D" + name + "=" + System.getProperty(name));
+		command.add("-Dload.port=" + PORT);
+		command.add("client.LoadGenerator");
+		Process generator = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+		// The summary is the last line printed.
+		String last = "";
+		BufferedReader in = new BufferedReader(new InputStreamReader(generator.getInputStream(), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				loadHeader = last;
+				last = line;
+			}
+		} finally {
+			in.close();
+		}
+		generator.waitFor();
+		return last;
+	}
+
+	/**
+	 * One test client, reading whatever the server sends as
+	 * "KEYWORD payload" in either format.
+	 */
+	private static final class Client {
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		boolean binary;
+
+		Client() throws IOException {
+			socket = new Socket("localhost", PORT);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+		}
+
+		void send(String line) throws IOException {
+			if (binary)
+				throw new IllegalStateException("send a frame");
+			try {
+				out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+				out.flush();
+			} catch (IOException e) {
+				// The server may already have hung up; read says so.
+			}
+		}
+
+		void send(Protocols type, String payload) throws IOException {
+			out.write(BinaryCodec.encode(type, payload));
+			out.flush();
+		}
+
+		String read() throws IOException {
+			return read(WAIT_MILLIS);
+		}
+
+		/**
+		 * @return the next message, "(closed)" at the end of the stream or
+		 *         "(nothing)" if none came in time
+		 */
+		String read(int millis) throws IOException {
+			socket.setSoTimeout(millis);
+			try {
+				BinaryCodec.Message message = BinaryCodec.readServerMessage(in, binary);
+				if (message == null)
+					return "(closed)";
+				return message.payload.length() == 0 ? message.type.getKeyword()
+						: message.type.getKeyword() + " " + message.payload;
+			} catch (SocketTimeoutException e) {
+				return "(nothing)";
+			} catch (IOException e) {
+				return "(closed)";
+			}
+		}
+
+		String quiet() throws IOException {
+			return read(QUIET_MILLIS);
+		}
+
+		void drain() throws IOException {
+			String message;
+			do {
+				message = quiet();
+			} while (!message.equals("(nothing)") && !message.equals("(closed)"));
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package chatApp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The optional binary framing of the chat protocol, plus the helpers
+ * both sides need to switch to it.
+ *
+ * A binary frame is one opcode byte (see Protocols), the payload length
+ * as an unsigned varint (7 bits per byte, low bits first, high bit set
+ * on every byte but the last) and the payload in UTF-8.  There are no
+ * keywords to match and no newline to scan for, so a reader knows the
+ * size of every frame up front.
+ *
+ * Every connection starts in text.  A client that speaks binary answers
+ * the first SUBMITNAME with the line "UPGRADE BINARY".  A server that
+ * understands it replies with the text line "BINARYACCEPTED", and from
+ * then on both directions use binary frames.  An older server treats
+ * the request as an invalid name and asks again, and the client simply
+ * carries on in text.  Older clients never ask, so they are never sent
+ * anything but text.
+ */
+public final class BinaryCodec {
+	public static final String UPGRADE_REQUEST = "UPGRADE BINARY";
+
+	/**
+	 * The largest payload a frame may carry.
+	 */
+	public static final int MAX_PAYLOAD = 64 * 1024;
+
+	/**
+	 * A decoded message: what it is and its payload, which is empty for
+	 * messages without one.
+	 */
+	public static final class Message {
+		public final Protocols type;
+		public final String payload;
+
+		public Message(Protocols type, String payload) {
+			this.type = type;
+			this.payload = payload;
+		}
+	}
+
+	private BinaryCodec() {
+	}
+
+	/**
+	 * @return the number of bytes the varint encoding of value takes
+	 */
+	public static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes value as a varint at dst[pos].
+	 *
+	 * @return the position after the varint
+	 */
+	public static int putVarint(byte[] dst, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * Encodes a complete binary frame around an already encoded payload.
+	 */
+	public static byte[] encode(Protocols type, byte[] payload) {
+		byte[] frame = new byte[1 + varintSize(payload.length) + payload.length];
+		frame[0] = (byte) type.getOpcode();
+		int pos = putVarint(frame, 1, payload.length);
+		System.arraycopy(payload, 0, frame, pos, payload.length);
+		return frame;
+	}
+
+	public static byte[] encode(Protocols type, String payload) {
+		return encode(type, payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads one binary frame.
+	 *
+	 * @return the message, or null at the end of the stream
+	 */
+	public static Message read(InputStream in) throws IOException {
+		return read(in, MAX_PAYLOAD);
+	}
+
+	/**
+	 * Reads one binary frame whose payload may be at most maxPayload
+	 * bytes.
+	 *
+	 * @return the message, or null at the end of the stream
+	 * @throws LineTooLongException if the frame is bigger
+	 */
+	public static Message read(InputStream in, int maxPayload) throws IOException {
+		int opcode = in.read();
+		if (opcode < 0)
+			return null;
+
+		Protocols type = Protocols.fromOpcode(opcode);
+		if (type == null)
+			throw new IOException("Unknown opcode " + opcode);
+
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException();
+			if (shift > 28)
+				throw new IOException("Malformed frame length");
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				break;
+		}
+		if (length < 0)
+			throw new IOException("Malformed frame length");
+		if (length > maxPayload)
+			throw new LineTooLongException("Frame payload of " + length + " bytes is too large");
+
+		byte[] payload = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(payload, read, length - read);
+			if (n < 0)
+				throw new EOFException();
+			read += n;
+		}
+		return new Message(type, new String(payload, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads one UTF-8 text line, ended by "\n" or "\r\n", straight from
+	 * the stream, so the same stream can carry binary frames after it.
+	 * The stream should be buffered.
+	 *
+	 * @return the line without its terminator, or null at the end of
+	 *         the stream
+	 */
+	public static String readLine(InputStream in, int maxLength) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				if (line.size() == 0)
+					return null;
+				break;
+			}
+			if (line.size() >= maxLength)
+				throw new LineTooLongException("Line exceeds " + maxLength + " bytes.");
+			line.write(b);
+		}
+
+		byte[] bytes = line.toByteArray();
+		int end = bytes.length;
+		if (end > 0 && bytes[end - 1] == '\r')
+			end--;
+		return new String(bytes, 0, end, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads the next message a client receives from the server, in
+	 * whichever format was negotiated.  Text lines with an unknown
+	 * keyword are skipped.
+	 *
+	 * @return the message, or null at the end of the stream
+	 */
+	public static Message readServerMessage(InputStream in, boolean binary) throws IOException {
+		if (binary)
+			return read(in);
+
+		while (true) {
+			String line = readLine(in, MAX_PAYLOAD);
+			if (line == null)
+				return null;
+			Message message = parseText(line);
+			if (message != null)
+				return message;
+		}
+	}
+
+	/**
+	 * Splits a text line sent by the server into its keyword and payload.
+	 *
+	 * @return the message, or null if the keyword is unknown
+	 */
+	public static Message parseText(String line) {
+		int space = line.indexOf(' ');
+		Protocols type = Protocols.fromKeyword(space < 0 ? line : line.substring(0, space));
+		if (type == null)
+			return null;
+		return new Message(type, space < 0 ? "" : line.substring(space + 1));
+	}
+
+	/**
+	 * Returns the text line that a client message stands for, which is
+	 * the same in either protocol.
+	 *
+	 * Client to server lines carry no keyword: a name, a chat line or an
+	 * "@name" private message is sent as is.  Only "HELLO name token"
+	 * keeps its keyword, since it arrives where a name is expected, and
+	 * "SEARCH query", which would otherwise be a chat line.
+	 */
+	public static String toClientLine(Protocols type, String payload) {
+		switch (type) {
+		case PONG:
+		case QUIT:
+			return type.getKeyword();
+		case UPGRADE:
+			return UPGRADE_REQUEST;
+		case HELLO:
+		case SEARCH:
+			return type.getKeyword() + " " + payload;
+		default:
+			return payload;
+		}
+	}
+}
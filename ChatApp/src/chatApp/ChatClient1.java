@@ -22,7 +22,7 @@ import javax.swing.ScrollPaneConstants;
 /**
  * A simple Swing-based client for the chat server.  Graphically
  * it is a frame with a text field for entering messages and a
- * textarea to see the whole dialog.
+ * MessageView to see the recent dialog, fed through a ReceivePipeline.
  *
  * The client follows the Chat Protocol which is as follows.
  * When the server sends "SUBMITNAME" the client replies with the
@@ -33,7 +33,11 @@ import javax.swing.ScrollPaneConstants;
  * sending the server arbitrary strings to be broadcast to all
  * chatters connected to the server.  When the server sends a
  * line beginning with "MESSAGE " then all characters following
- * this string should be displayed in its message area.
+ * this string should be displayed in its message area.  So are
+ * private messages ("PRIVATEMESSAGESENDER " and "PRIVATEMESSAGETARGET "),
+ * "ERROR " lines and the "JOINED " that confirms a /join.  The client
+ * answers "PING" with "PONG" and ignores the rest of the protocol, such
+ * as HELLO, SEARCH and the binary framing.
  */
 public class ChatClient1 {
 	private static ChatClientUI c;
@@ -67,6 +71,13 @@ public class ChatClient1 {
 			}
 		});
 		
+		// say goodbye to the server when the window is closed
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				close();
+			}
+		});
+		
 		run();
 	}
 
@@ -81,6 +92,20 @@ public class ChatClient1 {
 		protocolHandler();        
 	}
 
+	/**
+	 * Tells the server we are leaving, then closes the connection.
+	 */
+	public void close() {
+		if (out != null) {
+			out.println("QUIT");
+		}
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) { }
+		}
+	}
+
 	private void initializeConnection() throws UnknownHostException, IOException {
 		socket = new Socket(Driver.getHost(), Driver.getPort());
 	}
@@ -94,25 +119,59 @@ public class ChatClient1 {
 		// Process all messages from server, according to the protocol.
 		while (true) {
 			String line = in.readLine();
-			if (line.startsWith("SUBMITNAME")) {
+			
+			// end of stream: the server is gone
+			if (line == null) {
+				c.getReceivePipeline().message(Protocols.ERROR, "Disconnected from the server.");
+				signedIn(null);
+				socket.close();
+				return;
+			}
+			
+			if (line.equals("PING")) {
+				out.println("PONG");
+			} else if (line.startsWith("SUBMITNAME")) {
 				out.println(getName());
 			} else if (line.startsWith("NAMEACCEPTED")) {
-				c.getInputTextField().setEditable(true);
-				c.setTitle("ChatApp   ||   @"+tempName);
+				signedIn("ChatApp   ||   @"+tempName);
+			} else if (line.startsWith("JOINED ")) {
+				signedIn("ChatApp   ||   @"+tempName+"   ||   #"+line.substring(7));
+				c.getReceivePipeline().message(Protocols.JOINED, "You are now in #" + line.substring(7));
 			} else if (line.startsWith("MESSAGE")) {
-				c.getMessageTextArea().append(line.substring(8) + "\n");
-			} else if (line.startsWith("PM")) {
-				String[] temp = line.split("|");
-				// 0 -- PM
-				// 1 -- name
-				// 2 -- input
-				if(tempName.equalsIgnoreCase(temp[1])) {
-					c.getMessageTextArea().append(temp[1]+": "+temp[2]+"\n");
-				}
+				c.getReceivePipeline().message(Protocols.BROADCAST, line.substring(8));
+			} else if (line.startsWith("PRIVATEMESSAGESENDER")) {
+				show(Protocols.PRIVATEMESSAGESENDER, line);
+			} else if (line.startsWith("PRIVATEMESSAGETARGET")) {
+				show(Protocols.PRIVATEMESSAGETARGET, line);
+			} else if (line.startsWith("ERROR")) {
+				show(Protocols.ERROR, line);
 			}
 		}
 	}
 	
+	/**
+	 * Shows what follows the keyword of a line from the server.
+	 */
+	private void show(Protocols type, String line) {
+		int start = type.getKeyword().length() + 1;
+		c.getReceivePipeline().message(type, start < line.length() ? line.substring(start) : "");
+	}
+
+	/**
+	 * Unlocks the input field and shows the name, or locks it again
+	 * given null.  The window is updated on the Swing thread, after the
+	 * messages read before.
+	 */
+	private void signedIn(final String title) {
+		c.getReceivePipeline().post(new Runnable() {
+			public void run() {
+				c.getInputTextField().setEditable(title != null);
+				if (title != null)
+					c.setTitle(title);
+			}
+		});
+	}
+
 	/**
 	 * Prompt for and return the desired screen name.
 	 */
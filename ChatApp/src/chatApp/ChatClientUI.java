@@ -2,19 +2,23 @@ package chatApp;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
-import java.awt.Insets;
 import java.awt.event.ActionListener;
 
+import javax.swing.BorderFactory;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ScrollPaneConstants;
 
+import client.MessageView;
+import client.ReceivePipeline;
+
 public class ChatClientUI extends JFrame {
 	private JScrollPane inputScrollPane;
-	private JScrollPane messageScrollPane;
-	private JTextArea messageTextArea;
+	private MessageView messageView;
+	private JLabel backlogLabel;
+	private ReceivePipeline receivePipeline;
 	private JTextField inputTextField;
 
 	/**
@@ -25,17 +29,18 @@ public class ChatClientUI extends JFrame {
 	}
 	
 	/**
-	 * @return the messageTextArea
+	 * @return the messageView, which keeps only the most recent messages
 	 */
-	public JTextArea getMessageTextArea() {
-		return messageTextArea;
+	public MessageView getMessageView() {
+		return messageView;
 	}
 
 	/**
-	 * @param messageTextArea the messageTextArea to set
+	 * @return the receivePipeline, through which the network thread
+	 *         hands messages and UI updates to the Swing thread
 	 */
-	public void setMessageTextArea(JTextArea messageTextArea) {
-		this.messageTextArea = messageTextArea;
+	public ReceivePipeline getReceivePipeline() {
+		return receivePipeline;
 	}
 
 	/**
@@ -62,17 +67,13 @@ public class ChatClientUI extends JFrame {
 		setBounds(100, 100, 450, 320);
 		getContentPane().setLayout(new BorderLayout(0, 0));
 		
-		messageScrollPane = new JScrollPane();
-		messageScrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
-		getContentPane().add(messageScrollPane, BorderLayout.CENTER);
+		messageView = new MessageView();
+		messageView.setViewportBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+		getContentPane().add(messageView, BorderLayout.CENTER);
 		
-		messageTextArea = new JTextArea();
-		messageTextArea.setMargin(new Insets(5, 5, 5, 5));
-		messageTextArea.setEditable(false);
-		messageTextArea.setRows(8);
-		messageTextArea.setLineWrap(true);
-		messageTextArea.setWrapStyleWord(true);
-		messageScrollPane.setViewportView(messageTextArea);
+		backlogLabel = new JLabel(" ");
+		getContentPane().add(backlogLabel, BorderLayout.NORTH);
+		receivePipeline = new ReceivePipeline(messageView, backlogLabel);
 		
 		inputScrollPane = new JScrollPane();
 		inputScrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
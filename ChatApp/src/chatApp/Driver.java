@@ -1,33 +1,35 @@
 package chatApp;
 
-import java.io.IOException;
-
-import server.ChatServer;
+import server.ServerCore;
 
 /**
  * SOURCE: http://cs.lmu.edu/~ray/notes/javanetexamples/#chat
+ *
+ * Starts the chat server with the given arguments, which may set any of
+ * the settings described in ServerConfig, such as "--port=9000",
+ * "--transport=nio" or "--config=chat.properties".  The host and port
+ * are also where the clients connect.
  */
 public class Driver {
 	private final static String host = "localhost";
-	private final static int port = 8080;
+	private final static int port = ServerConfig.DEFAULT_PORT;
 	
-	public static void main(String[] args) throws IOException {
-		ChatServer server = new ChatServer();
-		server.run();
-
+	public static void main(String[] args) throws Exception {
+		ServerCore.main(args);
 	}
 	
 	/**
-	 * @return the host
+	 * @return the host, localhost unless -Dchat.host says otherwise
 	 */
 	public static String getHost() {
-		return host;
+		return System.getProperty("chat.host", host);
 	}
 
 	/**
-	 * @return the port
+	 * @return the port, 8080 unless -Dchat.port says otherwise, so
+	 *         several servers can run on one machine
 	 */
 	public static int getPort() {
-		return port;
+		return Integer.getInteger("chat.port", port);
 	}
 }
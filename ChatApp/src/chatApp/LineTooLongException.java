@@ -0,0 +1,15 @@
+package chatApp;
+
+import java.io.IOException;
+
+/**
+ * A client sent a line or frame longer than the server accepts.  The
+ * connection cannot be resynchronised and is dropped.
+ */
+public class LineTooLongException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public LineTooLongException(String message) {
+		super(message);
+	}
+}
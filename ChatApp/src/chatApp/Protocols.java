@@ -1,5 +1,73 @@
 package chatApp;
 
+/**
+ * The messages of the chat protocol.  Each has the keyword that starts
+ * its line in the text protocol and the one-byte opcode that starts its
+ * frame in the binary protocol (see BinaryCodec).
+ */
 public enum Protocols {
-	SUBMITNAME, NAMEACCEPTED, BROADCAST, PM
+	SUBMITNAME(0x01, "SUBMITNAME"),
+	NAMEACCEPTED(0x02, "NAMEACCEPTED"),
+	BROADCAST(0x03, "MESSAGE"),
+	PM(0x04, "PM"),
+	PRIVATEMESSAGESENDER(0x05, "PRIVATEMESSAGESENDER"),
+	PRIVATEMESSAGETARGET(0x06, "PRIVATEMESSAGETARGET"),
+	ERROR(0x07, "ERROR"),
+	PING(0x08, "PING"),
+	PONG(0x09, "PONG"),
+	QUIT(0x0A, "QUIT"),
+	UPGRADE(0x0B, "UPGRADE"),
+	BINARYACCEPTED(0x0C, "BINARYACCEPTED"),
+	JOINED(0x0D, "JOINED"),
+	HELLO(0x0E, "HELLO"),
+	WELCOME(0x0F, "WELCOME"),
+	REJECTED(0x10, "REJECTED"),
+	SEARCH(0x11, "SEARCH"),
+	SEARCHRESULT(0x12, "SEARCHRESULT"),
+	SEARCHDONE(0x13, "SEARCHDONE");
+
+	private static final Protocols[] byOpcode = new Protocols[256];
+	static {
+		for (Protocols p : values())
+			byOpcode[p.opcode] = p;
+	}
+
+	private final int opcode;
+	private final String keyword;
+
+	private Protocols(int opcode, String keyword) {
+		this.opcode = opcode;
+		this.keyword = keyword;
+	}
+
+	/**
+	 * @return the opcode of this message in binary frames
+	 */
+	public int getOpcode() {
+		return opcode;
+	}
+
+	/**
+	 * @return the word that starts this message's line in the text protocol
+	 */
+	public String getKeyword() {
+		return keyword;
+	}
+
+	/**
+	 * @return the message with the given opcode, or null if there is none
+	 */
+	public static Protocols fromOpcode(int opcode) {
+		return opcode < 0 || opcode > 255 ? null : byOpcode[opcode];
+	}
+
+	/**
+	 * @return the message whose keyword is the given word, or null
+	 */
+	public static Protocols fromKeyword(String keyword) {
+		for (Protocols p : values())
+			if (p.keyword.equals(keyword))
+				return p;
+		return null;
+	}
 }
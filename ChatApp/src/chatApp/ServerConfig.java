@@ -0,0 +1,266 @@
+package chatApp;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The settings a server runs with, so it can be sized for its host
+ * without recompiling.  Settings come from, in increasing order of
+ * precedence:
+ *
+ * 1. a properties file named by "--config=file" or -Dchat.config
+ * 2. -D system properties
+ * 3. "--name=value" command line arguments; a bare "--name" means
+ *    "--name=true"
+ *
+ * Every setting is named as its -D property is, such as chat.port; in
+ * the file and on the command line the "chat." can be left out, so
+ * "--port=9000" and "port=9000" both set chat.port.
+ *
+ * The main settings:
+ *
+ * chat.bind, chat.port: where to listen for clients (default every
+ *  interface, port 8080)
+ * chat.backlog: connections the kernel holds before they are accepted
+ *  (default 1024, capped by the kernel's somaxconn); clients that all
+ *  reconnect at once overflow a short backlog
+ * chat.socket.receiveBuffer, chat.socket.sendBuffer: client socket
+ *  buffer sizes in bytes (default 0, the system default)
+ * chat.socket.tcpNoDelay: turn off Nagle's algorithm on client sockets
+ *  (default false; outbound frames are already coalesced)
+ * chat.transport: blocking, virtual or nio, how the server moves
+ *  bytes; see server.ServerCore (default blocking)
+ * chat.nio.loops: event loops of the nio transport (default one per
+ *  processor)
+ * chat.room.shards: room publishing threads of the other transports
+ *  (default one per processor)
+ * chat.virtual: the same as chat.transport=virtual
+ * chat.outbound.capacity, chat.outbound.policy: each client's outbound
+ *  queue, see OutboundQueue and SlowConsumerPolicy
+ * chat.history.count, chat.history.bytes: how much recent history each
+ *  room replays, see HistoryRing
+ * chat.heartbeat.interval, chat.heartbeat.timeout: see Heartbeat
+ * chat.limit.*: how fast clients may send and connect, and the longest
+ *  line they may send; see FloodControl
+ *
+ * The message log, search index, mailboxes, cluster and metrics are
+ * configured the same way with their chat.log.*, chat.search.*,
+ * chat.mailbox.*, chat.cluster.* and chat.metrics.* settings.
+ */
+public final class ServerConfig {
+	public static final int DEFAULT_PORT = 8080;
+
+	private static final String PREFIX = "chat.";
+
+	private final Properties values;
+
+	private ServerConfig(Properties values) {
+		this.values = values;
+	}
+
+	/**
+	 * @return the settings given with -D properties and the file named
+	 *         by -Dchat.config, if any
+	 */
+	public static ServerConfig fromSystemProperties() throws IOException {
+		return load(new String[0]);
+	}
+
+	/**
+	 * Reads the settings from the file, the system properties and the
+	 * command line.
+	 *
+	 * @throws IllegalArgumentException if an argument is not of the form
+	 *         "--name" or "--name=value"
+	 */
+	public static ServerConfig load(String[] args) throws IOException {
+		Properties cli = new Properties();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || arg.length() == 2)
+				throw new IllegalArgumentException("Expected --name or --name=value, not " + arg);
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				cli.setProperty(key(arg.substring(2)), "true");
+			else
+				cli.setProperty(key(arg.substring(2, eq)), arg.substring(eq + 1));
+		}
+
+		Properties values = new Properties();
+		String file = cli.getProperty(PREFIX + "config", System.getProperty(PREFIX + "config"));
+		if (file != null) {
+			Properties fromFile = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				fromFile.load(in);
+			} finally {
+				in.close();
+			}
+			putAll(values, fromFile);
+		}
+		putAll(values, System.getProperties());
+		putAll(values, cli);
+		return new ServerConfig(values);
+	}
+
+	private static void putAll(Properties to, Properties from) {
+		for (Map.Entry<Object, Object> e : from.entrySet()) {
+			String name = (String) e.getKey();
+			// Only the file and the command line may leave out "chat.".
+			if (from == System.getProperties() && !name.startsWith(PREFIX))
+				continue;
+			to.setProperty(key(name), ((String) e.getValue()).trim());
+		}
+	}
+
+	private static String key(String name) {
+		name = name.trim();
+		return name.startsWith(PREFIX) ? name : PREFIX + name;
+	}
+
+	/**
+	 * @return the setting, or def if it is not set
+	 */
+	public String getString(String name, String def) {
+		return values.getProperty(key(name), def);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the setting is not a number
+	 */
+	public int getInt(String name, int def) {
+		String value = getString(name, null);
+		if (value == null)
+			return def;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key(name) + " must be a number, not " + value);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the setting is not a number
+	 */
+	public long getLong(String name, long def) {
+		String value = getString(name, null);
+		if (value == null)
+			return def;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key(name) + " must be a number, not " + value);
+		}
+	}
+
+	public boolean getBoolean(String name, boolean def) {
+		String value = getString(name, null);
+		return value == null ? def : Boolean.parseBoolean(value);
+	}
+
+	public int getPort() {
+		return getInt("port", DEFAULT_PORT);
+	}
+
+	/**
+	 * @return the address to listen on; every interface unless chat.bind
+	 *         is set
+	 */
+	public InetSocketAddress getBindAddress() {
+		String host = getString("bind", null);
+		return host == null ? new InetSocketAddress(getPort()) : new InetSocketAddress(host, getPort());
+	}
+
+	public int getBacklog() {
+		return getInt("backlog", 1024);
+	}
+
+	public int getReceiveBufferSize() {
+		return getInt("socket.receiveBuffer", 0);
+	}
+
+	public int getSendBufferSize() {
+		return getInt("socket.sendBuffer", 0);
+	}
+
+	public boolean isTcpNoDelay() {
+		return getBoolean("socket.tcpNoDelay", false);
+	}
+
+	public int getEventLoops() {
+		return Math.max(1, getInt("nio.loops", Runtime.getRuntime().availableProcessors()));
+	}
+
+	public int getRoomShards() {
+		return Math.max(1, getInt("room.shards", Runtime.getRuntime().availableProcessors()));
+	}
+
+	public boolean isVirtualThreads() {
+		return getBoolean("virtual", false);
+	}
+
+	/**
+	 * @return the name of the transport to serve clients with
+	 */
+	public String getTransport() {
+		return getString("transport", isVirtualThreads() ? "virtual" : "blocking").toLowerCase();
+	}
+
+	public int getQueueCapacity() {
+		return getInt("outbound.capacity", 1024);
+	}
+
+	public String getSlowConsumerPolicy() {
+		return getString("outbound.policy", "DROP_OLDEST");
+	}
+
+	public int getHistoryCount() {
+		return getInt("history.count", 50);
+	}
+
+	public long getHistoryBytes() {
+		return getLong("history.bytes", 64 * 1024);
+	}
+
+	/**
+	 * @return milliseconds between pings to a silent client; zero turns
+	 *         heartbeats off
+	 */
+	public long getHeartbeatInterval() {
+		return getLong("heartbeat.interval", 30000);
+	}
+
+	/**
+	 * @return milliseconds to wait for an answer to PING
+	 */
+	public long getHeartbeatTimeout() {
+		return getLong("heartbeat.timeout", 10000);
+	}
+
+	/**
+	 * Binds the listening socket.  The receive buffer is set here too,
+	 * since accepted sockets inherit it and a window above 64K can only
+	 * be agreed on before the connection is established.
+	 */
+	public void bind(ServerSocketChannel listener) throws IOException {
+		if (getReceiveBufferSize() > 0)
+			listener.setOption(StandardSocketOptions.SO_RCVBUF, getReceiveBufferSize());
+		listener.bind(getBindAddress(), getBacklog());
+	}
+
+	/**
+	 * Applies the socket settings to a newly accepted client.
+	 */
+	public void configure(SocketChannel channel) throws IOException {
+		if (getSendBufferSize() > 0)
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, getSendBufferSize());
+		if (isTcpNoDelay())
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	}
+}
@@ -1,32 +1,32 @@
 package client;
 
-import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
-import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
-import javax.swing.JTextPane;
-import javax.swing.text.AttributeSet;
-import javax.swing.text.SimpleAttributeSet;
-import javax.swing.text.StyleConstants;
-import javax.swing.text.StyleContext;
 
+import chatApp.BinaryCodec;
 import chatApp.Driver;
+import chatApp.Protocols;
 
 /**
  * A simple Swing-based client for the chat server.  Graphically
  * it is a frame with a text field for entering messages and a
- * textarea to see the whole dialog.
+ * MessageView with the most recent messages.  The network thread
+ * never touches the window itself: what it reads goes through a
+ * ReceivePipeline, which the Swing thread works off in batches, and a
+ * line under the messages shows when the client falls behind.
  *
  * The client follows the Chat Protocol which is as follows.
  * When the server sends "SUBMITNAME" the client replies with the
@@ -37,19 +37,55 @@ import chatApp.Driver;
  * sending the server arbitrary strings to be broadcast to all
  * chatters connected to the server.  When the server sends a
  * line beginning with "MESSAGE " then all characters following
- * this string should be displayed in its message area.
+ * this string should be displayed in its message area.  The server
+ * checks on quiet clients with "PING", which is answered with "PONG",
+ * and the client says "QUIT" before it disconnects.
+ *
+ * The client first asks the server for the binary framing of
+ * BinaryCodec and stays on text lines if the server does not offer it.
+ * It then signs in with "HELLO name", answered by "WELCOME name token"
+ * or "REJECTED reason", and falls back to the plain name if the server
+ * asks for a name again.  If the connection drops, the client
+ * reconnects after a random, growing delay and sends the token along,
+ * which gets it its name back.  A returning client does not wait to be
+ * asked: it writes the upgrade request, if the server took it before,
+ * and "HELLO name token" right behind it, so it is signed in again
+ * after a single round trip.
+ *
+ * "/search query" asks the server to search the chat's history, see
+ * SearchIndex.Query, and "/more" fetches the next page of results.
  */
 public class ChatClient {
+    private static final long RECONNECT_MIN_MILLIS = 1000;
+    private static final long RECONNECT_MAX_MILLIS = 30000;
 
-    BufferedReader in;
-    PrintWriter out;
+    InputStream in;
+    OutputStream out;
+    // The server answers in binary after BINARYACCEPTED, but we can
+    // write binary as soon as the upgrade request is sent.
+    boolean binary;
+    boolean binaryOut;
+    // Whether the server took the upgrade the last time we connected.
+    boolean binaryOffered;
+    boolean upgradeRequested;
+    // SUBMITNAMEs still to come for requests sent without waiting.
+    int expectedPrompts;
+    boolean helloSent;
+    boolean legacy;
+    volatile boolean closing;
+    String token;
     JFrame frame = new JFrame("ChatApp");
     JTextField textField = new JTextField(40);
-    JTextArea messageArea = new JTextArea(8, 40);
-    
-    JTextPane messagePane = new JTextPane();
+
+    MessageView messages = new MessageView();
+    JLabel backlog = new JLabel(" ");
+    // Everything read from the server reaches the window through here.
+    ReceivePipeline inbox = new ReceivePipeline(messages, backlog);
     Socket socket;
     String tempName;
+    // The last search typed, and the page: that continues it.
+    String search;
+    volatile String nextPage;
     
     /**
      * Constructs the client by laying out the GUI and registering a
@@ -63,11 +99,10 @@ public class ChatClient {
 
         // Layout GUI
         textField.setEditable(false);
-        messageArea.setEditable(false);
-        messagePane.setEditable(false);
-        messagePane.setPreferredSize(new Dimension(100, 100));
+        messages.setPreferredSize(new Dimension(100, 100));
         frame.getContentPane().add(textField, "North");
-        frame.getContentPane().add(new JScrollPane(messagePane), "Center");
+        frame.getContentPane().add(messages, "Center");
+        frame.getContentPane().add(backlog, "South");
         frame.pack();
 
         // Add Listeners
@@ -78,13 +113,28 @@ public class ChatClient {
              * the text area in preparation for the next message.
              */
             public void actionPerformed(ActionEvent e) {
-                out.println(textField.getText());
+            	String text = textField.getText();
+            	if (text.startsWith("/search ")) {
+            		search = text.substring(8).trim();
+            		send(Protocols.SEARCH, search);
+            	} else if (text.equals("/more") && search != null && nextPage != null) {
+            		send(Protocols.SEARCH, search + " " + nextPage);
+            	} else {
+            		send(text.startsWith("@") ? Protocols.PM : Protocols.BROADCAST, text);
+            	}
                 textField.setText("");
             }
         });
     }
     
+    /**
+     * Tells the server we are leaving, then closes the connection.
+     */
     public void close(){
+    	closing = true;
+    	if(out != null){
+    		send(Protocols.QUIT, "");
+    	}
     	if(socket != null){
 			try {
 				socket.close();
@@ -94,22 +144,23 @@ public class ChatClient {
     	}
     }
     
-    private void appendToPane(JTextPane tp, String msg, Color c)
-    {
-        StyleContext sc = StyleContext.getDefaultStyleContext();
-        AttributeSet aset = sc.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, c);
-
-        aset = sc.addAttribute(aset, StyleConstants.FontFamily, "Lucida Console");
-        aset = sc.addAttribute(aset, StyleConstants.Alignment, StyleConstants.ALIGN_JUSTIFIED);
-
-        int oldLen = tp.getDocument().getLength();
-        try{
-        	tp.getStyledDocument().insertString(oldLen, msg, aset);
-        } catch(Exception e){
-        	System.out.println(e.getMessage());
-        }
+    /**
+     * Sends a message to the server in the negotiated format.  Called
+     * from both the Swing thread and the network thread.
+     */
+    private synchronized void send(Protocols type, String payload) {
+    	try {
+    		if (binaryOut) {
+    			out.write(BinaryCodec.encode(type, payload));
+    		} else {
+    			out.write((BinaryCodec.toClientLine(type, payload) + "\n").getBytes(StandardCharsets.UTF_8));
+    		}
+    		out.flush();
+    	} catch (IOException e) {
+    		System.out.println(e.getMessage());
+    	}
     }
-
+    
     /**
      * Prompt for and return the desired screen name.
      */
@@ -123,36 +174,195 @@ public class ChatClient {
     }
 
     /**
-     * Connects to the server then enters the processing loop.
+     * Reads the next message from the server in the negotiated format.
+     * Text lines with an unknown keyword are skipped.
+     *
+     * @return the message, or null at the end of the stream
+     */
+    private BinaryCodec.Message readMessage() throws IOException {
+    	return BinaryCodec.readServerMessage(in, binary);
+    }
+
+    /**
+     * Connects to the server and processes its messages, reconnecting
+     * for as long as there is a name to resume.  The delay doubles
+     * after every failed attempt and is picked at random from its upper
+     * half, so clients dropped together do not all come back at once.
+     */
+    private void run() throws InterruptedException {
+    	long delay = RECONNECT_MIN_MILLIS;
+    	while (true) {
+    		try {
+    			session();
+    			delay = RECONNECT_MIN_MILLIS;
+    		} catch (IOException e) {
+    			System.out.println(e.getMessage());
+    		}
+    		signedIn(null);
+    		if (closing || token == null)
+    			break;
+    		
+    		long wait = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    		inbox.message(null, "Disconnected; reconnecting in " + (wait + 500) / 1000 + "s.");
+    		Thread.sleep(wait);
+    		delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+    	}
+        inbox.message(Protocols.ERROR, "Disconnected from the server.");
+    }
+
+    /**
+     * Connects to the server then enters the processing loop until the
+     * connection ends.
      */
-    private void run() throws IOException {
+    private void session() throws IOException {
         // Make connection and initialize streams
         socket = new Socket(Driver.getHost(), Driver.getPort());
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+        binary = false;
+        binaryOut = false;
+        upgradeRequested = false;
+        helloSent = false;
+        legacy = false;
+        expectedPrompts = 0;
+        if (token != null)
+        	resume();
 
         // Process all messages from server, according to the protocol.
         while (true) {
-            String line = in.readLine();
+            BinaryCodec.Message message = readMessage();
             
-            if(line == null)
-            	continue;
+            // End of stream: the server closed the connection.
+            if(message == null)
+            	break;
             
-            if (line.startsWith("SUBMITNAME")) {
-                out.println(getName());
-            } else if (line.startsWith("NAMEACCEPTED")) {
-                textField.setEditable(true);
-                frame.setTitle("ChatApp   |   @"+tempName);
-            } else if (line.startsWith("MESSAGE")) {
-            	appendToPane(messagePane, line.substring(8) + "\n", Color.BLACK);
-            } else if (line.startsWith("PRIVATEMESSAGESENDER")) {
-            	appendToPane(messagePane, line.substring(21) + "\n", Color.BLUE);
-            } else if (line.startsWith("PRIVATEMESSAGETARGET")) {
-            	appendToPane(messagePane, line.substring(21) + "\n", new Color(0 , 100, 0));	// Dark Green
-            } else if (line.startsWith("ERROR")) {
-            	appendToPane(messagePane, line.substring(6) + "\n", Color.RED);
+            switch (message.type) {
+            case PING:
+            	send(Protocols.PONG, "");
+            	break;
+            case SUBMITNAME:
+            	// Prompts for requests already on their way need no answer.
+            	if (expectedPrompts > 0) {
+            		expectedPrompts--;
+            		break;
+            	}
+            	// Ask once for binary frames; a server without them just
+            	// asks for a name again.
+            	if (!upgradeRequested) {
+            		upgradeRequested = true;
+            		send(Protocols.UPGRADE, "");
+            	} else if (helloSent && !legacy) {
+            		// Asked again: the server does not know HELLO.
+            		legacy = true;
+            		send(Protocols.SUBMITNAME, tempName == null ? "" : tempName);
+            	} else if (legacy) {
+            		String name = getName();
+            		send(Protocols.SUBMITNAME, name == null ? "" : name);
+            	} else {
+            		// A returning client already has its name.
+            		String name = token != null ? tempName : getName();
+            		helloSent = true;
+            		hello(name);
+            	}
+            	break;
+            case WELCOME:
+            	int space = message.payload.indexOf(' ');
+            	tempName = message.payload.substring(0, space);
+            	token = message.payload.substring(space + 1);
+            	signedIn("ChatApp   |   @"+tempName);
+            	break;
+            case REJECTED:
+            	// The old name is gone, so there is nothing to resume.
+            	token = null;
+            	inbox.message(message.type, message.payload.substring(message.payload.indexOf(' ') + 1));
+            	hello(getName());
+            	break;
+            case BINARYACCEPTED:
+            	binary = true;
+            	binaryOut = true;
+            	binaryOffered = true;
+            	break;
+            case NAMEACCEPTED:
+                signedIn("ChatApp   |   @"+tempName);
+                break;
+            case JOINED:
+            	signedIn("ChatApp   |   @"+tempName+"   |   #"+message.payload);
+            	inbox.message(message.type, "You are now in #" + message.payload);
+            	break;
+            case SEARCHRESULT:
+            	inbox.message(message.type, searchResult(message.payload));
+            	break;
+            case SEARCHDONE:
+            	int page = message.payload.indexOf(' ');
+            	nextPage = page < 0 ? null : message.payload.substring(page + 1);
+            	inbox.message(message.type, "Found " + (page < 0 ? message.payload : message.payload.substring(0, page))
+            			+ (nextPage == null ? "." : "; /more for the next page."));
+            	break;
+            case BROADCAST:
+            case PRIVATEMESSAGESENDER:
+            case PRIVATEMESSAGETARGET:
+            case ERROR:
+            	inbox.message(message.type, message.payload);
+            	break;
+            default:
+            	break;
             }
         }
+        
+        socket.close();
+    }
+
+    /**
+     * Lets the user type once signed in and shows where they are, or
+     * with a null title locks the text field again.  Called from the
+     * network thread; the window is updated in order with the messages.
+     */
+    private void signedIn(final String title) {
+    	inbox.post(new Runnable() {
+    		public void run() {
+    			textField.setEditable(title != null);
+    			if (title != null)
+    				frame.setTitle(title);
+    		}
+    	});
+    }
+
+    /**
+     * Turns "offset timestamp where sender: text" into
+     * "[date time] where sender: text".
+     */
+    static String searchResult(String payload) {
+    	String[] parts = payload.split(" ", 3);
+    	if (parts.length < 3)
+    		return payload;
+    	try {
+    		return String.format("[%1$tF %1$tR] %2$s", Long.parseLong(parts[1]), parts[2]);
+    	} catch (NumberFormatException e) {
+    		return parts[2];
+    	}
+    }
+
+    /**
+     * Signs a returning client in without waiting for SUBMITNAME.  The
+     * server greets with SUBMITNAME, and again after accepting the
+     * upgrade; both are skipped.  If HELLO is not understood after all,
+     * the next SUBMITNAME falls back to the plain name as usual.
+     */
+    private void resume() {
+    	upgradeRequested = true;
+    	expectedPrompts = 1;
+    	if (binaryOffered) {
+    		send(Protocols.UPGRADE, "");
+    		binaryOut = true;
+    		expectedPrompts++;
+    	}
+    	helloSent = true;
+    	hello(tempName);
+    }
+
+    private void hello(String name) {
+    	name = name == null ? "" : name;
+    	send(Protocols.HELLO, token == null ? name : name + " " + token);
     }
 
     /**
@@ -162,7 +372,6 @@ public class ChatClient {
         final ChatClient client = new ChatClient();
         client.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         client.frame.setVisible(true);
-        client.run();
         
         Runtime.getRuntime().addShutdownHook(new Thread()
         {
@@ -172,5 +381,7 @@ public class ChatClient {
             	client.close();
             }
         });
+        
+        client.run();
     }
 }
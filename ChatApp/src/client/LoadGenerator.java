@@ -0,0 +1,521 @@
+package client;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import chatApp.BinaryCodec;
+import chatApp.Driver;
+import chatApp.Protocols;
+import server.Histogram;
+
+/**
+ * A headless client that puts a chat server under load and measures
+ * it end to end.  It opens many connections from a few selector
+ * threads, signs each one in with a HELLO sent right after connecting,
+ * so the whole handshake is one round trip, and then sends a steady mix of broadcasts and private messages.
+ *
+ * Every message carries the time it was sent ("t=" and System.nanoTime)
+ * so whichever connection receives it can tell how long delivery took;
+ * all connections live in this one process, so the clocks agree.  Only
+ * messages sent after the warmup count, and delivered messages are
+ * compared with what the server should have delivered: every member of
+ * the sender's room for a broadcast, the target for a private message.
+ *
+ * Settings:
+ *
+ * -Dload.host, -Dload.port: the server (default Driver.getHost() and
+ *  Driver.getPort())
+ * -Dload.clients: connections to open (default 100)
+ * -Dload.rate: messages per second across all clients (default 1000)
+ * -Dload.dmPercent: share of private messages (default 10)
+ * -Dload.rooms: spread the clients over this many rooms (default 1,
+ *  everybody stays in the lobby)
+ * -Dload.size: extra bytes of text per message (default 32)
+ * -Dload.binary: true to ask for the binary protocol
+ * -Dload.legacy: true to answer SUBMITNAME instead of sending HELLO
+ * -Dload.warmup, -Dload.seconds: seconds of warmup and of measuring
+ *  (default 5 and 30)
+ * -Dload.threads: selector threads (default: processors)
+ * -Dload.prefix: start of every screen name (default "load")
+ * -Dload.csv: also append the summary to this file
+ *
+ * Ephemeral ports run out at about 28k connections per source address,
+ * so beyond 20,000 clients on the loopback interface the connections
+ * are spread over 127.0.0.1, 127.0.0.2 and so on.
+ */
+public class LoadGenerator {
+	private static final String HOST = System.getProperty("load.host", Driver.getHost());
+	private static final int PORT = Integer.getInteger("load.port", Driver.getPort());
+	private static final int CLIENTS = Integer.getInteger("load.clients", 100);
+	private static final int RATE = Integer.getInteger("load.rate", 1000);
+	private static final int DM_PERCENT = Integer.getInteger("load.dmPercent", 10);
+	private static final int ROOMS = Math.max(1, Integer.getInteger("load.rooms", 1));
+	private static final int SIZE = Integer.getInteger("load.size", 32);
+	private static final boolean BINARY = Boolean.getBoolean("load.binary");
+	private static final boolean LEGACY = Boolean.getBoolean("load.legacy");
+	private static final int WARMUP_SECONDS = Integer.getInteger("load.warmup", 5);
+	private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+	private static final int THREADS = Integer.getInteger("load.threads", Runtime.getRuntime().availableProcessors());
+	private static final String PREFIX = System.getProperty("load.prefix", "load");
+
+	private static final int PER_SOURCE_ADDRESS = 20000;
+	private static final int IN_FLIGHT = 500;
+	private static final long GRACE_MILLIS = 2000;
+	private static final String CSV_HEADER = "clients,connected,rooms,dm%,binary,target msg/s,sent msg/s,"
+			+ "deliveries/s,delivered %,errors,p50 us,p90 us,p99 us,p99.9 us,max us";
+
+	private static final LongAdder sentBroadcasts = new LongAdder();
+	private static final LongAdder sentPrivate = new LongAdder();
+	private static final LongAdder expected = new LongAdder();
+	private static final LongAdder delivered = new LongAdder();
+	private static final LongAdder errors = new LongAdder();
+	private static final LongAdder ready = new LongAdder();
+	private static final LongAdder failed = new LongAdder();
+	private static final Histogram latencyMicros = new Histogram();
+
+	private static String padding;
+	private static int[] roomSizes;
+	private static volatile boolean sending;
+	// Messages sent from measureStart until measureEnd are measured.
+	private static volatile long measureStart = Long.MAX_VALUE;
+	private static volatile long measureEnd = Long.MAX_VALUE;
+
+	/**
+	 * One simulated client.  Only its worker's thread touches it.
+	 */
+	private static final class Connection {
+		final int index;
+		final String name;
+		final int room;
+		final SocketChannel channel;
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		ByteBuffer in = ByteBuffer.allocate(8192);
+		SelectionKey key;
+		// The server answers in binary after BINARYACCEPTED, but we can
+		// write binary as soon as the upgrade request is sent.
+		boolean binaryIn;
+		boolean binaryOut;
+		boolean upgradeRequested;
+		boolean ready;
+
+		Connection(int index, SocketChannel channel) {
+			this.index = index;
+			this.name = PREFIX + index;
+			this.room = index % ROOMS;
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * A selector thread with its share of the clients and of the rate.
+	 */
+	private static final class Worker extends Thread {
+		private final Selector selector;
+		private final List<Integer> toOpen = new ArrayList<Integer>();
+		private final List<Connection> connections = new ArrayList<Connection>();
+		private final long intervalNanos;
+		private volatile boolean running = true;
+		private int opening;
+		private long nextSend;
+
+		Worker(int index, double rate) throws IOException {
+			super("load-" + index);
+			this.selector = Selector.open();
+			this.intervalNanos = rate <= 0 ? Long.MAX_VALUE : (long) (1e9 / rate);
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					open();
+					long wait = send();
+					selector.select(Math.max(1, Math.min(100, wait / 1000000)));
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection c = (Connection) key.attachment();
+						try {
+							if (key.isConnectable()) {
+								c.channel.finishConnect();
+								key.interestOps(SelectionKey.OP_READ);
+								connected(c);
+							}
+							if (key.isValid() && key.isReadable())
+								read(c);
+							if (key.isValid() && key.isWritable())
+								flush(c);
+						} catch (IOException e) {
+							lost(c);
+						}
+					}
+				}
+			} catch (IOException e) {
+				System.out.println(e);
+			} finally {
+				for (Connection c : connections) {
+					try {
+						c.channel.close();
+					} catch (IOException ignored) { }
+				}
+			}
+		}
+
+		/**
+		 * Starts connecting more clients, keeping a bounded number of
+		 * handshakes in flight.
+		 */
+		private void open() {
+			while (!toOpen.isEmpty() && opening < IN_FLIGHT / THREADS + 1) {
+				int index = toOpen.remove(toOpen.size() - 1);
+				SocketChannel channel = null;
+				Connection c = null;
+				try {
+					channel = SocketChannel.open();
+					InetSocketAddress server = new InetSocketAddress(HOST, PORT);
+					if (CLIENTS > PER_SOURCE_ADDRESS && server.getAddress().isLoopbackAddress())
+						channel.bind(new InetSocketAddress("127.0.0." + (1 + index / PER_SOURCE_ADDRESS), 0));
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					c = new Connection(index, channel);
+					boolean connected = channel.connect(server);
+					c.key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, c);
+					connections.add(c);
+					opening++;
+					if (connected)
+						connected(c);
+				} catch (IOException e) {
+					if (c != null && connections.contains(c)) {
+						lost(c);
+						continue;
+					}
+					failed.increment();
+					if (channel != null) {
+						try {
+							channel.close();
+						} catch (IOException ignored) { }
+					}
+				}
+			}
+		}
+
+		/**
+		 * Signs in without waiting for SUBMITNAME, upgrading first if
+		 * asked to.
+		 */
+		private void connected(Connection c) throws IOException {
+			if (LEGACY)
+				return;
+			if (BINARY) {
+				c.upgradeRequested = true;
+				write(c, Protocols.UPGRADE, "");
+				c.binaryOut = true;
+			}
+			write(c, Protocols.HELLO, c.name);
+		}
+
+		/**
+		 * Sends whatever the pacing says is due.
+		 *
+		 * @return nanoseconds until the next message is due
+		 */
+		private long send() throws IOException {
+			if (!sending || connections.isEmpty())
+				return Long.MAX_VALUE;
+			long now = System.nanoTime();
+			if (nextSend == 0 || now - nextSend > 1000000000L)
+				nextSend = now;	// start, or give up on catching up
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while (now >= nextSend) {
+				Connection c = connections.get(random.nextInt(connections.size()));
+				if (c.ready)
+					sendMessage(c, random, now);
+				nextSend += intervalNanos;
+			}
+			return nextSend - now;
+		}
+
+		private void sendMessage(Connection c, ThreadLocalRandom random, long now) throws IOException {
+			boolean measured = now >= measureStart && now < measureEnd;
+			if (random.nextInt(100) < DM_PERCENT) {
+				String target = PREFIX + random.nextInt(CLIENTS);
+				write(c, Protocols.PM, "@" + target + " t=" + now + " " + padding);
+				if (measured) {
+					sentPrivate.increment();
+					expected.increment();
+				}
+			} else {
+				write(c, Protocols.BROADCAST, "t=" + now + " " + padding);
+				if (measured) {
+					sentBroadcasts.increment();
+					expected.add(roomSizes[c.room]);
+				}
+			}
+		}
+
+		private void write(Connection c, Protocols type, String payload) throws IOException {
+			byte[] bytes = c.binaryOut ? BinaryCodec.encode(type, payload)
+					: (BinaryCodec.toClientLine(type, payload) + "\n").getBytes(StandardCharsets.UTF_8);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (c.out.isEmpty()) {
+				c.channel.write(buffer);
+				if (!buffer.hasRemaining())
+					return;
+				c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			c.out.add(buffer);
+		}
+
+		private void flush(Connection c) throws IOException {
+			while (!c.out.isEmpty()) {
+				ByteBuffer buffer = c.out.peek();
+				c.channel.write(buffer);
+				if (buffer.hasRemaining())
+					return;
+				c.out.poll();
+			}
+			c.key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private void read(Connection c) throws IOException {
+			if (!c.in.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(c.in.capacity() * 2);
+				c.in.flip();
+				bigger.put(c.in);
+				c.in = bigger;
+			}
+			if (c.channel.read(c.in) < 0) {
+				lost(c);
+				return;
+			}
+
+			c.in.flip();
+			BinaryCodec.Message message;
+			while (c.channel.isOpen() && (message = decode(c)) != null)
+				handle(c, message);
+			c.in.compact();
+		}
+
+		/**
+		 * Takes the next complete message off the connection's buffer.
+		 *
+		 * @return the message, or null if it has not fully arrived
+		 */
+		private BinaryCodec.Message decode(Connection c) throws IOException {
+			ByteBuffer in = c.in;
+			int start = in.position();
+			if (!c.binaryIn) {
+				for (int i = start; i < in.limit(); i++) {
+					if (in.get(i) != '\n')
+						continue;
+					int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+					String line = new String(in.array(), start, end - start, StandardCharsets.UTF_8);
+					in.position(i + 1);
+					BinaryCodec.Message message = BinaryCodec.parseText(line);
+					return message != null ? message : new BinaryCodec.Message(Protocols.ERROR, line);
+				}
+				return null;
+			}
+
+			if (in.remaining() < 2)
+				return null;
+			Protocols type = Protocols.fromOpcode(in.get(start) & 0xFF);
+			int length = 0;
+			int pos = start + 1;
+			for (int shift = 0;; shift += 7) {
+				if (pos >= in.limit())
+					return null;
+				byte b = in.get(pos++);
+				length |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+			}
+			if (in.limit() - pos < length)
+				return null;
+			String payload = new String(in.array(), pos, length, StandardCharsets.UTF_8);
+			in.position(pos + length);
+			if (type == null)
+				throw new IOException("Unknown opcode from server");
+			return new BinaryCodec.Message(type, payload);
+		}
+
+		private void handle(Connection c, BinaryCodec.Message message) throws IOException {
+			switch (message.type) {
+			case SUBMITNAME:
+				if (c.ready || !LEGACY) {
+					break;
+				} else if (BINARY && !c.upgradeRequested) {
+					c.upgradeRequested = true;
+					write(c, Protocols.UPGRADE, "");
+				} else {
+					write(c, Protocols.SUBMITNAME, c.name);
+				}
+				break;
+			case BINARYACCEPTED:
+				c.binaryIn = true;
+				c.binaryOut = true;
+				break;
+			case REJECTED:
+				errors.increment();
+				lost(c);
+				break;
+			case NAMEACCEPTED:
+			case WELCOME:
+				if (c.room == 0)
+					ready(c);
+				else
+					write(c, Protocols.BROADCAST, "/join load-" + c.room);
+				break;
+			case JOINED:
+				ready(c);
+				break;
+			case PING:
+				write(c, Protocols.PONG, "");
+				break;
+			case BROADCAST:
+			case PRIVATEMESSAGETARGET:
+				received(message.payload);
+				break;
+			case ERROR:
+				errors.increment();
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void ready(Connection c) {
+			if (c.ready)
+				return;
+			c.ready = true;
+			opening--;
+			ready.increment();
+		}
+
+		private void lost(Connection c) {
+			if (!connections.remove(c))
+				return;
+			if (c.key != null)
+				c.key.cancel();
+			try {
+				c.channel.close();
+			} catch (IOException ignored) { }
+			if (c.ready)
+				ready.decrement();
+			else
+				opening--;
+			failed.increment();
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Records the delivery of a message this generator sent during the
+	 * measured period.
+	 */
+	private static void received(String payload) {
+		int t = payload.indexOf("t=");
+		if (t < 0)
+			return;
+		long sent = 0;
+		for (int i = t + 2; i < payload.length(); i++) {
+			char ch = payload.charAt(i);
+			if (ch < '0' || ch > '9')
+				break;
+			sent = sent * 10 + (ch - '0');
+		}
+		if (sent < measureStart || sent >= measureEnd)
+			return;
+		delivered.increment();
+		latencyMicros.record((System.nanoTime() - sent) / 1000);
+	}
+
+	public static void main(String[] args) throws Exception {
+		StringBuilder pad = new StringBuilder(SIZE);
+		for (int i = 0; i < SIZE; i++)
+			pad.append((char) ('a' + i % 26));
+		padding = pad.toString();
+
+		Worker[] workers = new Worker[Math.max(1, THREADS)];
+		for (int i = 0; i < workers.length; i++)
+			workers[i] = new Worker(i, (double) RATE / workers.length);
+		for (int i = 0; i < CLIENTS; i++)
+			workers[i % workers.length].toOpen.add(i);
+
+		System.out.println("Connecting " + CLIENTS + " clients to " + HOST + ":" + PORT + "...");
+		long connectStart = System.nanoTime();
+		for (Worker worker : workers)
+			worker.start();
+		while (ready.sum() + failed.sum() < CLIENTS && System.nanoTime() - connectStart < 120000000000L)
+			Thread.sleep(100);
+		System.out.println(ready.sum() + " connected, " + failed.sum() + " failed, in "
+				+ (System.nanoTime() - connectStart) / 1000000 + " ms");
+
+		// Room sizes are fixed from here on.
+		roomSizes = new int[ROOMS];
+		for (Worker worker : workers)
+			for (Connection c : worker.connections)
+				if (c.ready)
+					roomSizes[c.room]++;
+
+		sending = true;
+		for (Worker worker : workers)
+			worker.selector.wakeup();
+		Thread.sleep(WARMUP_SECONDS * 1000L);
+		long start = System.nanoTime();
+		measureEnd = start + SECONDS * 1000000000L;
+		measureStart = start;
+		Thread.sleep(SECONDS * 1000L);
+		sending = false;
+		// Let what was sent last arrive.
+		Thread.sleep(GRACE_MILLIS);
+		for (Worker worker : workers)
+			worker.shutdown();
+		for (Worker worker : workers)
+			worker.join();
+
+		report(ready.sum());
+	}
+
+	private static void report(long connected) throws IOException {
+		long sent = sentBroadcasts.sum() + sentPrivate.sum();
+		String row = String.format(Locale.ROOT, "%d,%d,%d,%d,%b,%d,%.1f,%.1f,%.2f,%d,%d,%d,%d,%d,%d",
+				CLIENTS, connected, ROOMS, DM_PERCENT, BINARY, RATE, (double) sent / SECONDS,
+				(double) delivered.sum() / SECONDS,
+				expected.sum() == 0 ? 0.0 : 100.0 * delivered.sum() / expected.sum(), errors.sum(),
+				latencyMicros.percentile(0.5), latencyMicros.percentile(0.9), latencyMicros.percentile(0.99),
+				latencyMicros.percentile(0.999), latencyMicros.percentile(1.0));
+		System.out.println(CSV_HEADER);
+		System.out.println(row);
+
+		String csv = System.getProperty("load.csv");
+		if (csv != null) {
+			File file = new File(csv);
+			boolean fresh = !file.exists() || file.length() == 0;
+			PrintWriter out = new PrintWriter(new FileWriter(file, true));
+			if (fresh)
+				out.println(CSV_HEADER);
+			out.println(row);
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package client;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.AbstractListModel;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
+
+import chatApp.Protocols;
+
+/**
+ * The scrolling list of chat messages.  Only the most recent
+ * chat.client.lines messages are kept (default 5000), in a ring that
+ * overwrites the oldest, so the client's memory stays flat however
+ * long it runs.
+ *
+ * Messages are rows of a JList with a fixed row height and width, so
+ * Swing never measures the whole history: it paints only the rows in
+ * view, and adding a message costs the same with 10 rows or 10,000.
+ * Each kind of message has one colour, looked up in a table built once;
+ * rows too wide for the window show in full as a tooltip.
+ *
+ * The view follows new messages while it is scrolled to the bottom.
+ * Scrolled up, it stays on the rows being read even as old ones drop
+ * off the top.
+ */
+public class MessageView extends JScrollPane {
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_LINES = Integer.getInteger("chat.client.lines", 5000);
+
+	private static final Font FONT = new Font("Lucida Console", Font.PLAIN, 12);
+	private static final Map<Protocols, Color> COLORS = new EnumMap<Protocols, Color>(Protocols.class);
+	static {
+		COLORS.put(Protocols.BROADCAST, Color.BLACK);
+		COLORS.put(Protocols.PRIVATEMESSAGESENDER, Color.BLUE);
+		COLORS.put(Protocols.PRIVATEMESSAGETARGET, new Color(0, 100, 0));	// Dark Green
+		COLORS.put(Protocols.ERROR, Color.RED);
+		COLORS.put(Protocols.REJECTED, Color.RED);
+		COLORS.put(Protocols.JOINED, Color.GRAY);
+		COLORS.put(Protocols.SEARCHRESULT, new Color(128, 0, 128));	// Purple
+		COLORS.put(Protocols.SEARCHDONE, Color.GRAY);
+	}
+
+	/**
+	 * One message: the kind it arrived as, which picks its colour, and
+	 * its text.
+	 */
+	static final class Entry {
+		final Protocols type;
+		final String text;
+
+		Entry(Protocols type, String text) {
+			this.type = type;
+			this.text = text;
+		}
+
+		// What the list copies to the clipboard.
+		public String toString() {
+			return text;
+		}
+	}
+
+	/**
+	 * The last capacity messages, oldest first.
+	 */
+	static final class Ring extends AbstractListModel<Entry> {
+		private static final long serialVersionUID = 1L;
+
+		private final Entry[] entries;
+		private int head;
+		private int size;
+
+		Ring(int capacity) {
+			if (capacity < 1)
+				throw new IllegalArgumentException("capacity must be positive: " + capacity);
+			entries = new Entry[capacity];
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public Entry getElementAt(int index) {
+			return entries[(head + index) % entries.length];
+		}
+
+		/**
+		 * Adds the messages at the end, with one event for the rows
+		 * dropped and one for the rows added.  Of a batch longer than the
+		 * ring only the tail is kept.
+		 *
+		 * @return the number of old messages dropped to make room
+		 */
+		int addAll(List<Entry> batch) {
+			int n = Math.min(batch.size(), entries.length);
+			if (n == 0)
+				return 0;
+			int dropped = Math.max(0, size + n - entries.length);
+			if (dropped > 0) {
+				head = (head + dropped) % entries.length;
+				size -= dropped;
+				fireIntervalRemoved(this, 0, dropped - 1);
+			}
+			for (int i = batch.size() - n; i < batch.size(); i++)
+				entries[(head + size++) % entries.length] = batch.get(i);
+			fireIntervalAdded(this, size - n, size - 1);
+			return dropped;
+		}
+
+		void clear() {
+			int n = size;
+			Arrays.fill(entries, null);
+			head = 0;
+			size = 0;
+			if (n > 0)
+				fireIntervalRemoved(this, 0, n - 1);
+		}
+	}
+
+	/**
+	 * Draws a row in its message kind's colour.  Swing reuses the one
+	 * label for every row.
+	 */
+	private static final class Renderer extends DefaultListCellRenderer {
+		private static final long serialVersionUID = 1L;
+
+		public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected,
+				boolean focused) {
+			Entry entry = (Entry) value;
+			super.getListCellRendererComponent(list, entry.text, index, selected, focused);
+			if (!selected) {
+				Color color = COLORS.get(entry.type);
+				setForeground(color == null ? Color.GRAY : color);
+			}
+			setToolTipText(getPreferredSize().width > list.getWidth() ? entry.text : null);
+			return this;
+		}
+	}
+
+	private final Ring ring;
+	private final JList<Entry> list;
+
+	public MessageView() {
+		this(DEFAULT_LINES);
+	}
+
+	/**
+	 * @param lines how many messages to keep
+	 */
+	public MessageView(int lines) {
+		ring = new Ring(lines);
+		list = new JList<Entry>(ring);
+		list.setFont(FONT);
+		list.setCellRenderer(new Renderer());
+		// Fixed sizes keep the list from measuring every row; a width
+		// this small lets the rows follow the window's width.
+		list.setFixedCellHeight(list.getFontMetrics(FONT).getHeight() + 2);
+		list.setFixedCellWidth(1);
+		// Renderer tooltips are only asked for once one is set.
+		list.setToolTipText("");
+		setViewportView(list);
+		setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+	}
+
+	/**
+	 * Adds a message at the bottom.  Safe to call from any thread; the
+	 * list itself is only touched on the Swing thread.
+	 *
+	 * @param type the kind of message, which picks its colour; anything
+	 *        without a colour of its own, or null for the client's own
+	 *        notices, is shown in grey
+	 */
+	public void append(final Protocols type, final String text) {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					append(type, text);
+				}
+			});
+			return;
+		}
+		append(Collections.singletonList(new Entry(type, text)));
+	}
+
+	/**
+	 * Adds a batch of messages with a single layout and scroll.  Call on
+	 * the Swing thread.
+	 */
+	void append(List<Entry> batch) {
+		JScrollBar bar = getVerticalScrollBar();
+		boolean following = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - list.getFixedCellHeight();
+		int dropped = ring.addAll(batch);
+
+		// Lay out now, so the list has its new size to scroll in.
+		list.revalidate();
+		validate();
+		JViewport viewport = getViewport();
+		if (following) {
+			list.ensureIndexIsVisible(ring.getSize() - 1);
+		} else if (dropped > 0) {
+			// Everything moved up; move the view with it.
+			Point p = viewport.getViewPosition();
+			viewport.setViewPosition(new Point(p.x, Math.max(0, p.y - dropped * list.getFixedCellHeight())));
+		}
+	}
+
+	/**
+	 * Forgets every message.  Call on the Swing thread.
+	 */
+	public void clear() {
+		ring.clear();
+	}
+
+	/**
+	 * @return the number of messages kept
+	 */
+	public int getMessageCount() {
+		return ring.getSize();
+	}
+}
@@ -0,0 +1,140 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+
+import chatApp.Protocols;
+
+/**
+ * Carries what the network thread reads over to the Swing thread.  The
+ * reader only adds to a lock-free queue; the Swing thread takes
+ * everything that piled up since its last turn in one go, appends the
+ * messages to the MessageView as one batch and runs any UI updates
+ * queued in between in their place.  However fast messages arrive there
+ * is at most one invokeLater waiting, so a burst costs one layout and
+ * one repaint per batch instead of one per message, and the window
+ * keeps answering input in between.
+ *
+ * A batch is at most MAX_BATCH items, so a flood is worked off over
+ * several turns of the event queue.  The label shows how many messages
+ * are still waiting and how long the oldest has waited, and is blank
+ * while the client keeps up.
+ */
+public final class ReceivePipeline {
+	private static final int MAX_BATCH = 1024;
+	// Waits shorter than this are not worth showing.
+	private static final long BEHIND_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+	/**
+	 * A message for the view, or an action to run on the Swing thread.
+	 */
+	private static final class Item {
+		final MessageView.Entry entry;
+		final Runnable action;
+		final long received = System.nanoTime();
+
+		Item(MessageView.Entry entry, Runnable action) {
+			this.entry = entry;
+			this.action = action;
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<Item>();
+	private final AtomicInteger backlog = new AtomicInteger();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final MessageView view;
+	private final JLabel status;
+	private final ArrayList<MessageView.Entry> batch = new ArrayList<MessageView.Entry>(MAX_BATCH);
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * @param status where to show the backlog, or null
+	 */
+	public ReceivePipeline(MessageView view, JLabel status) {
+		this.view = view;
+		this.status = status;
+	}
+
+	/**
+	 * Queues a message for the view.  Safe to call from any thread.
+	 */
+	public void message(Protocols type, String text) {
+		add(new Item(new MessageView.Entry(type, text), null));
+	}
+
+	/**
+	 * Runs the action on the Swing thread after the messages queued
+	 * before it are shown.  Safe to call from any thread.
+	 */
+	public void post(Runnable action) {
+		add(new Item(null, action));
+	}
+
+	/**
+	 * @return the number of messages and actions not yet handed to the
+	 *         Swing thread
+	 */
+	public int backlog() {
+		return backlog.get();
+	}
+
+	private void add(Item item) {
+		queue.add(item);
+		backlog.incrementAndGet();
+		if (scheduled.compareAndSet(false, true))
+			SwingUtilities.invokeLater(drain);
+	}
+
+	private void drain() {
+		// Cleared first: anything added from here on schedules the next
+		// batch, if this one does not take it.
+		scheduled.set(false);
+
+		Item first = queue.peek();
+		long waited = first == null ? 0 : System.nanoTime() - first.received;
+		int n = 0;
+		Item item;
+		while (n < MAX_BATCH && (item = queue.poll()) != null) {
+			n++;
+			if (item.action == null) {
+				batch.add(item.entry);
+			} else {
+				flush();
+				item.action.run();
+			}
+		}
+		flush();
+
+		int left = backlog.addAndGet(-n);
+		if (left > 0 && scheduled.compareAndSet(false, true))
+			SwingUtilities.invokeLater(drain);
+		show(left, waited);
+	}
+
+	private void flush() {
+		if (batch.isEmpty())
+			return;
+		view.append(batch);
+		batch.clear();
+	}
+
+	private void show(int left, long waitedNanos) {
+		if (status == null)
+			return;
+		// A space keeps the label's height while there is nothing to say.
+		String text = left == 0 && waitedNanos < BEHIND_NANOS ? " "
+				: "Behind: " + left + " waiting, " + TimeUnit.NANOSECONDS.toMillis(waitedNanos) + " ms";
+		if (!text.equals(status.getText()))
+			status.setText(text);
+	}
+}
@@ -0,0 +1,101 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what a broadcast costs in heap allocation.  The router measures
+ * the bytes its thread allocates while encoding and fanning out each
+ * message, so bytesPerDelivery shows the garbage produced for every
+ * copy of a message that reaches a client.
+ *
+ * Measuring relies on com.sun.management.ThreadMXBean; on JVMs without
+ * it only the frame and delivery counts are kept.
+ *
+ * Nothing is counted unless the JVM is started with
+ * -Dchat.allocation.stats=true, as the benchmarks do, so a server does
+ * not ask the MXBean on every broadcast.
+ */
+public final class AllocationStats {
+	public static final boolean ENABLED = Boolean.getBoolean("chat.allocation.stats");
+
+	private static final com.sun.management.ThreadMXBean threads = threadBean();
+
+	private static final LongAdder messages = new LongAdder();
+	private static final LongAdder deliveries = new LongAdder();
+	private static final LongAdder encodedBytes = new LongAdder();
+	private static final LongAdder allocatedBytes = new LongAdder();
+
+	private AllocationStats() {
+	}
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		try {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled())
+				return bean;
+		} catch (ClassCastException e) {
+			// not a HotSpot-style JVM
+		}
+		return null;
+	}
+
+	/**
+	 * @return the bytes allocated so far by the calling thread, or -1 if
+	 *         that cannot be measured
+	 */
+	public static long currentThreadAllocatedBytes() {
+		return threads == null ? -1 : threads.getCurrentThreadAllocatedBytes();
+	}
+
+	/**
+	 * Records one message that was encoded once and delivered to some
+	 * number of clients.
+	 *
+	 * @param allocatedSince what currentThreadAllocatedBytes returned
+	 *        before the message was encoded
+	 */
+	static void record(Frame frame, int delivered, long allocatedSince) {
+		messages.increment();
+		deliveries.add(delivered);
+		encodedBytes.add(frame.payloadLength());
+		if (allocatedSince >= 0)
+			allocatedBytes.add(currentThreadAllocatedBytes() - allocatedSince);
+	}
+
+	public static long messages() {
+		return messages.sum();
+	}
+
+	public static long deliveries() {
+		return deliveries.sum();
+	}
+
+	public static long encodedBytes() {
+		return encodedBytes.sum();
+	}
+
+	public static long allocatedBytes() {
+		return allocatedBytes.sum();
+	}
+
+	/**
+	 * @return heap bytes allocated per message copy delivered to a client
+	 */
+	public static double bytesPerDelivery() {
+		long n = deliveries.sum();
+		return n == 0 ? 0 : (double) allocatedBytes.sum() / n;
+	}
+
+	public static void reset() {
+		messages.reset();
+		deliveries.reset();
+		encodedBytes.reset();
+		allocatedBytes.reset();
+	}
+
+	public static String summary() {
+		return String.format("messages=%d deliveries=%d encodedBytes=%d allocatedBytes=%d bytesPerDelivery=%.1f",
+				messages(), deliveries(), encodedBytes(), allocatedBytes(), bytesPerDelivery());
+	}
+}
@@ -0,0 +1,228 @@
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import chatApp.LineTooLongException;
+import chatApp.Protocols;
+
+/**
+ * The thread-per-connection transport.  Every client gets a handler
+ * thread that reads lines off the socket into its Session,
+ * and a writer thread that drains its outbound queue onto the socket's
+ * channel, so a client that stops reading cannot stall the others.
+ * The writer hands whatever has piled up to one gathering write
+ * instead of writing line by line; see FlushPolicy.  The handler reads
+ * the channel into a direct buffer of its own and decodes it with a
+ * LineDecoder, as the nio transport does.
+ *
+ * With a factory for virtual threads, one server can hold far more
+ * idle connections.  Nothing a handler does while holding a monitor
+ * blocks on I/O: the registry is lock-free, outbound queues use a
+ * ReentrantLock and a Session never waits on its socket, so virtual
+ * threads are never pinned to their carrier.
+ */
+final class BlockingTransport implements Transport {
+	private static final int READ_BUFFER_BYTES = 8192;
+
+	private final ThreadFactory threads;
+	private final String description;
+	private ServerCore core;
+
+	/**
+	 * @param threads makes the handler and writer threads
+	 * @param description what the threads are, for the log
+	 */
+	BlockingTransport(ThreadFactory threads, String description) {
+		this.threads = threads;
+		this.description = description;
+	}
+
+	public Executor[] open(ServerCore core) {
+		this.core = core;
+		return null;
+	}
+
+	public void start() {
+	}
+
+	public void accept(SocketChannel channel, FloodControl.Client limits) {
+		threads.newThread(new Handler(channel.socket(), limits)).start();
+	}
+
+	public String toString() {
+		return "blocking, " + description;
+	}
+
+	/**
+	 * A handler task.  Handlers are spawned from the listening loop,
+	 * each on its own thread, and are responsible for a dealing with a
+	 * single client.
+	 */
+	private final class Handler implements Runnable, OutboundQueue.Listener, Session.Link, LineDecoder.Handler {
+		private final Socket connection;
+		private final OutboundQueue queue;
+		private final Session session;
+		private final LineDecoder decoder;
+
+		/**
+		 * Constructs a handler, squirreling away the socket.  All the
+		 * interesting work is done in the run method.
+		 */
+		Handler(Socket socket, FloodControl.Client limits) {
+			this.connection = socket;
+			this.queue = core.newQueue(this);
+			this.session = core.newSession(queue, limits, this);
+			this.decoder = new LineDecoder(core.getMaxLineBytes());
+		}
+
+		// The writer thread blocks in take(), so there is nothing to wake.
+		public void onReady() {
+		}
+
+		/**
+		 * The client fell too far behind; closing the socket also ends
+		 * the reading loop in run.
+		 */
+		public void onOverflow() {
+			drop();
+		}
+
+		// Only called while the decoder is handing over a line.
+		public void upgrade() {
+			decoder.setBinary(true);
+		}
+
+		public void drop() {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+
+		// The handler thread is busy reading; the session locks itself.
+		public void execute(Runnable task) {
+			task.run();
+		}
+
+		public void line(InboundLine line) {
+			session.line(line);
+		}
+
+		/**
+		 * Hands every line the client sends to its session until the
+		 * client or the session ends the connection.
+		 */
+		public void run() {
+			try {
+				// Outbound frames are already encoded and go straight to
+				// the socket's channel; the reads come from it too.
+				SocketChannel channel = connection.getChannel();
+				threads.newThread(new Writer(queue, channel)).start();
+				session.open();
+				ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+				int n;
+				while (!session.isClosed() && (n = channel.read(in)) >= 0) {
+					ServerMetrics.bytesIn(n);
+					in.flip();
+					decoder.decode(in, this);
+					in.clear();
+				}
+			} catch (LineTooLongException e) {
+				ServerMetrics.lineTooLong();
+				String name = session.getName();
+				System.out.println("[SERVER] Dropping " + (name == null ? "a client" : name) + ": " + e.getMessage());
+			} catch (IOException e) {
+				if (!session.isClosed())
+					System.out.println(e);
+			} finally {
+				// This client is going down!  Remove its name and its
+				// outbound queue from the registry, and close its socket.
+				session.close();
+				drop();
+			}
+		}
+	}
+
+	/**
+	 * Drains one client's outbound queue onto its socket.  This is the
+	 * only thread that ever blocks on that client's writes.  After the
+	 * first frame arrives it waits up to the FlushPolicy delay for more
+	 * and then writes the whole batch at once.
+	 */
+	private static final class Writer implements Runnable {
+		private final OutboundQueue queue;
+		private final SocketChannel channel;
+		private final Frame[] frames = new Frame[FlushPolicy.MAX_FRAMES];
+		private final ByteBuffer[] batch = new ByteBuffer[FlushPolicy.MAX_FRAMES];
+
+		Writer(OutboundQueue queue, SocketChannel channel) {
+			this.queue = queue;
+			this.channel = channel;
+		}
+
+		public void run() {
+			try {
+				// Everything after the acknowledgement goes out in binary.
+				boolean binary = false;
+				Frame first;
+				while ((first = queue.take()) != null) {
+					long readySince = System.nanoTime();
+					frames[0] = first;
+					int n = 1 + queue.drainTo(frames, 1);
+					long pending = payloadBytes(0, n);
+
+					// Give other frames a moment to join the batch.
+					long deadline = readySince + FlushPolicy.FLUSH_DELAY_NANOS;
+					long wait;
+					while (n < frames.length && pending < FlushPolicy.FLUSH_BYTES
+							&& (wait = deadline - System.nanoTime()) > 0) {
+						Frame next = queue.poll(wait, TimeUnit.NANOSECONDS);
+						if (next == null)
+							break;
+						int from = n;
+						frames[n++] = next;
+						n += queue.drainTo(frames, n);
+						pending += payloadBytes(from, n);
+					}
+
+					long bytes = 0;
+					for (int i = 0; i < n; i++) {
+						batch[i] = frames[i].buffer(binary);
+						bytes += batch[i].remaining();
+						if (frames[i].type() == Protocols.BINARYACCEPTED)
+							binary = true;
+						frames[i] = null;
+					}
+					FlushStats.record(n, bytes, System.nanoTime() - readySince);
+
+					// A blocking channel may still write only part of it.
+					int start = 0;
+					while (start < n) {
+						channel.write(batch, start, n - start);
+						while (start < n && !batch[start].hasRemaining())
+							batch[start++] = null;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) {
+				// The reading side notices the broken socket and cleans up.
+				queue.close();
+			}
+		}
+
+		private long payloadBytes(int from, int to) {
+			long bytes = 0;
+			for (int i = from; i < to; i++)
+				bytes += frames[i].payloadLength();
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * The set of uniquely named clients, shared by every connection.
+ *
+ * Unlike the synchronized Hashtable it replaces, nothing here takes a
+ * global lock: a name is claimed with a single putIfAbsent, a private
+ * message target is a plain hash lookup, and broadcasting walks the
+ * live view of the map, which never blocks concurrent registration or
+ * removal (clients joining or leaving mid-broadcast may or may not
+ * receive that one message).
+ *
+ * Clients can also be looked up by the UTF-8 bytes of their name, as
+ * they arrive in a private message, through a reusable Key, so routing
+ * one does not turn the target into a String.  The second index is kept
+ * beside the first and is just as weakly consistent.
+ *
+ * @param <T> whatever a server uses to reach a client
+ */
+public final class ClientRegistry<T> {
+	private final ConcurrentHashMap<String, T> clients;
+	private final ConcurrentHashMap<Key, T> byBytes;
+
+	/**
+	 * A name as UTF-8 bytes.  The registry keeps keys of its own; a
+	 * caller keeps one to look names up with, pointing it at each name
+	 * in turn with set, and must not share it between threads.
+	 */
+	public static final class Key {
+		private byte[] bytes;
+		private int length;
+		private int hash;
+
+		public Key() {
+			this.bytes = new byte[32];
+		}
+
+		private Key(String name) {
+			this.bytes = name.getBytes(StandardCharsets.UTF_8);
+			this.length = bytes.length;
+			this.hash = hash(bytes, length);
+		}
+
+		/**
+		 * Copies bytes [from, to) of buffer, by absolute index, into this
+		 * key.  Only allocates for a name longer than any before it.
+		 *
+		 * @return this key
+		 */
+		public Key set(ByteBuffer buffer, int from, int to) {
+			length = to - from;
+			if (length > bytes.length)
+				bytes = new byte[length];
+			for (int i = 0; i < length; i++)
+				bytes[i] = buffer.get(from + i);
+			hash = hash(bytes, length);
+			return this;
+		}
+
+		private static int hash(byte[] bytes, int length) {
+			int h = 1;
+			for (int i = 0; i < length; i++)
+				h = 31 * h + bytes[i];
+			return h;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return hash == other.hash && Arrays.equals(bytes, 0, length, other.bytes, 0, other.length);
+		}
+
+		/**
+		 * @return the name; allocates
+		 */
+		public String toString() {
+			return new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	public ClientRegistry() {
+		this(16);
+	}
+
+	public ClientRegistry(int expectedClients) {
+		this.clients = new ConcurrentHashMap<String, T>(expectedClients);
+		this.byBytes = new ConcurrentHashMap<Key, T>(expectedClients);
+	}
+
+	/**
+	 * Atomically claims a screen name.
+	 *
+	 * @return true if the name was free and now belongs to the client
+	 */
+	public boolean claim(String name, T client) {
+		if (clients.putIfAbsent(name, client) != null)
+			return false;
+		index(name);
+		return true;
+	}
+
+	/**
+	 * Frees a name, but only if it still belongs to the given client.
+	 */
+	public boolean release(String name, T client) {
+		if (!clients.remove(name, client))
+			return false;
+		index(name);
+		return true;
+	}
+
+	/**
+	 * Hands a name from one client to another, but only if it still
+	 * belongs to the first.
+	 */
+	public boolean replace(String name, T from, T to) {
+		if (!clients.replace(name, from, to))
+			return false;
+		index(name);
+		return true;
+	}
+
+	/**
+	 * Brings the byte index in line with the name's current owner.  The
+	 * index is recomputed from the map rather than changed the same way,
+	 * so whichever update of a name runs last leaves it right.
+	 */
+	private void index(final String name) {
+		byBytes.compute(new Key(name), new BiFunction<Key, T, T>() {
+			public T apply(Key key, T indexed) {
+				return clients.get(name);
+			}
+		});
+	}
+
+	/**
+	 * @return the client with the given name, or null if nobody has it
+	 */
+	public T lookup(String name) {
+		return clients.get(name);
+	}
+
+	/**
+	 * @return the client whose name has the bytes key was set to, or
+	 *         null if nobody has it
+	 */
+	public T lookup(Key name) {
+		return byBytes.get(name);
+	}
+
+	public boolean contains(String name) {
+		return clients.containsKey(name);
+	}
+
+	public int size() {
+		return clients.size();
+	}
+
+	/**
+	 * @return a live, weakly consistent view of all clients, for
+	 *         broadcasting
+	 */
+	public Collection<T> clients() {
+		return clients.values();
+	}
+
+	/**
+	 * @return a live, weakly consistent view of all claimed names
+	 */
+	public Iterable<String> names() {
+		return clients.keySet();
+	}
+}
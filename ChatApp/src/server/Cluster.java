@@ -0,0 +1,495 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import chatApp.ServerConfig;
+
+/**
+ * Links several chat server processes into one chat.  Clients connect
+ * to any node; a broadcast reaches the room on every node, and a
+ * private message finds its target wherever it is connected.
+ *
+ * The nodes are fixed and every node is told about all the others.
+ * Each screen name has a home node, picked by hashing the name over the
+ * sorted node ids, and only the home decides who gets it, so a name is
+ * unique across the cluster just as it is on one server.  Claiming a
+ * name homed elsewhere is one round trip to its home.  While the home is
+ * unreachable its names cannot be claimed.
+ *
+ * The home also remembers which node holds each of its names, which is
+ * how a private message is routed: it goes to the target's home, on to
+ * the node the target is connected to, and the outcome comes back to
+ * the sender's node so the sender gets the usual echo or error.
+ *
+ * Broadcasts go straight to every other node, which publishes them to
+ * its own members of the room and keeps them in its history and log.
+ * Delivery between nodes is at most once: a node that is down or cut
+ * off misses what is said meanwhile.  When a node's link goes quiet for
+ * too long its names are freed; when it comes back it claims the names
+ * of its clients again, and a name someone else took in the meantime is
+ * reported in the log.
+ *
+ * Nodes prove they belong to the cluster with a shared secret.  A node
+ * sends every connection it accepts a random challenge, and the dialer
+ * answers in its HELLO with an HMAC-SHA256 of the challenge and its id
+ * keyed with the secret; nothing else is read from a connection until
+ * that checks out.
+ *
+ * A node joins a cluster when -Dchat.cluster.node is set to its id.
+ * -Dchat.cluster.secret, the shared secret, must then be set to the
+ * same value on every node.  The other settings are
+ * -Dchat.cluster.listen, the port other nodes connect to,
+ * -Dchat.cluster.bind, the address it is opened on (default chat.bind,
+ * or every interface), -Dchat.cluster.peers, a comma separated list of
+ * id@host:port for every other node, -Dchat.cluster.queue, the most
+ * messages queued per link (default 65536), and
+ * -Dchat.cluster.claimMillis, how long to wait for a name's home
+ * (default 2000).
+ */
+public final class Cluster {
+	/**
+	 * How the cluster reaches the clients connected to this node.
+	 */
+	public interface Listener {
+		/**
+		 * Publishes a broadcast another node received to this node's
+		 * members of the room.
+		 */
+		void onBroadcast(String room, String sender, String text);
+
+		/**
+		 * Delivers a private message to a client of this node.
+		 *
+		 * @return false if the target is not connected here
+		 */
+		boolean onPrivateMessage(String sender, String target, String text);
+
+		/**
+		 * Tells a client of this node whether its private message to a
+		 * client elsewhere was delivered.
+		 */
+		void onPrivateMessageResult(String sender, String target, String text, boolean delivered);
+
+		/**
+		 * @return the names of the clients connected to this node
+		 */
+		Iterable<String> localNames();
+	}
+
+	/**
+	 * Told whether a name was granted, on whichever thread found out.
+	 */
+	public interface ClaimListener {
+		void claimed(boolean granted);
+	}
+
+	// A lost link is noticed after this many idle intervals of silence.
+	private static final int SILENT_INTERVALS = 5;
+
+	private static final String NO_CLAIM = "0";
+	private static final int CHALLENGE_BYTES = 16;
+	private static final String MAC = "HmacSHA256";
+
+	private final String nodeId;
+	private final InetSocketAddress listenAddress;
+	private final SecretKeySpec secret;
+	private final SecureRandom random = new SecureRandom();
+	private final List<String> members;
+	private final Map<String, PeerLink> links = new LinkedHashMap<String, PeerLink>();
+	private final long claimMillis;
+	// The names homed here and the node each one is connected to.
+	private final ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<String, String>();
+	// The connection each peer currently sends on.
+	private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<String, Socket>();
+	private final ConcurrentHashMap<Long, ClaimListener> claims = new ConcurrentHashMap<Long, ClaimListener>();
+	private final AtomicLong nextClaim = new AtomicLong(1);
+	private final TimerWheel timers = new TimerWheel("chat-cluster-timer", 100, 64);
+	private volatile Listener listener;
+
+	/**
+	 * @param listenAddress where the other nodes connect to
+	 * @param secret the secret every node of the cluster shares
+	 * @param peers the address of every other node, by node id
+	 */
+	public Cluster(String nodeId, InetSocketAddress listenAddress, String secret, Map<String, InetSocketAddress> peers,
+			int queueCapacity, long claimMillis) {
+		this.nodeId = nodeId;
+		this.listenAddress = listenAddress;
+		this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC);
+		this.claimMillis = claimMillis;
+		List<String> ids = new ArrayList<String>(peers.keySet());
+		ids.add(nodeId);
+		Collections.sort(ids);
+		this.members = Collections.unmodifiableList(ids);
+		for (Map.Entry<String, InetSocketAddress> peer : peers.entrySet())
+			links.put(peer.getKey(), new PeerLink(this, peer.getKey(), peer.getValue(), queueCapacity));
+	}
+
+	/**
+	 * Sets up the cluster configured with the chat.cluster.* settings.
+	 *
+	 * @return the cluster, or null if chat.cluster.node is not set
+	 * @throws IllegalArgumentException if chat.cluster.secret is not set
+	 */
+	public static Cluster fromConfig(ServerConfig config) {
+		String nodeId = config.getString("cluster.node", null);
+		if (nodeId == null)
+			return null;
+		String secret = config.getString("cluster.secret", "");
+		if (secret.isEmpty())
+			throw new IllegalArgumentException("chat.cluster.secret must be set to the same value on every node");
+		int port = config.getInt("cluster.listen", 9090);
+		String host = config.getString("cluster.bind", config.getString("bind", null));
+
+		Map<String, InetSocketAddress> peers = new LinkedHashMap<String, InetSocketAddress>();
+		for (String peer : config.getString("cluster.peers", "").split(",")) {
+			peer = peer.trim();
+			if (peer.isEmpty())
+				continue;
+			int at = peer.indexOf('@');
+			int colon = peer.lastIndexOf(':');
+			if (at <= 0 || colon < at)
+				throw new IllegalArgumentException("Expected id@host:port in chat.cluster.peers, not " + peer);
+			peers.put(peer.substring(0, at),
+					new InetSocketAddress(peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+		}
+		return new Cluster(nodeId,
+				host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port),
+				secret,
+				peers,
+				config.getInt("cluster.queue", 65536),
+				config.getLong("cluster.claimMillis", 2000));
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return every node id, this one included, sorted
+	 */
+	public List<String> getMembers() {
+		return members;
+	}
+
+	void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts listening for the other nodes and dialing them.
+	 */
+	public void start() throws IOException {
+		final ServerSocket server = new ServerSocket();
+		server.bind(listenAddress);
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						final Socket socket = server.accept();
+						Thread reader = new Thread(new Runnable() {
+							public void run() {
+								read(socket);
+							}
+						}, "chat-cluster-in");
+						reader.setDaemon(true);
+						reader.start();
+					} catch (IOException e) {
+						System.out.println("[CLUSTER] " + e);
+						return;
+					}
+				}
+			}
+		}, "chat-cluster-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		for (PeerLink link : links.values())
+			link.start();
+		System.out.println("[CLUSTER] Node " + nodeId + " of " + members + ", listening on " + listenAddress);
+	}
+
+	/**
+	 * @return the proof that the node knows the cluster secret, for the
+	 *         challenge it was sent
+	 */
+	String prove(String challenge, String node) {
+		try {
+			Mac mac = Mac.getInstance(MAC);
+			mac.init(secret);
+			mac.update(challenge.getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 0);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(
+					mac.doFinal(node.getBytes(StandardCharsets.UTF_8)));
+		} catch (GeneralSecurityException e) {
+			// Every Java platform has HmacSHA256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the node that decides who gets the name
+	 */
+	public String home(String name) {
+		return members.get(Math.floorMod(name.hashCode(), members.size()));
+	}
+
+	/**
+	 * Asks the name's home for it.  The answer may come on this thread
+	 * or, if the home is another node, later on another thread.  A home
+	 * that does not answer in time counts as a refusal.
+	 */
+	public void claim(final String name, final ClaimListener done) {
+		String home = home(name);
+		if (home.equals(nodeId)) {
+			done.claimed(owners.putIfAbsent(name, nodeId) == null);
+			return;
+		}
+
+		final PeerLink link = links.get(home);
+		final long id = nextClaim.getAndIncrement();
+		claims.put(id, done);
+		if (!link.send(PeerLink.encode(PeerLink.CLAIM, Long.toString(id), name, nodeId))) {
+			if (claims.remove(id) != null)
+				done.claimed(false);
+			return;
+		}
+		timers.schedule(new TimerWheel.Task() {
+			public void expired() {
+				if (claims.remove(id) != null) {
+					// A late grant must not keep the name taken.
+					link.send(PeerLink.encode(PeerLink.RELEASE, name, nodeId));
+					done.claimed(false);
+				}
+			}
+		}, claimMillis);
+	}
+
+	/**
+	 * Claims a name and waits for the answer.
+	 *
+	 * @return true if the name now belongs to a client of this node
+	 */
+	public boolean claim(String name) {
+		final CountDownLatch answered = new CountDownLatch(1);
+		final boolean[] granted = new boolean[1];
+		claim(name, new ClaimListener() {
+			public void claimed(boolean ok) {
+				granted[0] = ok;
+				answered.countDown();
+			}
+		});
+		try {
+			// The timer answers within claimMillis and a tick.
+			answered.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return granted[0];
+	}
+
+	/**
+	 * Gives a name claimed by this node back to its home.
+	 */
+	public void release(String name) {
+		String home = home(name);
+		if (home.equals(nodeId))
+			owners.remove(name, nodeId);
+		else
+			links.get(home).send(PeerLink.encode(PeerLink.RELEASE, name, nodeId));
+	}
+
+	/**
+	 * Sends a broadcast made on this node to every other node.  It is
+	 * encoded once for all of them.
+	 */
+	public void broadcast(String room, String sender, String text) {
+		if (links.isEmpty())
+			return;
+		ByteBuffer message = PeerLink.encode(PeerLink.BROADCAST, room, sender, text);
+		for (PeerLink link : links.values())
+			link.send(message);
+	}
+
+	/**
+	 * Sends a private message to a client that is not connected to this
+	 * node.  The listener hears how it went.
+	 */
+	public void privateMessage(String sender, String target, String text) {
+		routePrivateMessage(nodeId, sender, target, text);
+	}
+
+	private void routePrivateMessage(String origin, String sender, String target, String text) {
+		String next = home(target);
+		if (next.equals(nodeId)) {
+			next = owners.get(target);
+			if (next == null) {
+				privateMessageResult(origin, sender, target, text, false);
+				return;
+			}
+			if (next.equals(nodeId)) {
+				deliverPrivateMessage(origin, sender, target, text);
+				return;
+			}
+		}
+		if (!links.get(next).send(PeerLink.encode(PeerLink.PM, origin, sender, target, text)))
+			privateMessageResult(origin, sender, target, text, false);
+	}
+
+	private void deliverPrivateMessage(String origin, String sender, String target, String text) {
+		privateMessageResult(origin, sender, target, text, listener.onPrivateMessage(sender, target, text));
+	}
+
+	private void privateMessageResult(String origin, String sender, String target, String text, boolean delivered) {
+		if (origin.equals(nodeId))
+			listener.onPrivateMessageResult(sender, target, text, delivered);
+		else
+			links.get(origin).send(PeerLink.encode(PeerLink.PM_RESULT, sender, target, text, delivered ? "1" : "0"));
+	}
+
+	/**
+	 * Called by a link once it is connected: claims again every name of
+	 * this node that is homed on the peer, in case the peer restarted or
+	 * freed them while the link was down.
+	 */
+	void linkUp(PeerLink link) {
+		Listener l = listener;
+		if (l == null)
+			return;
+		for (String name : l.localNames()) {
+			if (home(name).equals(link.getPeer()))
+				link.send(PeerLink.encode(PeerLink.CLAIM, NO_CLAIM, name, nodeId));
+		}
+	}
+
+	/**
+	 * Challenges a peer to prove it knows the secret, then reads
+	 * everything it sends until its connection goes away or falls
+	 * silent, and frees the names it held here.
+	 */
+	private void read(Socket socket) {
+		String peer = null;
+		try {
+			socket.setSoTimeout((int) (SILENT_INTERVALS * PeerLink.IDLE_MILLIS));
+			byte[] nonce = new byte[CHALLENGE_BYTES];
+			random.nextBytes(nonce);
+			String challenge = Base64.getUrlEncoder().withoutPadding().encodeToString(nonce);
+			PeerLink.write(socket.getOutputStream(), PeerLink.encode(PeerLink.CHALLENGE, challenge));
+
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			PeerLink.Message hello = PeerLink.read(in);
+			if (hello == null || hello.type != PeerLink.HELLO || hello.fields.length != 2
+					|| !links.containsKey(hello.fields[0])
+					|| !MessageDigest.isEqual(prove(challenge, hello.fields[0]).getBytes(StandardCharsets.US_ASCII),
+							hello.fields[1].getBytes(StandardCharsets.UTF_8))) {
+				System.out.println("[CLUSTER] Refused a connection from " + socket.getRemoteSocketAddress());
+				return;
+			}
+			peer = hello.fields[0];
+			Socket previous = inbound.put(peer, socket);
+			if (previous != null)
+				previous.close();
+			// The peer may have restarted and forgotten our names.
+			PeerLink back = links.get(peer);
+			if (back.isUp())
+				linkUp(back);
+
+			PeerLink.Message message;
+			while ((message = PeerLink.read(in)) != null)
+				handle(peer, message);
+		} catch (SocketTimeoutException e) {
+			System.out.println("[CLUSTER] Node " + peer + " went silent");
+		} catch (IOException e) {
+			System.out.println("[CLUSTER] " + e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ignored) { }
+			// A peer that already reconnected keeps its names.
+			if (peer != null && inbound.remove(peer, socket))
+				peerLost(peer);
+		}
+	}
+
+	private void handle(String peer, PeerLink.Message message) {
+		String[] f = message.fields;
+		switch (message.type) {
+		case PeerLink.NOOP:
+			break;
+		case PeerLink.CLAIM: {
+			String holder = owners.putIfAbsent(f[1], f[2]);
+			boolean granted = holder == null || (f[0].equals(NO_CLAIM) && holder.equals(f[2]));
+			if (f[0].equals(NO_CLAIM)) {
+				if (!granted)
+					System.out.println("[CLUSTER] " + f[1] + " on node " + f[2] + " is already taken on node " + holder);
+			} else {
+				links.get(peer).send(PeerLink.encode(granted ? PeerLink.GRANTED : PeerLink.DENIED, f[0]));
+			}
+			break;
+		}
+		case PeerLink.GRANTED:
+		case PeerLink.DENIED: {
+			ClaimListener done = claims.remove(Long.parseLong(f[0]));
+			if (done != null)
+				done.claimed(message.type == PeerLink.GRANTED);
+			break;
+		}
+		case PeerLink.RELEASE:
+			owners.remove(f[0], f[1]);
+			break;
+		case PeerLink.BROADCAST:
+			listener.onBroadcast(f[0], f[1], f[2]);
+			break;
+		case PeerLink.PM:
+			if (home(f[2]).equals(nodeId))
+				routePrivateMessage(f[0], f[1], f[2], f[3]);
+			else
+				deliverPrivateMessage(f[0], f[1], f[2], f[3]);
+			break;
+		case PeerLink.PM_RESULT:
+			listener.onPrivateMessageResult(f[0], f[1], f[2], f[3].equals("1"));
+			break;
+		default:
+			System.out.println("[CLUSTER] Unknown message type " + message.type + " from " + peer);
+		}
+	}
+
+	/**
+	 * Frees every name the lost node held here.
+	 */
+	private void peerLost(String peer) {
+		int freed = 0;
+		for (Iterator<Map.Entry<String, String>> it = owners.entrySet().iterator(); it.hasNext();) {
+			if (it.next().getValue().equals(peer)) {
+				it.remove();
+				freed++;
+			}
+		}
+		System.out.println("[CLUSTER] Lost node " + peer + "; freed " + freed + " names");
+	}
+}
@@ -0,0 +1,182 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import chatApp.LineTooLongException;
+
+/**
+ * A single selector thread.  Every connection is owned by exactly one
+ * loop and all of its reads, writes and state changes happen on that
+ * loop's thread, so a connection never needs a lock of its own.  Other
+ * threads talk to a connection by handing its loop a task.
+ *
+ * The loop also times delayed flushes.  Every connection waits the same
+ * FlushPolicy delay, so deadlines are queued in the order they fall due
+ * and the select timeout is taken from the first one.
+ *
+ * Every connection of a loop reads into the loop's one direct buffer.
+ * A read is decoded before the next one starts, so the lines it holds
+ * are never overwritten while in use.
+ *
+ * Loops are also the shards rooms publish on.  Tasks queued while the
+ * loop is running tasks wait for its next turn, so a room that keeps
+ * requeueing itself cannot starve the loop's sockets.
+ */
+final class EventLoop extends Thread implements Executor {
+	private final ServerCore core;
+	private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+	private final Selector selector;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ArrayDeque<NioConnection> flushes = new ArrayDeque<NioConnection>();
+
+	EventLoop(ServerCore core, int index) throws IOException {
+		super("chat-loop-" + index);
+		this.core = core;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Runs the task on this loop's thread.  Safe to call from any thread.
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (Thread.currentThread() != this)
+			selector.wakeup();
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * @return the buffer connections read into; only used on this
+	 *         loop's thread
+	 */
+	ByteBuffer readBuffer() {
+		return readBuffer;
+	}
+
+	/**
+	 * Flushes the connection once its flush deadline has passed.  Only
+	 * called on this loop's thread.
+	 */
+	void flushLater(NioConnection connection) {
+		flushes.add(connection);
+	}
+
+	/**
+	 * Hands a freshly accepted channel, and the limits it is held to,
+	 * to this loop.
+	 */
+	void register(final SocketChannel channel, final FloodControl.Client limits) {
+		execute(new Runnable() {
+			public void run() {
+				NioConnection connection = new NioConnection(core, EventLoop.this, channel, limits);
+				try {
+					channel.configureBlocking(false);
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+					connection.start(key);
+				} catch (IOException e) {
+					System.out.println(e);
+					connection.close();
+				}
+			}
+		});
+	}
+
+	public void run() {
+		while (!isInterrupted()) {
+			try {
+				// Tasks queued from this thread did not wake the selector.
+				long wait = nanosUntilFlush();
+				if (!tasks.isEmpty() || wait == 0) {
+					selector.selectNow();
+				} else if (wait < 0) {
+					selector.select();
+				} else if (wait >= TimeUnit.MILLISECONDS.toNanos(1)) {
+					selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+				} else {
+					// select cannot time out in less than a millisecond.
+					LockSupport.parkNanos(wait);
+					selector.selectNow();
+				}
+			} catch (IOException e) {
+				System.out.println(e);
+				return;
+			}
+
+			runTasks();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				NioConnection connection = (NioConnection) key.attachment();
+				try {
+					if (key.isValid() && key.isReadable())
+						connection.onReadable();
+					if (key.isValid() && key.isWritable())
+						connection.onWritable();
+				} catch (ClosedChannelException e) {
+					connection.close();
+				} catch (LineTooLongException e) {
+					ServerMetrics.lineTooLong();
+					System.out.println("[SERVER] Dropping " + (connection.getName() == null ? "a client" : connection.getName())
+							+ ": " + e.getMessage());
+					connection.close();
+				} catch (IOException e) {
+					System.out.println(e);
+					connection.close();
+				}
+			}
+
+			runFlushes();
+		}
+	}
+
+	/**
+	 * @return nanoseconds until the next flush is due, 0 if one is
+	 *         overdue, or -1 if none is waiting
+	 */
+	private long nanosUntilFlush() {
+		NioConnection next = flushes.peek();
+		if (next == null)
+			return -1;
+		return Math.max(0, next.getFlushDeadline() - System.nanoTime());
+	}
+
+	private void runFlushes() {
+		long now = System.nanoTime();
+		NioConnection next;
+		while ((next = flushes.peek()) != null && next.getFlushDeadline() - now <= 0) {
+			flushes.poll();
+			next.flushNow();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		for (int n = tasks.size(); n > 0 && (task = tasks.poll()) != null; n--) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				System.out.println(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chatApp.ServerConfig;
+
+/**
+ * Keeps one client, or one machine, from flooding the server.
+ *
+ * Every connection may send chat.limit.linesPerSecond lines (default
+ * 20) with bursts of chat.limit.lineBurst (default 50), and all the
+ * connections from one address together chat.limit.ipLinesPerSecond
+ * with bursts of chat.limit.ipLineBurst.  Lines over the limit are
+ * dropped, and the client is told once per run of dropped lines, much
+ * as SlowConsumerPolicy.COALESCE does for outbound frames.  Lines sent
+ * while choosing a name, PONG and QUIT are never limited.
+ *
+ * chat.limit.ipConnections caps the connections from one address; more
+ * are closed as soon as they are accepted.  chat.limit.acceptsPerSecond,
+ * with bursts of chat.limit.acceptBurst, slows the accepting thread
+ * down, so a crowd reconnecting at once waits in the listen backlog
+ * instead of all starting their handshakes together.  Lines longer than
+ * chat.limit.lineBytes (default 8192) drop the connection.  Limits set
+ * to 0 are off; the per-address and accept limits are off by default.
+ *
+ * Checking a line costs one or two RateLimiter compare-and-sets and no
+ * locks.  Every limit hit is counted in ServerMetrics.
+ */
+final class FloodControl {
+	private final int maxLineBytes;
+	private final double linesPerSecond;
+	private final int lineBurst;
+	private final double ipLinesPerSecond;
+	private final int ipLineBurst;
+	private final int ipConnections;
+	private final RateLimiter accepts;
+	private final ConcurrentHashMap<InetAddress, Address> addresses = new ConcurrentHashMap<InetAddress, Address>();
+
+	FloodControl(int maxLineBytes, double linesPerSecond, int lineBurst, double ipLinesPerSecond, int ipLineBurst,
+			int ipConnections, double acceptsPerSecond, int acceptBurst) {
+		this.maxLineBytes = maxLineBytes;
+		this.linesPerSecond = linesPerSecond;
+		this.lineBurst = lineBurst;
+		this.ipLinesPerSecond = ipLinesPerSecond;
+		this.ipLineBurst = ipLineBurst;
+		this.ipConnections = ipConnections;
+		this.accepts = acceptsPerSecond > 0 ? new RateLimiter(acceptsPerSecond, acceptBurst) : null;
+	}
+
+	static FloodControl fromConfig(ServerConfig config) {
+		return new FloodControl(
+				config.getInt("limit.lineBytes", 8192),
+				config.getInt("limit.linesPerSecond", 20),
+				config.getInt("limit.lineBurst", 50),
+				config.getInt("limit.ipLinesPerSecond", 0),
+				config.getInt("limit.ipLineBurst", 200),
+				config.getInt("limit.ipConnections", 0),
+				config.getInt("limit.acceptsPerSecond", 0),
+				config.getInt("limit.acceptBurst", 100));
+	}
+
+	/**
+	 * @return the longest line, or binary frame payload, a client may
+	 *         send
+	 */
+	int getMaxLineBytes() {
+		return maxLineBytes;
+	}
+
+	/**
+	 * Blocks the accepting thread until it may accept another
+	 * connection.
+	 */
+	void awaitAccept() throws InterruptedException {
+		if (accepts == null)
+			return;
+		long wait = accepts.acquire(System.nanoTime());
+		if (wait == 0)
+			return;
+		ServerMetrics.acceptThrottled();
+		do {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} while ((wait = accepts.acquire(System.nanoTime())) > 0);
+	}
+
+	/**
+	 * Starts tracking a newly accepted connection.
+	 *
+	 * @return its limits, or null if its address already has as many
+	 *         connections as it may
+	 */
+	Client open(InetAddress address) {
+		if (ipConnections <= 0 && ipLinesPerSecond <= 0)
+			return new Client(null, null);
+
+		while (true) {
+			Address a = addresses.get(address);
+			if (a == null) {
+				Address created = new Address(ipLinesPerSecond > 0 ? new RateLimiter(ipLinesPerSecond, ipLineBurst) : null);
+				a = addresses.putIfAbsent(address, created);
+				if (a == null)
+					a = created;
+			}
+			int n = a.connections.get();
+			// A negative count means the entry is being removed.
+			if (n < 0)
+				continue;
+			if (ipConnections > 0 && n >= ipConnections) {
+				ServerMetrics.connectionRefused();
+				return null;
+			}
+			if (a.connections.compareAndSet(n, n + 1))
+				return new Client(address, a);
+		}
+	}
+
+	/**
+	 * The connections from one address.
+	 */
+	private static final class Address {
+		final AtomicInteger connections = new AtomicInteger();
+		final RateLimiter lines;
+
+		Address(RateLimiter lines) {
+			this.lines = lines;
+		}
+	}
+
+	/**
+	 * The limits of one connection.  Only its reading thread, or its
+	 * event loop, calls allow and warn.
+	 */
+	final class Client {
+		private final InetAddress address;
+		private final Address shared;
+		private final RateLimiter lines = linesPerSecond > 0 ? new RateLimiter(linesPerSecond, lineBurst) : null;
+		private boolean limited;
+		private boolean warn;
+
+		Client(InetAddress address, Address shared) {
+			this.address = address;
+			this.shared = shared;
+		}
+
+		/**
+		 * Takes a token for one line from the connection's bucket and
+		 * from its address's.
+		 *
+		 * @return false if the line is to be dropped
+		 */
+		boolean allow() {
+			long now = System.nanoTime();
+			boolean ok = (lines == null || lines.acquire(now) == 0)
+					&& (shared == null || shared.lines == null || shared.lines.acquire(now) == 0);
+			if (ok) {
+				limited = false;
+				return true;
+			}
+			ServerMetrics.lineLimited();
+			warn = !limited;
+			limited = true;
+			return false;
+		}
+
+		/**
+		 * @return true, once, after the first line of a run was dropped
+		 */
+		boolean warn() {
+			boolean w = warn;
+			warn = false;
+			return w;
+		}
+
+		/**
+		 * Frees the connection's place among its address's.
+		 */
+		void close() {
+			if (shared != null && shared.connections.decrementAndGet() == 0 && shared.connections.compareAndSet(0, -1))
+				addresses.remove(address, shared);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package server;
+
+/**
+ * When a connection's outbound frames are written.  Rather than one
+ * write per frame, a writer waits a little for more frames and sends
+ * them together with one gathering write.  It stops waiting as soon as
+ * either limit is reached:
+ *
+ * -Dchat.flush.bytes: queued bytes that trigger an immediate write
+ *  (default 16384)
+ * -Dchat.flush.delayMicros: the longest the first frame of a batch
+ *  waits for company (default 200; 0 writes as soon as possible)
+ * -Dchat.flush.frames: the most frames handed to a single gathering
+ *  write (default 64)
+ *
+ * A longer delay means fewer, fuller writes at the cost of latency.
+ * FlushStats shows what the settings actually achieve.
+ */
+final class FlushPolicy {
+	static final int FLUSH_BYTES = Integer.getInteger("chat.flush.bytes", 16 * 1024);
+	static final long FLUSH_DELAY_NANOS = Long.getLong("chat.flush.delayMicros", 200) * 1000;
+	static final int MAX_FRAMES = Math.max(1, Integer.getInteger("chat.flush.frames", 64));
+
+	private FlushPolicy() {
+	}
+}
@@ -0,0 +1,70 @@
+package server;
+
+import chatApp.ServerConfig;
+
+/**
+ * Histograms of what every gathering write sent: how many frames, how
+ * many bytes, and how long the first frame waited before going out.
+ * Together they show where FlushPolicy sits between fewer syscalls and
+ * lower latency.
+ *
+ * With chat.flush.report set to a number of seconds the servers log
+ * the summary that often.
+ */
+public final class FlushStats {
+	private static final Histogram batchFrames = new Histogram();
+	private static final Histogram batchBytes = new Histogram();
+	private static final Histogram delayMicros = new Histogram();
+
+	private FlushStats() {
+	}
+
+	/**
+	 * Records one gathering write.
+	 *
+	 * @param waitedNanos how long the oldest frame in the batch waited
+	 */
+	static void record(int frames, long bytes, long waitedNanos) {
+		batchFrames.record(frames);
+		batchBytes.record(bytes);
+		delayMicros.record(waitedNanos / 1000);
+	}
+
+	public static Histogram batchFrames() {
+		return batchFrames;
+	}
+
+	public static Histogram batchBytes() {
+		return batchBytes;
+	}
+
+	public static Histogram delayMicros() {
+		return delayMicros;
+	}
+
+	public static void reset() {
+		batchFrames.reset();
+		batchBytes.reset();
+		delayMicros.reset();
+	}
+
+	public static String summary() {
+		return "frames/flush: " + batchFrames + "\nbytes/flush: " + batchBytes + "\nflush delay (us): " + delayMicros;
+	}
+
+	/**
+	 * Logs the summary every chat.flush.report seconds, if set.
+	 */
+	static void startReporting(final TimerWheel timer, ServerConfig config) {
+		final long periodMillis = config.getLong("flush.report", 0) * 1000;
+		if (periodMillis <= 0)
+			return;
+
+		timer.schedule(new TimerWheel.Task() {
+			public void expired() {
+				System.out.println("[SERVER] " + summary());
+				timer.schedule(this, periodMillis);
+			}
+		}, periodMillis);
+	}
+}
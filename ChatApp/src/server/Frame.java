@@ -0,0 +1,164 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import chatApp.BinaryCodec;
+import chatApp.Protocols;
+
+/**
+ * One protocol message, encoded to bytes exactly once per wire format.
+ * A broadcast builds a single Frame and puts that same instance on
+ * every recipient's outbound queue; writers only ever read from it, so
+ * it can be shared by any number of connections and threads.
+ *
+ * The payload is turned into UTF-8 when the frame is made, or copied
+ * straight from the bytes a client sent.  The text line and the binary
+ * frame are each built from it the first time a connection using that
+ * format asks for them.
+ *
+ * A broadcast frame is also its own entry in its Room's queue and in
+ * the room's HistoryRing, so handing it on costs no allocation; the
+ * fields for that are only ever used by those two.
+ */
+public final class Frame {
+	private static final byte[] EMPTY = new byte[0];
+
+	private final Protocols type;
+	private final byte[] payload;
+	private volatile ByteBuffer text;
+	private volatile ByteBuffer binary;
+
+	// The room's queue of frames waiting to be published.
+	volatile Frame next;
+	long postedNanos;
+	boolean remote;
+	// Where "sender: " ends in a broadcast's payload.
+	int textStart;
+	// The frame's place in its HistoryRing.
+	long historySeq;
+
+	private Frame(Protocols type, byte[] payload) {
+		this.type = type;
+		this.payload = payload;
+	}
+
+	public static Frame of(Protocols type) {
+		return new Frame(type, EMPTY);
+	}
+
+	public static Frame of(Protocols type, String payload) {
+		return new Frame(type, payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return a frame whose payload is prefix followed by the line, as
+	 *         the client sent it
+	 */
+	public static Frame of(Protocols type, byte[] prefix, InboundLine line) {
+		byte[] payload = new byte[prefix.length + line.length()];
+		System.arraycopy(prefix, 0, payload, 0, prefix.length);
+		line.copyTo(0, line.length(), payload, prefix.length);
+		Frame frame = new Frame(type, payload);
+		frame.textStart = prefix.length;
+		return frame;
+	}
+
+	/**
+	 * @return a frame of another type with the same payload, which the
+	 *         two share
+	 */
+	public Frame as(Protocols type) {
+		return new Frame(type, payload);
+	}
+
+	/**
+	 * A broadcast built from Strings, knowing where its text starts.
+	 */
+	static Frame broadcast(String sender, String text) {
+		byte[] prefix = (sender + ": ").getBytes(StandardCharsets.UTF_8);
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		byte[] payload = Arrays.copyOf(prefix, prefix.length + bytes.length);
+		System.arraycopy(bytes, 0, payload, prefix.length, bytes.length);
+		Frame frame = new Frame(Protocols.BROADCAST, payload);
+		frame.textStart = prefix.length;
+		return frame;
+	}
+
+	/**
+	 * @return the sender of a broadcast; allocates
+	 */
+	String sender() {
+		return new String(payload, 0, textStart - 2, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the text of a broadcast; allocates
+	 */
+	String text() {
+		return new String(payload, textStart, payload.length - textStart, StandardCharsets.UTF_8);
+	}
+
+	public Protocols type() {
+		return type;
+	}
+
+	/**
+	 * @return the length of the UTF-8 payload in bytes
+	 */
+	public int payloadLength() {
+		return payload.length;
+	}
+
+	/**
+	 * @return a read-only view of the encoded frame with its own
+	 *         position, so each connection can track how much of it has
+	 *         been written
+	 */
+	public ByteBuffer buffer(boolean binaryFormat) {
+		return encoded(binaryFormat).asReadOnlyBuffer();
+	}
+
+	public void writeTo(OutputStream out, boolean binaryFormat) throws IOException {
+		ByteBuffer bytes = encoded(binaryFormat);
+		out.write(bytes.array(), bytes.arrayOffset(), bytes.limit());
+	}
+
+	// Racing threads may both encode; they produce the same bytes.
+	private ByteBuffer encoded(boolean binaryFormat) {
+		if (binaryFormat) {
+			ByteBuffer b = binary;
+			if (b == null)
+				binary = b = ByteBuffer.wrap(BinaryCodec.encode(type, payload));
+			return b;
+		}
+
+		ByteBuffer t = text;
+		if (t == null)
+			text = t = ByteBuffer.wrap(encodeText());
+		return t;
+	}
+
+	private byte[] encodeText() {
+		byte[] keyword = type.getKeyword().getBytes(StandardCharsets.US_ASCII);
+		int length = keyword.length + (payload.length > 0 ? 1 + payload.length : 0) + 1;
+		byte[] line = new byte[length];
+		System.arraycopy(keyword, 0, line, 0, keyword.length);
+		int pos = keyword.length;
+		if (payload.length > 0) {
+			line[pos++] = ' ';
+			System.arraycopy(payload, 0, line, pos, payload.length);
+			pos += payload.length;
+		}
+		line[pos] = '\n';
+		return line;
+	}
+
+	public String toString() {
+		String p = new String(payload, StandardCharsets.UTF_8);
+		return p.isEmpty() ? type.getKeyword() : type.getKeyword() + " " + p;
+	}
+}
@@ -0,0 +1,80 @@
+package server;
+
+/**
+ * Detects dead connections.  Every line a client sends counts as a sign
+ * of life.  When a client has been quiet for the ping interval the
+ * server sends it "PING"; a live client answers "PONG" (or anything
+ * else).  If the timeout passes without a word, the connection is
+ * reaped.
+ *
+ * Heartbeats run on a shared TimerWheel, so watching thousands of
+ * connections takes one thread and no per-message timer work.
+ */
+final class Heartbeat implements TimerWheel.Task {
+
+	/**
+	 * The connection being watched.  Both calls come from the wheel
+	 * thread and must be safe to make from there.
+	 */
+	interface Peer {
+		void ping();
+
+		void reap();
+	}
+
+	private final TimerWheel wheel;
+	private final Peer peer;
+	private final long intervalMillis;
+	private final long timeoutMillis;
+	private volatile long lastSeen;
+	private volatile boolean pinged;
+	private volatile boolean stopped;
+
+	Heartbeat(TimerWheel wheel, Peer peer, long intervalMillis, long timeoutMillis) {
+		this.wheel = wheel;
+		this.peer = peer;
+		this.intervalMillis = intervalMillis;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	void start() {
+		if (intervalMillis <= 0)
+			return;
+		lastSeen = wheel.now();
+		wheel.schedule(this, intervalMillis);
+	}
+
+	/**
+	 * Records that the client just sent something.
+	 */
+	void touch() {
+		lastSeen = wheel.now();
+		if (pinged)
+			pinged = false;
+	}
+
+	void stop() {
+		stopped = true;
+	}
+
+	public void expired() {
+		if (stopped)
+			return;
+
+		long idle = wheel.now() - lastSeen;
+		if (pinged) {
+			if (idle >= intervalMillis + timeoutMillis) {
+				stopped = true;
+				peer.reap();
+			} else {
+				wheel.schedule(this, intervalMillis + timeoutMillis - idle);
+			}
+		} else if (idle >= intervalMillis) {
+			pinged = true;
+			peer.ping();
+			wheel.schedule(this, timeoutMillis);
+		} else {
+			wheel.schedule(this, intervalMillis - idle);
+		}
+	}
+}
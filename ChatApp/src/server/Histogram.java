@@ -0,0 +1,106 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative values with log-linear
+ * buckets, in the manner of HdrHistogram: every power of two is split
+ * into 8 equal sub-buckets, so a value is placed to within 12.5% at
+ * any magnitude, and values below 8 are counted exactly.  Percentiles
+ * are reported as the upper bound of their bucket.
+ *
+ * Recording is a few bit operations and two striped adds and never
+ * allocates, so it can sit on the paths it measures.
+ */
+public final class Histogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	public Histogram() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i] = new LongAdder();
+	}
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		buckets[bucket(value)].increment();
+		count.increment();
+		sum.add(value);
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the total of all recorded values
+	 */
+	public long sum() {
+		return sum.sum();
+	}
+
+	public double mean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param fraction between 0 and 1, e.g. 0.99
+	 * @return the upper bound of the bucket holding that percentile, or
+	 *         0 if nothing has been recorded
+	 */
+	public long percentile(double fraction) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0)
+				return upperBound(i);
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int shift = exponent - SUB_BITS;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	public void reset() {
+		for (LongAdder bucket : buckets)
+			bucket.reset();
+		count.reset();
+		sum.reset();
+	}
+
+	public String toString() {
+		return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+				count(), mean(), percentile(0.5), percentile(0.9), percentile(0.99), percentile(1.0));
+	}
+}
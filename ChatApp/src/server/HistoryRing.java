@@ -0,0 +1,87 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import chatApp.ServerConfig;
+
+/**
+ * The most recent broadcasts, kept as the very Frames that were sent so
+ * they can be replayed to a client that just joined without encoding
+ * anything again.
+ *
+ * Adding is lock-free: a writer claims a sequence number and stores the
+ * frame in that slot, overwriting whatever was there one lap ago.  A
+ * snapshot walks back from the newest sequence number and stops at the
+ * first slot that has already been reused.  The sequence number is kept
+ * on the frame itself, so adding allocates nothing; a frame can only be
+ * added to one ring, once.
+ *
+ * At most -Dchat.history.count frames (default 50) are replayed, and
+ * fewer if they would add up to more than -Dchat.history.bytes of
+ * payload (default 64 KB).  A count of 0 turns history off.
+ */
+public final class HistoryRing {
+	private final AtomicReferenceArray<Frame> slots;
+	private final AtomicLong next = new AtomicLong();
+	private final int mask;
+	private final int maxCount;
+	private final long maxBytes;
+
+	/**
+	 * @param maxCount the most frames a snapshot returns
+	 * @param maxBytes the most payload bytes a snapshot returns
+	 */
+	public HistoryRing(int maxCount, long maxBytes) {
+		this.maxCount = Math.max(0, maxCount);
+		this.maxBytes = maxBytes;
+		int size = Integer.highestOneBit(Math.max(1, this.maxCount - 1)) << 1;
+		this.slots = new AtomicReferenceArray<Frame>(size);
+		this.mask = size - 1;
+	}
+
+	public static HistoryRing fromConfig(ServerConfig config) {
+		return new HistoryRing(config.getHistoryCount(), config.getHistoryBytes());
+	}
+
+	public int getMaxCount() {
+		return maxCount;
+	}
+
+	public void add(Frame frame) {
+		if (maxCount == 0)
+			return;
+		long seq = next.getAndIncrement();
+		// Written before the frame is published, and never again.
+		frame.historySeq = seq;
+		slots.set((int) seq & mask, frame);
+	}
+
+	/**
+	 * @return the newest frames, oldest first, within the count and
+	 *         byte limits
+	 */
+	public List<Frame> snapshot() {
+		long head = next.get();
+		List<Frame> frames = new ArrayList<Frame>(Math.min(maxCount, (int) Math.min(head, 1024)));
+		long bytes = 0;
+		for (long seq = head - 1; seq >= 0 && head - seq <= maxCount; seq--) {
+			Frame frame = slots.get((int) seq & mask);
+			// A writer that claimed seq has not stored its frame yet.
+			if (frame == null || frame.historySeq < seq)
+				continue;
+			// Overwritten by a newer lap; everything older is gone too.
+			if (frame.historySeq > seq)
+				break;
+			bytes += frame.payloadLength();
+			if (bytes > maxBytes)
+				break;
+			frames.add(frame);
+		}
+		Collections.reverse(frames);
+		return frames;
+	}
+}
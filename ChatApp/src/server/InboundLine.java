@@ -0,0 +1,114 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One line from a client, as a window onto the bytes it arrived in.  A
+ * LineDecoder points the same instance at each line in turn, so reading
+ * a line allocates nothing; the command, the @target and the text are
+ * looked at by offset, and only the rarer commands turn the line into a
+ * String.
+ *
+ * The window is only valid until the call it was handed to returns.
+ * Anything kept longer has to be copied, with toString or copyTo.
+ *
+ * Offsets are from the start of the line.  Bytes are UTF-8; the
+ * keywords the server looks for are ASCII, so comparing them byte by
+ * byte is enough.
+ */
+public final class InboundLine {
+	private ByteBuffer buffer;
+	private int start;
+	private int length;
+
+	/**
+	 * Points this line at bytes [from, to) of buffer, by absolute index.
+	 */
+	void set(ByteBuffer buffer, int from, int to) {
+		this.buffer = buffer;
+		this.start = from;
+		this.length = to - from;
+	}
+
+	/**
+	 * @return a line of its own holding text, for lines that were kept
+	 *         as Strings
+	 */
+	public static InboundLine of(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		InboundLine line = new InboundLine();
+		line.set(ByteBuffer.wrap(bytes), 0, bytes.length);
+		return line;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public byte byteAt(int index) {
+		return buffer.get(start + index);
+	}
+
+	/**
+	 * @return true if the line is exactly the ASCII keyword
+	 */
+	public boolean is(String keyword) {
+		return length == keyword.length() && startsWith(keyword);
+	}
+
+	/**
+	 * @return true if the line starts with the ASCII prefix
+	 */
+	public boolean startsWith(String prefix) {
+		if (length < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buffer.get(start + i) != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the offset of the first b at or after from, or -1
+	 */
+	public int indexOf(byte b, int from) {
+		for (int i = from; i < length; i++) {
+			if (buffer.get(start + i) == b)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Copies bytes [from, to) of the line into dst at pos.
+	 */
+	public void copyTo(int from, int to, byte[] dst, int pos) {
+		for (int i = from; i < to; i++)
+			dst[pos++] = buffer.get(start + i);
+	}
+
+	/**
+	 * Points key at bytes [from, to) of the line, to look a name up by.
+	 */
+	public void copyTo(int from, int to, ClientRegistry.Key key) {
+		key.set(buffer, start + from, start + to);
+	}
+
+	/**
+	 * @return bytes [from, to) decoded; allocates
+	 */
+	public String toString(int from, int to) {
+		byte[] bytes = new byte[to - from];
+		copyTo(from, to, bytes, 0);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the whole line decoded; allocates
+	 */
+	public String toString() {
+		return toString(0, length);
+	}
+}
@@ -0,0 +1,224 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import chatApp.BinaryCodec;
+import chatApp.LineTooLongException;
+import chatApp.Protocols;
+
+/**
+ * Incremental framing for the server.  Bytes are fed in whatever chunks
+ * the socket hands us and complete lines are passed on as soon as their
+ * last byte arrives.  A partial line is kept until the rest of it is
+ * read.
+ *
+ * In text mode lines end with "\n"; a "\r" right before it is dropped
+ * so clients that use println on Windows are understood too.  After
+ * setBinary the input is read as BinaryCodec frames instead, and each
+ * frame is passed on as the text line it stands for.  The switch may
+ * happen in the middle of a buffer.
+ *
+ * Decoding allocates nothing.  Every line is handed over as the same
+ * InboundLine, pointed straight into the buffer being decoded when the
+ * whole line is in it, which is the usual case, and otherwise into this
+ * decoder's own buffer for lines that span reads.  That buffer is only
+ * made once a line does, and only grows.
+ */
+public final class LineDecoder {
+	// Where we are in a binary frame.
+	private static final int OPCODE = 0;
+	private static final int LENGTH = 1;
+	private static final int PAYLOAD = 2;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	// What a binary frame's line starts with, and whether its payload
+	// follows; see BinaryCodec.toClientLine.
+	private static final byte[][] PREFIX = new byte[Protocols.values().length][];
+	private static final boolean[] KEEP_PAYLOAD = new boolean[Protocols.values().length];
+
+	static {
+		for (Protocols type : Protocols.values()) {
+			String bare = BinaryCodec.toClientLine(type, "");
+			PREFIX[type.ordinal()] = bare.getBytes(StandardCharsets.UTF_8);
+			KEEP_PAYLOAD[type.ordinal()] = !BinaryCodec.toClientLine(type, "x").equals(bare);
+		}
+	}
+
+	/**
+	 * Told about every complete line.
+	 */
+	public interface Handler {
+		/**
+		 * @param line valid only until this returns
+		 */
+		void line(InboundLine line) throws IOException;
+	}
+
+	private final int maxLineLength;
+	private final InboundLine view = new InboundLine();
+	private byte[] line = EMPTY;
+	private ByteBuffer kept = ByteBuffer.wrap(line);
+	private int length;
+	private boolean binary;
+	private int state = OPCODE;
+	private Protocols type;
+	private int payloadLength;
+	private int unread;
+	private int shift;
+
+	/**
+	 * @param maxLineLength the longest line, in bytes, that will be
+	 *        buffered before the connection is considered broken
+	 */
+	public LineDecoder(int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * Reads binary frames from the next byte on.
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * Consumes all remaining bytes of the buffer, handing every
+	 * complete line to the handler.
+	 */
+	public void decode(ByteBuffer in, Handler lines) throws IOException {
+		while (in.hasRemaining()) {
+			if (binary) {
+				decodeBinary(in, lines);
+				continue;
+			}
+
+			int from = in.position();
+			int limit = in.limit();
+			int newline = -1;
+			for (int i = from; i < limit; i++) {
+				if (in.get(i) == '\n') {
+					newline = i;
+					break;
+				}
+			}
+			if (newline < 0) {
+				keep(in, limit);
+				return;
+			}
+
+			int end;
+			if (length == 0) {
+				checkLength(newline - from);
+				in.position(newline + 1);
+				end = newline;
+				if (end > from && in.get(end - 1) == '\r')
+					end--;
+				view.set(in, from, end);
+			} else {
+				keep(in, newline);
+				in.position(newline + 1);
+				end = length;
+				if (end > 0 && line[end - 1] == '\r')
+					end--;
+				view.set(kept, 0, end);
+				length = 0;
+			}
+			lines.line(view);
+		}
+	}
+
+	private void decodeBinary(ByteBuffer in, Handler lines) throws IOException {
+		switch (state) {
+		case OPCODE:
+			int opcode = in.get() & 0xFF;
+			type = Protocols.fromOpcode(opcode);
+			if (type == null)
+				throw new IOException("Unknown opcode " + opcode);
+			payloadLength = 0;
+			shift = 0;
+			state = LENGTH;
+			return;
+
+		case LENGTH:
+			int b = in.get() & 0xFF;
+			if (shift > 28)
+				throw new IOException("Malformed frame length");
+			payloadLength |= (b & 0x7F) << shift;
+			shift += 7;
+			if ((b & 0x80) != 0)
+				return;
+			if (payloadLength < 0)
+				throw new IOException("Malformed frame length");
+			if (payloadLength > maxLineLength)
+				throw new LineTooLongException("Frame payload of " + payloadLength + " bytes is too large");
+
+			byte[] prefix = PREFIX[type.ordinal()];
+			state = OPCODE;
+			if (prefix.length == 0 && in.remaining() >= payloadLength) {
+				// The whole payload is here and is the line as it is.
+				int from = in.position();
+				in.position(from + payloadLength);
+				view.set(in, from, from + payloadLength);
+				lines.line(view);
+				return;
+			}
+			ensureCapacity(prefix.length + payloadLength);
+			System.arraycopy(prefix, 0, line, 0, prefix.length);
+			length = prefix.length;
+			unread = payloadLength;
+			state = PAYLOAD;
+			break;
+
+		case PAYLOAD:
+			int n = Math.min(in.remaining(), unread);
+			if (KEEP_PAYLOAD[type.ordinal()]) {
+				in.get(line, length, n);
+				length += n;
+			} else {
+				in.position(in.position() + n);
+			}
+			unread -= n;
+			break;
+		}
+
+		if (state == PAYLOAD && unread == 0) {
+			view.set(kept, 0, length);
+			length = 0;
+			state = OPCODE;
+			lines.line(view);
+		}
+	}
+
+	private void checkLength(int n) throws LineTooLongException {
+		if (n > maxLineLength)
+			throw new LineTooLongException("Line exceeds " + maxLineLength + " bytes.");
+	}
+
+	/**
+	 * Adds the bytes from the buffer's position up to end to the line
+	 * being kept.
+	 */
+	private void keep(ByteBuffer in, int end) throws LineTooLongException {
+		int n = end - in.position();
+		checkLength(length + n);
+		ensureCapacity(length + n);
+		in.get(line, length, n);
+		length += n;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (needed <= line.length)
+			return;
+		byte[] bigger = new byte[Math.max(needed, Math.min(Math.max(256, line.length * 2), maxLineLength))];
+		System.arraycopy(line, 0, bigger, 0, length);
+		line = bigger;
+		kept = ByteBuffer.wrap(line);
+	}
+}
@@ -0,0 +1,690 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import chatApp.Protocols;
+import chatApp.ServerConfig;
+import store.LogRecord;
+import store.Mailboxes;
+import store.MessageLog;
+import store.SearchIndex;
+
+/**
+ * Delivers chat messages to the outbound queues of registered clients.
+ * Shared by every Transport so they all fan out the same way.
+ *
+ * Every client is in exactly one Room at a time, starting in the lobby,
+ * and a broadcast only reaches the members of the sender's room.  Rooms
+ * are spread over the shard executors by name; see Room for how they
+ * share a shard.  Without shards every broadcast is published on the
+ * sender's thread.
+ *
+ * A broadcast is encoded into a single Frame, and that one frame is
+ * queued for every recipient, so sending to N clients costs one string
+ * and one charset encoding instead of N.  A private message never looks
+ * at anyone but the sender and the target: both are found with one
+ * registry lookup each, so its cost does not depend on how many
+ * clients are connected.
+ *
+ * When the server keeps a MessageLog, every broadcast is also handed to
+ * it; the log writes on its own thread, so this costs the broadcast a
+ * queue insert.  Recent broadcasts are kept per room and replayed to
+ * each client as it enters; with a log, the rooms start out filled with
+ * the tail of the log, so history survives a restart.  Private messages
+ * are logged too, under the conversation of their two names, but never
+ * replayed into a room.
+ *
+ * With Mailboxes, a private message to a name that is held for its
+ * token holder after a drop is kept in the name's mailbox, and the
+ * sender is told so.  Only the client that comes back with the token
+ * gets the waiting messages, right after the greeting.  A name claimed
+ * any other way may have changed hands, so whatever was kept for it is
+ * discarded, and a message to a name that is not held is refused as if
+ * there were no mailboxes.  So mail waits as long as the hold, at most
+ * chat.session.graceMillis; see SessionTokens.  Mailboxes are read on
+ * their own thread, and the join is reported to its listener once the
+ * mail is queued.
+ *
+ * With a SearchIndex, "SEARCH query" is answered on one of
+ * chat.search.threads threads (default 2), off the thread that read
+ * it, with a "SEARCHRESULT offset timestamp where sender: text" frame
+ * per match, newest first, and "SEARCHDONE count" or "SEARCHDONE count
+ * page:n" when there is another page.  "where" is "#room", or "@name"
+ * for a private message with name.  See SearchIndex.Query for what a
+ * query may say.
+ *
+ * With a Cluster, names are claimed cluster-wide, broadcasts also reach
+ * the room on the other nodes, and a private message to a name that is
+ * not connected here is handed to the cluster to find.
+ *
+ * A client can sign in with "HELLO name [token]" instead of answering
+ * SUBMITNAME.  It is answered with one frame: "WELCOME name token" or
+ * "REJECTED reason".  A client that comes back with the token it was
+ * last given gets the name even while it is held after a drop, or while
+ * the connection the token was issued to still has it; that connection
+ * is then closed.  Each sign-in gets a new token, and a name claimed
+ * without one revokes it.  See SessionTokens.
+ */
+public final class MessageRouter {
+	// How far back the log is read to refill room histories.
+	private static final int SEED_RECORDS = 4096;
+	// Mailbox files are named after the hex of the name, and must fit
+	// in a file name of 255 bytes.
+	private static final int MAX_NAME_BYTES = 100;
+
+	private static final Executor DIRECT = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	private final ClientRegistry<OutboundQueue> clients;
+	private final ServerConfig config;
+	private final MessageLog log;
+	private final SearchIndex search;
+	private final Mailboxes mailboxes;
+	private final ExecutorService searches;
+	private final Cluster cluster;
+	private final Executor[] shards;
+	private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+	// The clients that proved their name with its token, and so may
+	// read its mailbox.
+	private final ConcurrentHashMap<String, OutboundQueue> owners = new ConcurrentHashMap<String, OutboundQueue>();
+	// When each client claimed its name, kept across resumes, so a
+	// search only finds the private messages since.
+	private final ConcurrentHashMap<OutboundQueue, Long> claims = new ConcurrentHashMap<OutboundQueue, Long>();
+	private final Room lobby;
+	private final SessionTokens sessions;
+
+	/**
+	 * Told whether a client got the name it asked for.
+	 */
+	public interface JoinListener {
+		void joined(boolean accepted);
+	}
+
+	/**
+	 * A router for tools and benchmarks: no log, no cluster, publishing
+	 * on the sending thread and with the settings from the system
+	 * properties.
+	 */
+	public MessageRouter(ClientRegistry<OutboundQueue> clients) {
+		this(clients, systemConfig(), null, null, null, null, null);
+	}
+
+	/**
+	 * @param config the server's settings, for the room history sizes
+	 * @param log where broadcasts are recorded, or null to keep no
+	 *        history
+	 * @param search the index of the log, or null if clients cannot
+	 *        search
+	 * @param mailboxes where private messages to names that are not
+	 *        signed in are kept, or null to refuse them
+	 * @param cluster the other nodes to share clients and rooms with, or
+	 *        null for a server of its own
+	 * @param shards the executors rooms publish on, or null to publish
+	 *        on the sending thread
+	 */
+	public MessageRouter(ClientRegistry<OutboundQueue> clients, ServerConfig config, MessageLog log,
+			SearchIndex search, Mailboxes mailboxes, Cluster cluster, Executor[] shards) {
+		this.clients = clients;
+		this.config = config;
+		this.log = log;
+		this.search = search;
+		this.mailboxes = mailboxes;
+		this.searches = search == null ? null
+				: Executors.newFixedThreadPool(config.getInt("search.threads", 2),
+						VirtualThreads.platformFactory("chat-search-query-"));
+		this.cluster = cluster;
+		this.shards = shards == null || shards.length == 0 ? new Executor[] { DIRECT } : shards;
+		this.sessions = SessionTokens.fromConfig(config);
+		this.lobby = getRoom(Room.LOBBY);
+		if (log != null) {
+			long from = Math.max(log.startOffset(), log.nextOffset() - SEED_RECORDS);
+			for (LogRecord record : log.read(from, SEED_RECORDS)) {
+				if (record.isPrivate())
+					continue;
+				getRoom(room(record)).getHistory().add(Frame.of(Protocols.BROADCAST, record.getSender() + ": " + record.getText()));
+			}
+		}
+		if (cluster != null)
+			cluster.setListener(new ClusterListener());
+	}
+
+	private static ServerConfig systemConfig() {
+		try {
+			return ServerConfig.fromSystemProperties();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public ClientRegistry<OutboundQueue> getClients() {
+		return clients;
+	}
+
+	/**
+	 * @return the message log, or null if history is not kept
+	 */
+	public MessageLog getLog() {
+		return log;
+	}
+
+	public Room getLobby() {
+		return lobby;
+	}
+
+	/**
+	 * @return the room with the given name, created on first use
+	 */
+	public Room getRoom(String name) {
+		Room room = rooms.get(name);
+		if (room != null)
+			return room;
+		Executor shard = shards[Math.floorMod(name.hashCode(), shards.length)];
+		Room created = new Room(name, HistoryRing.fromConfig(config), log, cluster, shard);
+		room = rooms.putIfAbsent(name, created);
+		return room == null ? created : room;
+	}
+
+	/**
+	 * Registers a client under name if nobody has it, puts it in the
+	 * lobby and greets it with NAMEACCEPTED followed by the lobby's
+	 * recent history.  Messages that race with the join are held back
+	 * until the greeting is queued, so the client sees history and live
+	 * messages in order and each only once.  The whole greeting is
+	 * queued at once and goes out in one write.
+	 *
+	 * In a cluster this waits for the name's home node to answer.
+	 *
+	 * @return false if the name is taken
+	 */
+	public boolean join(String name, OutboundQueue queue) {
+		return join(name, null, false, queue);
+	}
+
+	/**
+	 * Like join, for a client that said HELLO: the greeting starts with
+	 * "WELCOME name token" instead, and a valid token gets the name back
+	 * from a hold or from an earlier connection on this node.
+	 *
+	 * @param token the token the client was given before, or null
+	 * @return false if the name is taken
+	 */
+	public boolean hello(String name, String token, OutboundQueue queue) {
+		return join(name, token, true, queue);
+	}
+
+	private boolean join(String name, String token, boolean hello, OutboundQueue queue) {
+		long start = System.nanoTime();
+		boolean resuming = hello && sessions.verify(name, token);
+		if (resuming && takeOver(name, queue, start))
+			return collected(name, queue, true);
+		if ((!resuming && sessions.isHeld(name)) || (cluster != null && !cluster.claim(name))) {
+			ServerMetrics.nameClaim(false, start);
+			return false;
+		}
+		return enter(name, queue, start, hello, resuming) && collected(name, queue, resuming);
+	}
+
+	/**
+	 * Like collect, but waits until the mail is queued.
+	 */
+	private boolean collected(String name, OutboundQueue queue, boolean verified) {
+		final CountDownLatch queued = new CountDownLatch(1);
+		collect(name, queue, verified, new JoinListener() {
+			public void joined(boolean accepted) {
+				queued.countDown();
+			}
+		});
+		try {
+			queued.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return true;
+	}
+
+	/**
+	 * Like join, but never waits: the listener hears the outcome, on
+	 * this thread unless the name is homed on another node.
+	 */
+	public void join(String name, OutboundQueue queue, JoinListener done) {
+		join(name, null, false, queue, done);
+	}
+
+	/**
+	 * Like hello, but never waits, as join with a listener.
+	 */
+	public void hello(String name, String token, OutboundQueue queue, JoinListener done) {
+		join(name, token, true, queue, done);
+	}
+
+	private void join(final String name, String token, final boolean hello, final OutboundQueue queue,
+			final JoinListener done) {
+		final long start = System.nanoTime();
+		final boolean resuming = hello && sessions.verify(name, token);
+		if (resuming && takeOver(name, queue, start)) {
+			collect(name, queue, true, done);
+			return;
+		}
+		if (!resuming && sessions.isHeld(name)) {
+			ServerMetrics.nameClaim(false, start);
+			done.joined(false);
+			return;
+		}
+		if (cluster == null) {
+			if (enter(name, queue, start, hello, resuming))
+				collect(name, queue, resuming, done);
+			else
+				done.joined(false);
+			return;
+		}
+		cluster.claim(name, new Cluster.ClaimListener() {
+			public void claimed(boolean granted) {
+				if (!granted)
+					ServerMetrics.nameClaim(false, start);
+				if (granted && enter(name, queue, start, hello, resuming))
+					collect(name, queue, resuming, done);
+				else
+					done.joined(false);
+			}
+		});
+	}
+
+	/**
+	 * Registers a client whose name, in a cluster, has already been
+	 * granted, and greets it.
+	 *
+	 * @param verified whether the client proved the name with its token
+	 */
+	private boolean enter(String name, OutboundQueue queue, long start, boolean hello, boolean verified) {
+		queue.pause();
+		List<Frame> greeting = new ArrayList<Frame>();
+		try {
+			if (!clients.claim(name, queue)) {
+				// Only possible in a cluster if the home node was
+				// restarted and forgot who had the name.
+				if (cluster != null)
+					cluster.release(name);
+				ServerMetrics.nameClaim(false, start);
+				return false;
+			}
+			ServerMetrics.nameClaim(true, start);
+			greet(name, queue, hello, verified, greeting);
+			return true;
+		} finally {
+			queue.resume(greeting);
+		}
+	}
+
+	/**
+	 * Hands a name held by another connection on this node to a client
+	 * that proved it is the same user, and closes the old connection.
+	 *
+	 * @return false if nobody here has the name
+	 */
+	private boolean takeOver(String name, OutboundQueue queue, long start) {
+		OutboundQueue old = clients.lookup(name);
+		if (old == null || old == queue)
+			return false;
+
+		queue.pause();
+		List<Frame> greeting = new ArrayList<Frame>();
+		try {
+			if (!clients.replace(name, old, queue))
+				return false;
+			// The old connection cleans up after itself, but its room
+			// membership has to go now so the name can be admitted.
+			for (Room room : rooms.values())
+				room.remove(name, old);
+			old.disconnect();
+			ServerMetrics.nameClaim(true, start);
+			greet(name, queue, true, true, greeting);
+			return true;
+		} finally {
+			queue.resume(greeting);
+		}
+	}
+
+	private void greet(String name, OutboundQueue queue, boolean hello, boolean verified, List<Frame> greeting) {
+		long claimed = verified ? sessions.claimed(name) : Long.MAX_VALUE;
+		if (claimed == Long.MAX_VALUE)
+			claimed = System.currentTimeMillis();
+		claims.put(queue, claimed);
+		if (hello) {
+			greeting.add(Frame.of(Protocols.WELCOME, name + " " + sessions.issue(name, claimed)));
+		} else {
+			sessions.revoke(name);
+			greeting.add(Frame.of(Protocols.NAMEACCEPTED));
+		}
+		// Mail kept for whoever had the name before is not this client's.
+		if (!verified && mailboxes != null)
+			mailboxes.discard(name);
+		// Waiting messages get up to half the queue; history gets the
+		// rest.
+		int mail = verified && mailboxes != null && mailboxes.waiting(name) > 0 ? queue.capacity() / 2 : 0;
+		greeting.addAll(lobby.admit(name, queue, queue.capacity() - 1 - mail));
+	}
+
+	/**
+	 * After a client is greeted, queues the mail waiting for its name if
+	 * it proved the name is its own, and then tells done the client
+	 * joined.  The mailbox is read on its writer thread, which is then
+	 * the one that calls done.
+	 */
+	private void collect(final String name, final OutboundQueue queue, boolean verified, final JoinListener done) {
+		if (mailboxes == null || !verified) {
+			done.joined(true);
+			return;
+		}
+		owners.put(name, queue);
+		if (mailboxes.waiting(name) == 0) {
+			done.joined(true);
+			return;
+		}
+		mailboxes.take(name, queue.capacity() / 2 - 1, new Mailboxes.Receiver() {
+			public void received(List<Mailboxes.Message> messages) {
+				deliver(name, messages, queue);
+				done.joined(true);
+			}
+		});
+	}
+
+	private void deliver(String name, List<Mailboxes.Message> waiting, OutboundQueue queue) {
+		for (Mailboxes.Message message : waiting)
+			queue.offer(Frame.of(Protocols.PRIVATEMESSAGETARGET, message.getSender() + ": " + message.getText()));
+		ServerMetrics.mailboxDelivered(waiting.size());
+		int left = mailboxes.waiting(name);
+		if (left > 0)
+			queue.offer(Frame.of(Protocols.ERROR, "ERROR: " + left
+					+ " more private messages are waiting; they will be delivered when you next sign in."));
+	}
+
+	/**
+	 * Moves a client from one room to another and greets it with
+	 * "JOINED room" and the new room's history.
+	 *
+	 * @return the room the client is now in
+	 */
+	public Room move(String name, OutboundQueue queue, Room from, String to) {
+		Room room = getRoom(to);
+		from.remove(name, queue);
+		queue.pause();
+		List<Frame> greeting = new ArrayList<Frame>();
+		try {
+			greeting.add(Frame.of(Protocols.JOINED, room.getName()));
+			greeting.addAll(room.admit(name, queue, queue.capacity() - 1));
+		} finally {
+			queue.resume(greeting);
+		}
+		return room;
+	}
+
+	/**
+	 * Takes a client out of its room and frees its name.  A client that
+	 * signed in with HELLO has its name held for a while, unless it
+	 * said QUIT first.
+	 */
+	public void leave(String name, OutboundQueue queue, Room room) {
+		if (room != null)
+			room.remove(name, queue);
+		owners.remove(name, queue);
+		claims.remove(queue);
+		if (clients.release(name, queue)) {
+			sessions.disconnected(name);
+			if (cluster != null)
+				cluster.release(name);
+		}
+	}
+
+	/**
+	 * The client said QUIT, so its name is not held after it leaves.
+	 */
+	public void quit(String name) {
+		sessions.ended(name);
+	}
+
+	/**
+	 * Sends "MESSAGE sender: text" to every member of the room.  The
+	 * message is published on the room's shard, in the order it was
+	 * posted.
+	 */
+	public void broadcast(Room room, String sender, String text) {
+		room.post(sender, text);
+	}
+
+	/**
+	 * Like broadcast, straight from the bytes of the sender's line, with
+	 * from its "name: " in UTF-8.  The frame is the only allocation.
+	 */
+	public void broadcast(Room room, byte[] from, InboundLine text) {
+		room.post(Frame.of(Protocols.BROADCAST, from, text));
+	}
+
+	/**
+	 * @return true if name is short enough to be a screen name: at most
+	 *         100 bytes of UTF-8
+	 */
+	public static boolean isValidLength(String name) {
+		return name.length() <= MAX_NAME_BYTES && name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_BYTES;
+	}
+
+	/**
+	 * Splits a "HELLO name [token]" line.  "HELLO" on its own is a HELLO
+	 * without a name, so nobody can be called that.
+	 *
+	 * @return the words after HELLO, or null if the line is not a HELLO;
+	 *         a well-formed one has a non-empty name and at most a token
+	 *         after it
+	 */
+	public static String[] parseHello(String line) {
+		String keyword = Protocols.HELLO.getKeyword();
+		if (line.equals(keyword))
+			return new String[] { "" };
+		if (!line.startsWith(keyword) || line.length() <= keyword.length() || line.charAt(keyword.length()) != ' ')
+			return null;
+		return line.substring(keyword.length() + 1).split(" ", 3);
+	}
+
+	/**
+	 * Picks the target out of a private message line, "@name text".
+	 *
+	 * @return the target name, or null if there is no space after it
+	 */
+	public static String privateMessageTarget(String line) {
+		int firstSpace = line.indexOf(' ');
+		return firstSpace < 0 ? null : line.substring(1, firstSpace);
+	}
+
+	/**
+	 * Sends a private message: "PRIVATEMESSAGESENDER sender: text" to the
+	 * sender and "PRIVATEMESSAGETARGET sender: text" to the target.  A
+	 * message to oneself is only echoed once.  Private messages reach
+	 * the target whatever room it is in.
+	 *
+	 * A target on another node of the cluster is looked for there; the
+	 * sender is echoed, or told the target does not exist, once that
+	 * node has answered.
+	 *
+	 * @return false if nobody is registered under the target name
+	 */
+	public boolean privateMessage(String sender, String targetName, String text) {
+		ServerMetrics.privateMessage();
+		OutboundQueue target = clients.lookup(targetName);
+		if (target == null) {
+			if (cluster == null)
+				return store(sender, targetName, text);
+			cluster.privateMessage(sender, targetName, text);
+			return true;
+		}
+
+		OutboundQueue self = clients.lookup(sender);
+		if (self != null)
+			self.offer(Frame.of(Protocols.PRIVATEMESSAGESENDER, sender + ": " + text));
+		if (target != self)
+			target.offer(Frame.of(Protocols.PRIVATEMESSAGETARGET, sender + ": " + text));
+		logPrivateMessage(sender, targetName, text);
+		return true;
+	}
+
+	/**
+	 * Like privateMessage, straight from the bytes of the sender's
+	 * "@name text" line, with from its "name: " in UTF-8 and target set
+	 * to the name after the @.  A target on this node costs two frames
+	 * sharing one payload and nothing else; the rest, and the log, take
+	 * the String path.
+	 *
+	 * @param self the sender's queue, echoed to
+	 * @return false if nobody is registered under the target name
+	 */
+	public boolean privateMessage(String sender, byte[] from, OutboundQueue self, InboundLine line,
+			ClientRegistry.Key target) {
+		OutboundQueue to = clients.lookup(target);
+		if (to == null)
+			return privateMessage(sender, target.toString(), line.toString());
+
+		ServerMetrics.privateMessage();
+		Frame sent = Frame.of(Protocols.PRIVATEMESSAGESENDER, from, line);
+		self.offer(sent);
+		if (to != self)
+			to.offer(sent.as(Protocols.PRIVATEMESSAGETARGET));
+		if (log != null)
+			logPrivateMessage(sender, target.toString(), line.toString());
+		return true;
+	}
+
+	/**
+	 * Keeps a private message for a name held for its token holder, and
+	 * tells the sender.  A target that came back meanwhile with its
+	 * token is handed its mail from the mailbox thread.
+	 *
+	 * @return false if there are no mailboxes or the name is not held
+	 */
+	private boolean store(String sender, final String targetName, String text) {
+		if (mailboxes == null || targetName.isEmpty() || !sessions.isHeld(targetName)) {
+			ServerMetrics.privateMessageMiss();
+			return false;
+		}
+		OutboundQueue self = clients.lookup(sender);
+		if (!mailboxes.put(targetName, sender, text)) {
+			ServerMetrics.mailboxFull();
+			if (self != null)
+				self.offer(Frame.of(Protocols.ERROR, "ERROR: The mailbox of @" + targetName + " is full."));
+			return true;
+		}
+		ServerMetrics.mailboxStored();
+		logPrivateMessage(sender, targetName, text);
+		if (self != null) {
+			self.offer(Frame.of(Protocols.PRIVATEMESSAGESENDER, sender + ": " + text));
+			self.offer(Frame.of(Protocols.ERROR,
+					"ERROR: @" + targetName + " is not signed in; the message will be delivered if they come back soon."));
+		}
+
+		final OutboundQueue target = clients.lookup(targetName);
+		if (target != null && owners.get(targetName) == target) {
+			mailboxes.take(targetName, target.capacity() / 2, new Mailboxes.Receiver() {
+				public void received(List<Mailboxes.Message> messages) {
+					deliver(targetName, messages, target);
+				}
+			});
+		}
+		return true;
+	}
+
+	private void logPrivateMessage(String sender, String targetName, String text) {
+		if (log != null)
+			log.append(LogRecord.conversation(sender, targetName), sender, text);
+	}
+
+	/**
+	 * Answers "SEARCH query" from name.  Returns at once; the results
+	 * are queued for the client from a search thread.
+	 */
+	public void search(final String name, final String query, final OutboundQueue queue) {
+		if (search == null) {
+			queue.offer(Frame.of(Protocols.ERROR, "ERROR: Search is not available on this server."));
+			return;
+		}
+		Long claimed = claims.get(queue);
+		final SearchIndex.Query parsed;
+		try {
+			parsed = SearchIndex.Query.parse(name, claimed == null ? Long.MAX_VALUE : claimed, query);
+		} catch (IllegalArgumentException e) {
+			queue.offer(Frame.of(Protocols.ERROR, "ERROR: " + e.getMessage()));
+			return;
+		}
+		searches.execute(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				SearchIndex.Page page = search.search(parsed);
+				ServerMetrics.search(start);
+				List<LogRecord> results = page.getResults();
+				for (LogRecord record : results) {
+					String where = record.isPrivate() ? "@" + record.getPeer(name) : "#" + room(record);
+					queue.offer(Frame.of(Protocols.SEARCHRESULT, record.getOffset() + " " + record.getTimestamp() + " "
+							+ where + " " + record.getSender() + ": " + record.getText()));
+				}
+				String done = Integer.toString(results.size());
+				if (page.getNext() >= 0)
+					done += " page:" + page.getNext();
+				queue.offer(Frame.of(Protocols.SEARCHDONE, done));
+			}
+		});
+	}
+
+	private static String room(LogRecord record) {
+		return record.getRoom().isEmpty() ? Room.LOBBY : record.getRoom();
+	}
+
+	/**
+	 * Stops answering searches.
+	 */
+	public void close() {
+		if (searches != null)
+			searches.shutdown();
+	}
+
+	/**
+	 * Hands what the other nodes send to the clients of this one.
+	 */
+	private final class ClusterListener implements Cluster.Listener {
+		public void onBroadcast(String room, String sender, String text) {
+			getRoom(room).postRemote(sender, text);
+		}
+
+		public boolean onPrivateMessage(String sender, String targetName, String text) {
+			OutboundQueue target = clients.lookup(targetName);
+			if (target == null)
+				return false;
+			target.offer(Frame.of(Protocols.PRIVATEMESSAGETARGET, sender + ": " + text));
+			logPrivateMessage(sender, targetName, text);
+			return true;
+		}
+
+		public void onPrivateMessageResult(String sender, String targetName, String text, boolean delivered) {
+			if (!delivered && store(sender, targetName, text))
+				return;
+			OutboundQueue self = clients.lookup(sender);
+			if (self == null)
+				return;
+			if (delivered)
+				self.offer(Frame.of(Protocols.PRIVATEMESSAGESENDER, sender + ": " + text));
+			else
+				self.offer(Frame.of(Protocols.ERROR, "ERROR: User @" + targetName + " does not exist!"));
+		}
+
+		public Iterable<String> localNames() {
+			return clients.names();
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package server;
+
+/**
+ * Starts a ChatServer on the non-blocking transport, whatever
+ * chat.transport says: a small fixed pool of event loops multiplexes
+ * every connection with a Selector.  The wire protocol is exactly the
+ * same, so the existing clients work against either.  See NioTransport.
+ */
+public class NioChatServer {
+	public static void main(String[] args) throws Exception {
+		String[] nio = new String[args.length + 1];
+		System.arraycopy(args, 0, nio, 0, args.length);
+		// Arguments win over everything else, and the last one counts.
+		nio[args.length] = "--transport=nio";
+		ServerCore.main(nio);
+	}
+}
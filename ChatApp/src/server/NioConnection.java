@@ -0,0 +1,223 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import chatApp.Protocols;
+
+/**
+ * One client of the non-blocking transport.  The connection only moves
+ * bytes: it decodes what it reads into lines for its Session, which
+ * speaks the protocol, and writes out what the session queues.
+ *
+ * Everything here runs on the owning event loop except the queue's
+ * listener calls, which only hand the loop a task; the loop drains the
+ * outbound queue as fast as the socket accepts.  Reads go into the
+ * loop's buffer, which all of its connections share, so an idle
+ * connection holds no read buffer of its own.
+ *
+ * Frames are not written one by one.  Once the queue has something in
+ * it the connection waits for the FlushPolicy delay, or until enough
+ * bytes pile up, and then hands everything waiting to one gathering
+ * write.
+ */
+final class NioConnection implements LineDecoder.Handler, OutboundQueue.Listener, Session.Link {
+	private final EventLoop loop;
+	private final SocketChannel channel;
+	private final LineDecoder decoder;
+	private final OutboundQueue queue;
+	private final Session session;
+	private final Frame[] frames = new Frame[FlushPolicy.MAX_FRAMES];
+	private final ByteBuffer[] batch = new ByteBuffer[FlushPolicy.MAX_FRAMES];
+	private int batchStart;
+	private int batchEnd;
+	private boolean binaryOut;
+	private boolean ready;
+	private long readySince;
+	private boolean flushScheduled;
+	private long flushDeadline;
+	private SelectionKey key;
+	private boolean closed;
+
+	NioConnection(ServerCore core, EventLoop loop, SocketChannel channel, FloodControl.Client limits) {
+		this.loop = loop;
+		this.channel = channel;
+		this.decoder = new LineDecoder(core.getMaxLineBytes());
+		this.queue = core.newQueue(this);
+		this.session = core.newSession(queue, limits, this);
+	}
+
+	String getName() {
+		return session.getName();
+	}
+
+	void start(SelectionKey key) {
+		this.key = key;
+		session.open();
+	}
+
+	public void onReady() {
+		loop.execute(new Runnable() {
+			public void run() {
+				scheduleFlush();
+			}
+		});
+	}
+
+	public void onOverflow() {
+		drop();
+	}
+
+	public void upgrade() {
+		decoder.setBinary(true);
+	}
+
+	public void drop() {
+		loop.execute(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	public void execute(Runnable task) {
+		if (loop.inLoop())
+			task.run();
+		else
+			loop.execute(task);
+	}
+
+	long getFlushDeadline() {
+		return flushDeadline;
+	}
+
+	/**
+	 * Writes now if the backlog is big enough, otherwise asks the loop
+	 * to flush once the delay has passed.
+	 */
+	private void scheduleFlush() {
+		if (closed)
+			return;
+
+		if (!ready) {
+			ready = true;
+			readySince = System.nanoTime();
+		}
+		if (FlushPolicy.FLUSH_DELAY_NANOS <= 0 || queue.pendingBytes() >= FlushPolicy.FLUSH_BYTES) {
+			flush();
+			return;
+		}
+		if (!flushScheduled) {
+			flushScheduled = true;
+			flushDeadline = readySince + FlushPolicy.FLUSH_DELAY_NANOS;
+			loop.flushLater(this);
+		}
+	}
+
+	/**
+	 * Called by the loop when the flush deadline has passed.
+	 */
+	void flushNow() {
+		flushScheduled = false;
+		flush();
+	}
+
+	private void flush() {
+		if (closed)
+			return;
+		try {
+			onWritable();
+		} catch (IOException e) {
+			System.out.println(e);
+			close();
+		}
+	}
+
+	void onReadable() throws IOException {
+		ByteBuffer in = loop.readBuffer();
+		in.clear();
+		int n = channel.read(in);
+		if (n < 0) {
+			close();
+			return;
+		}
+
+		ServerMetrics.bytesIn(n);
+		in.flip();
+		decoder.decode(in, this);
+	}
+
+	/**
+	 * Drains the outbound queue as far as the socket will take it, a
+	 * batch of frames per write, and only keeps OP_WRITE registered
+	 * while a batch is half written.
+	 */
+	void onWritable() throws IOException {
+		while (true) {
+			if (batchStart == batchEnd && !fillBatch())
+				break;
+
+			channel.write(batch, batchStart, batchEnd - batchStart);
+			while (batchStart < batchEnd && !batch[batchStart].hasRemaining())
+				batch[batchStart++] = null;
+			if (batchStart < batchEnd)
+				break;
+		}
+
+		if (key.isValid())
+			key.interestOps(batchStart == batchEnd ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Takes the next batch of frames off the queue.
+	 *
+	 * @return false if the queue was empty
+	 */
+	private boolean fillBatch() {
+		batchStart = 0;
+		batchEnd = queue.drainTo(frames, 0);
+		if (batchEnd == 0) {
+			ready = false;
+			return false;
+		}
+
+		long bytes = 0;
+		for (int i = 0; i < batchEnd; i++) {
+			batch[i] = frames[i].buffer(binaryOut);
+			bytes += batch[i].remaining();
+			// Everything after the acknowledgement goes out in binary.
+			if (frames[i].type() == Protocols.BINARYACCEPTED)
+				binaryOut = true;
+			frames[i] = null;
+		}
+
+		FlushStats.record(batchEnd, bytes, ready ? System.nanoTime() - readySince : 0);
+		ready = false;
+		return true;
+	}
+
+	/**
+	 * Called by the decoder for every complete line from the client.
+	 */
+	public void line(InboundLine line) {
+		if (!closed)
+			session.line(line);
+	}
+
+	void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		session.close();
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * The non-blocking transport.  Instead of one thread per client, a
+ * small fixed pool of event loops multiplexes every connection with a
+ * Selector.  The accepting thread only hands new channels to the loops
+ * in turn.
+ *
+ * The number of loops defaults to the number of processors and can be
+ * changed with chat.nio.loops.  Rooms are spread over the event loops,
+ * which also publish their messages.  Outbound frames are coalesced
+ * into gathering writes as described in FlushPolicy.
+ */
+final class NioTransport implements Transport {
+	private final EventLoop[] loops;
+	private ServerCore core;
+	private int next;
+
+	NioTransport(int loops) {
+		this.loops = new EventLoop[loops];
+	}
+
+	public Executor[] open(ServerCore core) throws IOException {
+		this.core = core;
+		for (int i = 0; i < loops.length; i++)
+			loops[i] = new EventLoop(core, i);
+		return loops;
+	}
+
+	public void start() {
+		for (EventLoop loop : loops)
+			loop.start();
+	}
+
+	/**
+	 * Spreads connections round-robin over the loops.  Only called from
+	 * the accepting thread.
+	 */
+	public void accept(SocketChannel channel, FloodControl.Client limits) {
+		loops[next].register(channel, limits);
+		next = (next + 1) % loops.length;
+	}
+
+	public String toString() {
+		return loops.length + " event loops";
+	}
+}
@@ -0,0 +1,346 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chatApp.Protocols;
+
+/**
+ * A bounded queue of frames waiting to be written to one client.
+ * Senders only ever enqueue here, so a broadcast never waits on a
+ * socket; the connection's writer drains the queue at whatever pace
+ * the client reads.  When the queue is full the configured
+ * SlowConsumerPolicy decides what gives.
+ *
+ * The lock is private to this queue, so contention is limited to the
+ * senders of one client and its writer.
+ */
+public final class OutboundQueue {
+
+	/**
+	 * Callbacks into the connection that owns the queue.  Both are
+	 * invoked without the queue's lock held.
+	 */
+	public interface Listener {
+		/**
+		 * The queue went from empty to non-empty, or its backlog just
+		 * reached the FlushPolicy byte threshold and should be written
+		 * without waiting any longer.
+		 */
+		void onReady();
+
+		/**
+		 * The queue overflowed under the DISCONNECT policy, or was told
+		 * to disconnect, and has been closed; the connection should be
+		 * dropped.
+		 */
+		void onOverflow();
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+	private final int capacity;
+	private final SlowConsumerPolicy policy;
+	private final Listener listener;
+	private int skipped;
+	private long bytes;
+	private List<Frame> held;
+	private long dropped;
+	private boolean closed;
+
+	public OutboundQueue(int capacity, SlowConsumerPolicy policy, Listener listener) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		this.policy = policy;
+		this.listener = listener;
+	}
+
+	/**
+	 * Queues a frame for the client.  Never blocks on the client.
+	 *
+	 * @return false if the frame was not queued
+	 */
+	public boolean offer(Frame frame) {
+		boolean ready = false;
+		boolean overflow = false;
+		lock.lock();
+		try {
+			if (closed)
+				return false;
+
+			if (held != null) {
+				held.add(frame);
+				return true;
+			}
+
+			if (frames.size() >= capacity) {
+				dropped++;
+				ServerMetrics.frameDropped();
+				switch (policy) {
+				case DROP_OLDEST:
+					bytes -= frames.poll().payloadLength();
+					break;
+				case DISCONNECT:
+					closed = true;
+					frames.clear();
+					bytes = 0;
+					overflow = true;
+					break;
+				case COALESCE:
+					skipped++;
+					return false;
+				}
+			}
+
+			if (!overflow) {
+				long before = bytes;
+				bytes += frame.payloadLength();
+				ready = (frames.isEmpty() && skipped == 0)
+						|| (before < FlushPolicy.FLUSH_BYTES && bytes >= FlushPolicy.FLUSH_BYTES);
+				frames.add(frame);
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (overflow) {
+			listener.onOverflow();
+			return false;
+		}
+		if (ready)
+			listener.onReady();
+		return true;
+	}
+
+	/**
+	 * Sets aside every frame offered from now on until resume is called,
+	 * so a joining client can be greeted before anything else reaches
+	 * it.
+	 */
+	public void pause() {
+		lock.lock();
+		try {
+			if (held == null)
+				held = new ArrayList<Frame>();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues the given frames, followed by whatever was offered since
+	 * pause.  A held frame that is also in first (the same instance) is
+	 * only queued once, in the first position.  The caller keeps first
+	 * within the capacity.  Neither first nor anything queued before it
+	 * is dropped to make room: if the held frames do not all fit after
+	 * them, the oldest held frames are the ones dropped.
+	 */
+	public void resume(List<Frame> first) {
+		boolean ready;
+		lock.lock();
+		try {
+			List<Frame> later = held == null ? Collections.<Frame>emptyList() : held;
+			held = null;
+			if (closed)
+				return;
+
+			ready = frames.isEmpty() && skipped == 0;
+			Set<Frame> queued = Collections.newSetFromMap(new IdentityHashMap<Frame, Boolean>());
+			for (Frame frame : first) {
+				frames.add(frame);
+				bytes += frame.payloadLength();
+				queued.add(frame);
+			}
+			int fresh = 0;
+			for (Frame frame : later) {
+				if (!queued.contains(frame))
+					fresh++;
+			}
+			int skip = Math.max(0, fresh - Math.max(0, capacity - frames.size()));
+			for (Frame frame : later) {
+				if (queued.contains(frame))
+					continue;
+				if (skip > 0) {
+					skip--;
+					dropped++;
+					ServerMetrics.frameDropped();
+					continue;
+				}
+				frames.add(frame);
+				bytes += frame.payloadLength();
+			}
+			ready &= !frames.isEmpty();
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+
+		if (ready)
+			listener.onReady();
+	}
+
+	/**
+	 * @return the most frames the queue holds
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Removes the next frame without waiting.
+	 *
+	 * @return the frame, or null if there is nothing to write
+	 */
+	public Frame poll() {
+		lock.lock();
+		try {
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the next frame, waiting up to the timeout for one.
+	 *
+	 * @return the frame, or null if none arrived in time or the queue
+	 *         has been closed
+	 */
+	public Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			Frame frame;
+			while ((frame = next()) == null) {
+				if (closed || nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return frame;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves as many waiting frames as fit into batch, starting at
+	 * offset, under a single acquisition of the lock.
+	 *
+	 * @return the number of frames moved
+	 */
+	public int drainTo(Frame[] batch, int offset) {
+		lock.lock();
+		try {
+			int n = 0;
+			Frame frame;
+			while (offset + n < batch.length && (frame = next()) != null)
+				batch[offset + n++] = frame;
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the next frame, waiting for one if the queue is empty.
+	 *
+	 * @return the frame, or null once the queue has been closed
+	 */
+	public Frame take() throws InterruptedException {
+		lock.lock();
+		try {
+			Frame frame;
+			while ((frame = next()) == null) {
+				if (closed)
+					return null;
+				notEmpty.await();
+			}
+			return frame;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Caller holds the lock.
+	private Frame next() {
+		Frame frame = frames.poll();
+		if (frame != null)
+			bytes -= frame.payloadLength();
+		else if (skipped > 0) {
+			// The backlog is gone; tell the client what it missed.
+			frame = Frame.of(Protocols.ERROR, "ERROR: " + skipped + " messages were skipped because you fell behind.");
+			skipped = 0;
+		}
+		return frame;
+	}
+
+	/**
+	 * @return the number of frames waiting to be written
+	 */
+	public int depth() {
+		lock.lock();
+		try {
+			return frames.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the payload bytes of the frames waiting to be written
+	 */
+	public long pendingBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of frames lost to overflow so far
+	 */
+	public long dropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the queue and tells the listener to drop the connection,
+	 * as an overflow under the DISCONNECT policy does.
+	 */
+	public void disconnect() {
+		close();
+		listener.onOverflow();
+	}
+
+	/**
+	 * Stops accepting frames and wakes a writer blocked in take.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			frames.clear();
+			bytes = 0;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
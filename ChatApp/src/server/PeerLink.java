@@ -0,0 +1,339 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import chatApp.BinaryCodec;
+
+/**
+ * The connection this node uses to talk to one other node of the
+ * cluster.  Links only ever carry messages one way: each node dials
+ * every peer and writes on that connection, and reads what the peers
+ * send on the connections they dialed.
+ *
+ * Messages are queued and a writer thread sends whatever has piled up
+ * in one gathering write, waiting up to the FlushPolicy delay for more
+ * just like a client's writer.  A broadcast is encoded once and the
+ * same bytes are queued on every link.  When the queue is full, or the
+ * link is down, messages are dropped and counted.
+ *
+ * The peer opens a new connection with a CHALLENGE, and the first
+ * thing written back is a HELLO carrying this node's id and its answer
+ * to the challenge; see Cluster.
+ *
+ * The writer redials every second while the peer is unreachable, and
+ * sends a NOOP when it has been idle for a second so both ends notice
+ * a dead connection quickly.
+ *
+ * A message is one type byte, the body length as a varint and then
+ * the fields, each a varint length followed by that many bytes of
+ * UTF-8.
+ */
+final class PeerLink {
+	static final byte HELLO = 1;
+	static final byte NOOP = 2;
+	static final byte CLAIM = 3;
+	static final byte GRANTED = 4;
+	static final byte DENIED = 5;
+	static final byte RELEASE = 6;
+	static final byte BROADCAST = 7;
+	static final byte PM = 8;
+	static final byte PM_RESULT = 9;
+	static final byte CHALLENGE = 10;
+
+	static final long IDLE_MILLIS = 1000;
+	private static final long RETRY_MILLIS = 1000;
+	private static final long CHALLENGE_MILLIS = 5000;
+	private static final int MAX_BODY = 4 * BinaryCodec.MAX_PAYLOAD;
+	private static final ByteBuffer NOOP_MESSAGE = encode(NOOP);
+
+	/**
+	 * A decoded message.
+	 */
+	static final class Message {
+		final byte type;
+		final String[] fields;
+
+		Message(byte type, String[] fields) {
+			this.type = type;
+			this.fields = fields;
+		}
+	}
+
+	private final Cluster cluster;
+	private final String peer;
+	private final InetSocketAddress address;
+	private final BlockingQueue<ByteBuffer> queue;
+	private final ByteBuffer[] batch = new ByteBuffer[FlushPolicy.MAX_FRAMES];
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final Thread writer;
+	private volatile boolean up;
+
+	PeerLink(Cluster cluster, String peer, InetSocketAddress address, int queueCapacity) {
+		this.cluster = cluster;
+		this.peer = peer;
+		this.address = address;
+		this.queue = new ArrayBlockingQueue<ByteBuffer>(queueCapacity);
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "chat-cluster-" + peer);
+		writer.setDaemon(true);
+	}
+
+	void start() {
+		writer.start();
+	}
+
+	String getPeer() {
+		return peer;
+	}
+
+	/**
+	 * @return true while connected to the peer
+	 */
+	boolean isUp() {
+		return up;
+	}
+
+	/**
+	 * Queues an encoded message.  The buffer is not modified, so the same
+	 * one can be handed to every link.  Never blocks.
+	 *
+	 * @return false if the link is down or its queue is full
+	 */
+	boolean send(ByteBuffer message) {
+		if (up && queue.offer(message.duplicate()))
+			return true;
+		dropped.increment();
+		return false;
+	}
+
+	long sent() {
+		return sent.sum();
+	}
+
+	long dropped() {
+		return dropped.sum();
+	}
+
+	private void write() {
+		boolean reported = false;
+		while (true) {
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open(address);
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().setSoTimeout((int) CHALLENGE_MILLIS);
+				Message challenge = read(channel.socket().getInputStream());
+				if (challenge == null || challenge.type != CHALLENGE || challenge.fields.length != 1)
+					throw new IOException("no challenge from " + peer);
+				writeFully(channel, encode(HELLO, cluster.getNodeId(),
+						cluster.prove(challenge.fields[0], cluster.getNodeId())), 1);
+				queue.clear();
+				up = true;
+				reported = false;
+				System.out.println("[CLUSTER] Linked to " + peer + " at " + address);
+				cluster.linkUp(this);
+				pump(channel);
+			} catch (IOException e) {
+				if (up)
+					System.out.println("[CLUSTER] Lost link to " + peer + " after sending " + sent() + " messages ("
+							+ dropped() + " dropped): " + e.getMessage());
+				else if (!reported)
+					System.out.println("[CLUSTER] No link to " + peer + ": " + e.getMessage());
+				reported = true;
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				up = false;
+				queue.clear();
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException ignored) { }
+				}
+			}
+
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends batches until the connection fails.
+	 */
+	private void pump(SocketChannel channel) throws IOException, InterruptedException {
+		while (true) {
+			ByteBuffer first = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+			if (first == null) {
+				writeFully(channel, NOOP_MESSAGE.duplicate(), 1);
+				continue;
+			}
+
+			long readySince = System.nanoTime();
+			batch[0] = first;
+			int n = 1 + drain(1);
+			long pending = bytes(0, n);
+
+			// Give other messages a moment to join the batch.
+			long deadline = readySince + FlushPolicy.FLUSH_DELAY_NANOS;
+			long wait;
+			while (n < batch.length && pending < FlushPolicy.FLUSH_BYTES
+					&& (wait = deadline - System.nanoTime()) > 0) {
+				ByteBuffer next = queue.poll(wait, TimeUnit.NANOSECONDS);
+				if (next == null)
+					break;
+				int from = n;
+				batch[n++] = next;
+				n += drain(n);
+				pending += bytes(from, n);
+			}
+
+			writeFully(channel, null, n);
+			sent.add(n);
+		}
+	}
+
+	private int drain(int offset) {
+		int n = 0;
+		ByteBuffer next;
+		while (offset + n < batch.length && (next = queue.poll()) != null)
+			batch[offset + n++] = next;
+		return n;
+	}
+
+	private long bytes(int from, int to) {
+		long bytes = 0;
+		for (int i = from; i < to; i++)
+			bytes += batch[i].remaining();
+		return bytes;
+	}
+
+	/**
+	 * Writes one message, or the first n buffers of the batch if message
+	 * is null.
+	 */
+	private void writeFully(SocketChannel channel, ByteBuffer message, int n) throws IOException {
+		if (message != null) {
+			while (message.hasRemaining())
+				channel.write(message);
+			return;
+		}
+
+		// A blocking channel may still write only part of it.
+		int start = 0;
+		while (start < n) {
+			channel.write(batch, start, n - start);
+			while (start < n && !batch[start].hasRemaining())
+				batch[start++] = null;
+		}
+	}
+
+	/**
+	 * Writes one encoded message to a stream.
+	 */
+	static void write(OutputStream out, ByteBuffer message) throws IOException {
+		byte[] bytes = new byte[message.remaining()];
+		message.duplicate().get(bytes);
+		out.write(bytes);
+		out.flush();
+	}
+
+	/**
+	 * Encodes a message.  The buffer is shared; send duplicates it.
+	 */
+	static ByteBuffer encode(byte type, String... fields) {
+		byte[][] bytes = new byte[fields.length][];
+		int body = 0;
+		for (int i = 0; i < fields.length; i++) {
+			bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+			body += BinaryCodec.varintSize(bytes[i].length) + bytes[i].length;
+		}
+
+		byte[] message = new byte[1 + BinaryCodec.varintSize(body) + body];
+		message[0] = type;
+		int pos = BinaryCodec.putVarint(message, 1, body);
+		for (byte[] field : bytes) {
+			pos = BinaryCodec.putVarint(message, pos, field.length);
+			System.arraycopy(field, 0, message, pos, field.length);
+			pos += field.length;
+		}
+		return ByteBuffer.wrap(message).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads one message from a buffered stream.
+	 *
+	 * @return the message, or null at the end of the stream
+	 */
+	static Message read(InputStream in) throws IOException {
+		int type = in.read();
+		if (type < 0)
+			return null;
+
+		int length = readVarint(in);
+		if (length < 0 || length > MAX_BODY)
+			throw new IOException("Cluster message of " + length + " bytes is too large");
+		byte[] body = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(body, read, length - read);
+			if (n < 0)
+				throw new EOFException();
+			read += n;
+		}
+
+		int count = 0;
+		String[] fields = new String[4];
+		int pos = 0;
+		while (pos < length) {
+			int size = 0;
+			for (int shift = 0;; shift += 7) {
+				if (pos >= length || shift > 28)
+					throw new IOException("Malformed cluster message");
+				byte b = body[pos++];
+				size |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+			}
+			if (size < 0 || size > length - pos)
+				throw new IOException("Malformed cluster message");
+			if (count == fields.length)
+				fields = Arrays.copyOf(fields, count * 2);
+			fields[count++] = new String(body, pos, size, StandardCharsets.UTF_8);
+			pos += size;
+		}
+		return new Message((byte) type, Arrays.copyOf(fields, count));
+	}
+
+	private static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException();
+			if (shift > 28)
+				throw new IOException("Malformed cluster message length");
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+}
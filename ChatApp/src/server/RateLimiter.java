@@ -0,0 +1,52 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket, kept in the form of the generic cell rate algorithm:
+ * instead of a token count refilled by a timer, the whole state is the
+ * time at which the bucket will next be full, in one AtomicLong.  Each
+ * request pushes that time one interval further; a request that would
+ * push it more than the burst ahead of now is refused.
+ *
+ * Taking a token is a read and a compare-and-set, never a lock, so a
+ * limiter shared by several connections costs them no more than one
+ * of their own.
+ */
+final class RateLimiter {
+	private final long intervalNanos;
+	private final long toleranceNanos;
+	private final AtomicLong full;
+
+	/**
+	 * @param perSecond the sustained rate
+	 * @param burst how many requests may come at once after a quiet
+	 *        spell
+	 */
+	RateLimiter(double perSecond, int burst) {
+		if (perSecond <= 0 || burst < 1)
+			throw new IllegalArgumentException("rate and burst must be positive");
+		this.intervalNanos = Math.max(1, (long) (1e9 / perSecond));
+		this.toleranceNanos = intervalNanos * (burst - 1);
+		this.full = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Takes a token if there is one.
+	 *
+	 * @param now System.nanoTime()
+	 * @return 0 if a token was taken, otherwise how many nanoseconds
+	 *         until there will be one
+	 */
+	long acquire(long now) {
+		while (true) {
+			long at = full.get();
+			long from = at - now > 0 ? at : now;
+			long ahead = from - now;
+			if (ahead > toleranceNanos)
+				return ahead - toleranceNanos;
+			if (full.compareAndSet(at, from + intervalNanos))
+				return 0;
+		}
+	}
+}
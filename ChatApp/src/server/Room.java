@@ -0,0 +1,231 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import chatApp.Protocols;
+import store.MessageLog;
+
+/**
+ * A chat room: its own set of members, its own history, and its own
+ * queue of messages waiting to be fanned out.  A message only ever
+ * touches the members of its room, so its cost does not depend on how
+ * many clients the server has, and rooms never contend with each other.
+ *
+ * Every room is pinned to one shard executor, and all of its messages
+ * are published there in order.  A room drains at most QUANTUM messages
+ * per turn and then queues itself behind whatever else the shard has to
+ * do, so a busy room shares its shard fairly with quiet ones instead of
+ * starving them.
+ *
+ * Posting a message allocates nothing beyond its frame: frames wait in
+ * a linked queue threaded through the frames themselves, many posters
+ * and one publisher, and are fanned out over an array of the members.
+ * Joins and leaves only mark that array stale, and the publisher copies
+ * the members again before its next message, so a burst of joins costs
+ * one copy rather than one each.
+ *
+ * In a cluster the room exists on every node.  Each node publishes to
+ * its own members and passes messages said here on to the others.
+ */
+public final class Room {
+	/**
+	 * The room every client starts in.
+	 */
+	public static final String LOBBY = "lobby";
+
+	private static final int QUANTUM = 32;
+	private static final int MAX_NAME_LENGTH = 64;
+
+	private static final OutboundQueue[] NOBODY = new OutboundQueue[0];
+
+	private final String name;
+	private final ClientRegistry<OutboundQueue> members = new ClientRegistry<OutboundQueue>();
+	private final HistoryRing history;
+	private final MessageLog log;
+	private final Cluster cluster;
+	private final Executor shard;
+	// Only the publisher reads or copies fanout; members mark it stale.
+	private OutboundQueue[] fanout = NOBODY;
+	private volatile boolean stale;
+	// Posters swap themselves in at the tail; the publisher alone moves
+	// head, which is the last frame it took, or a placeholder.
+	private final AtomicReference<Frame> tail;
+	private Frame head;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	Room(String name, HistoryRing history, MessageLog log, Cluster cluster, Executor shard) {
+		this.name = name;
+		this.history = history;
+		this.log = log;
+		this.cluster = cluster;
+		this.shard = shard;
+		this.head = Frame.of(Protocols.BROADCAST);
+		this.tail = new AtomicReference<Frame>(head);
+	}
+
+	/**
+	 * @return true if name can be used for a room: 1 to 64 characters
+	 *         and no white space
+	 */
+	public static boolean isValidName(String name) {
+		if (name.isEmpty() || name.length() > MAX_NAME_LENGTH)
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.isWhitespace(name.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ClientRegistry<OutboundQueue> getMembers() {
+		return members;
+	}
+
+	HistoryRing getHistory() {
+		return history;
+	}
+
+	/**
+	 * Adds a member.  The caller has paused the member's queue and
+	 * resumes it with the greeting and the history returned here.
+	 *
+	 * @return the recent history, at most max frames
+	 */
+	List<Frame> admit(String clientName, OutboundQueue queue, int max) {
+		if (members.claim(clientName, queue))
+			stale = true;
+		List<Frame> recent = history.snapshot();
+		return recent.subList(Math.max(0, recent.size() - max), recent.size());
+	}
+
+	void remove(String clientName, OutboundQueue queue) {
+		if (members.release(clientName, queue))
+			stale = true;
+	}
+
+	/**
+	 * Queues a message for the room's shard to publish.  Never blocks.
+	 */
+	public void post(String sender, String text) {
+		post(Frame.broadcast(sender, text));
+	}
+
+	/**
+	 * Queues a broadcast frame, made with Frame.of from the sender's
+	 * "name: " and its line, for the room's shard to publish.  Never
+	 * blocks, and allocates nothing.
+	 */
+	public void post(Frame frame) {
+		frame.postedNanos = System.nanoTime();
+		Frame last = tail.getAndSet(frame);
+		last.next = frame;
+		if (scheduled.compareAndSet(false, true))
+			shard.execute(drain);
+	}
+
+	/**
+	 * Queues a message another node of the cluster received, to be
+	 * published to this node's members only.
+	 */
+	void postRemote(String sender, String text) {
+		Frame frame = Frame.broadcast(sender, text);
+		frame.remote = true;
+		post(frame);
+	}
+
+	/**
+	 * Takes the next frame off the queue.  Only called by the publisher.
+	 *
+	 * @return the frame, or null if there is none or a poster has not
+	 *         finished linking it in
+	 */
+	private Frame poll() {
+		Frame first = head.next;
+		if (first == null)
+			return null;
+		// The old head is off the queue now; drop its link so frames kept
+		// in history do not hold on to the ones after them.
+		head.next = null;
+		head = first;
+		return first;
+	}
+
+	private boolean isEmpty() {
+		return tail.get() == head;
+	}
+
+	private void drain() {
+		for (int i = 0; i < QUANTUM; i++) {
+			Frame frame = poll();
+			if (frame == null) {
+				scheduled.set(false);
+				// Something may have been posted after the poll but
+				// before the flag was cleared.
+				if (isEmpty() || !scheduled.compareAndSet(false, true))
+					return;
+				continue;
+			}
+			publish(frame);
+		}
+		// Let the rest of the shard have a turn.
+		shard.execute(drain);
+	}
+
+	/**
+	 * Sends "MESSAGE sender: text" to every member right away, on the
+	 * calling thread.  The frame is encoded once and shared by all of
+	 * them, and also kept in the history and the log, and passed on to
+	 * the rest of the cluster.  Only one thread may publish at a time, and
+	 * not while the room has messages posted.
+	 *
+	 * @return the number of members the message was queued for
+	 */
+	public int publish(String sender, String text) {
+		Frame frame = Frame.broadcast(sender, text);
+		frame.postedNanos = System.nanoTime();
+		return publish(frame);
+	}
+
+	private int publish(Frame frame) {
+		long allocated = AllocationStats.ENABLED ? AllocationStats.currentThreadAllocatedBytes() : -1;
+		// Into the ring first, so a client joining meanwhile either gets
+		// it from history or live, and the join drops the duplicate.
+		history.add(frame);
+		// A joiner marks the array stale before it takes the history, so
+		// one whose history missed this frame is in the copy made here.
+		// Cleared first, so a change made while copying is not lost.
+		if (stale) {
+			stale = false;
+			fanout = members.clients().toArray(NOBODY);
+		}
+		int delivered = 0;
+		for (OutboundQueue client : fanout) {
+			if (client.offer(frame))
+				delivered++;
+		}
+		if (AllocationStats.ENABLED)
+			AllocationStats.record(frame, delivered, allocated);
+		ServerMetrics.fanout(frame.postedNanos, delivered);
+		if (log != null || (!frame.remote && cluster != null)) {
+			String sender = frame.sender();
+			String text = frame.text();
+			if (log != null)
+				log.append(name, sender, text);
+			if (!frame.remote && cluster != null)
+				cluster.broadcast(name, sender, text);
+		}
+		return delivered;
+	}
+}
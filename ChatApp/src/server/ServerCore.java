@@ -0,0 +1,172 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import chatApp.ServerConfig;
+import store.Mailboxes;
+import store.MessageLog;
+import store.SearchIndex;
+
+/**
+ * The chat server, minus the part that moves bytes.  The core owns what
+ * every client shares: the settings, the registry of named clients and
+ * the MessageRouter with its rooms, message log, search index,
+ * mailboxes and cluster, as well as flood control, heartbeats and
+ * metrics.  It listens on chat.port and hands every connection it
+ * accepts to a Transport, chosen with chat.transport:
+ *
+ *     blocking  a reading and a writing thread per connection; the
+ *               default
+ *     virtual   the same on virtual threads, for far more idle
+ *               connections (also chat.virtual=true)
+ *     nio       chat.nio.loops selector threads for all connections
+ *
+ * Every transport reads and writes with the same codecs and passes each
+ * line to a Session, so clients cannot tell them apart.
+ * benchmark.TransportConformance checks that, and compares their
+ * throughput.
+ */
+public final class ServerCore {
+	private final ServerConfig config;
+	private final Transport transport;
+	private final ClientRegistry<OutboundQueue> clients = new ClientRegistry<OutboundQueue>();
+	private final int queueCapacity;
+	private final SlowConsumerPolicy slowConsumerPolicy;
+	private final FloodControl flood;
+	// One timer thread watches every connection for silence.
+	private final TimerWheel heartbeats = new TimerWheel("chat-heartbeat", 100, 512);
+	private final MessageLog log;
+	private final SearchIndex search;
+	private final Mailboxes mailboxes;
+	private final Cluster cluster;
+	private final MessageRouter router;
+
+	ServerCore(ServerConfig config, Transport transport) throws IOException {
+		this.config = config;
+		this.transport = transport;
+		this.queueCapacity = config.getQueueCapacity();
+		this.slowConsumerPolicy = SlowConsumerPolicy.fromConfig(config);
+		this.flood = FloodControl.fromConfig(config);
+
+		// Rooms publish on the transport's threads if it offers them,
+		// otherwise on a few shard threads of their own rather than on
+		// the sender's thread.
+		Executor[] shards = transport.open(this);
+		if (shards == null) {
+			shards = new Executor[config.getRoomShards()];
+			for (int i = 0; i < shards.length; i++)
+				shards[i] = Executors.newSingleThreadExecutor(VirtualThreads.platformFactory("chat-room-" + i + "-"));
+		}
+
+		this.log = MessageLog.fromConfig(config);
+		this.search = SearchIndex.fromConfig(config, log);
+		this.mailboxes = Mailboxes.fromConfig(config);
+		this.cluster = Cluster.fromConfig(config);
+		this.router = new MessageRouter(clients, config, log, search, mailboxes, cluster, shards);
+	}
+
+	public static void main(String[] args) throws Exception {
+		ServerConfig config = ServerConfig.load(args);
+		new ServerCore(config, transport(config)).run();
+	}
+
+	/**
+	 * @return the transport chat.transport names
+	 * @throws IllegalArgumentException if there is no such transport
+	 */
+	static Transport transport(ServerConfig config) {
+		String name = config.getTransport();
+		if (name.equals("nio"))
+			return new NioTransport(config.getEventLoops());
+		if (name.equals("virtual")) {
+			ThreadFactory virtual = VirtualThreads.virtualFactory("chat-handler-");
+			if (virtual != null)
+				return new BlockingTransport(virtual, "virtual threads");
+			System.out.println("[SERVER] Virtual threads are not available; using platform threads.");
+			name = "blocking";
+		}
+		if (name.equals("blocking"))
+			return new BlockingTransport(VirtualThreads.platformFactory("chat-handler-"), "platform threads");
+		throw new IllegalArgumentException("Unknown chat.transport " + name + "; use blocking, virtual or nio");
+	}
+
+	/**
+	 * Starts the transport and then accepts connections forever.
+	 */
+	public void run() throws IOException, InterruptedException {
+		if (log != null || mailboxes != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					router.close();
+					if (search != null)
+						search.close();
+					if (log != null)
+						log.close();
+					if (mailboxes != null)
+						mailboxes.close();
+				}
+			});
+		}
+
+		transport.start();
+		if (cluster != null)
+			cluster.start();
+		FlushStats.startReporting(heartbeats, config);
+		ServerMetrics.start(heartbeats, clients, log, config);
+		System.out.println("[SERVER] The chat server is running (" + transport + ").");
+
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		try {
+			config.bind(listener);
+			while (true) {
+				flood.awaitAccept();
+				SocketChannel channel = listener.accept();
+				FloodControl.Client limits = flood.open(channel.socket().getInetAddress());
+				if (limits == null) {
+					channel.close();
+					continue;
+				}
+				config.configure(channel);
+				transport.accept(channel, limits);
+			}
+		} finally {
+			listener.close();
+		}
+	}
+
+	/**
+	 * @return a session for a new connection, which talks back through
+	 *         link
+	 */
+	Session newSession(OutboundQueue queue, FloodControl.Client limits, Session.Link link) {
+		return new Session(this, queue, limits, link);
+	}
+
+	/**
+	 * @return a new outbound queue with the configured size and policy
+	 */
+	OutboundQueue newQueue(OutboundQueue.Listener listener) {
+		return new OutboundQueue(queueCapacity, slowConsumerPolicy, listener);
+	}
+
+	ServerConfig getConfig() {
+		return config;
+	}
+
+	int getMaxLineBytes() {
+		return flood.getMaxLineBytes();
+	}
+
+	TimerWheel getHeartbeats() {
+		return heartbeats;
+	}
+
+	MessageRouter getRouter() {
+		return router;
+	}
+}
@@ -0,0 +1,441 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import chatApp.ServerConfig;
+import store.MessageLog;
+
+/**
+ * Counters and histograms for the server's hot paths: connections,
+ * messages and bytes in and out, how long a broadcast takes to reach
+ * every member of its room, outbound queue depths, screen name claims
+ * and private messages to names that do not exist.
+ *
+ * Recording is a striped LongAdder add or a Histogram record, neither
+ * of which allocates, so the paths being measured do not slow down.
+ * Everything that costs something, such as walking the clients for
+ * their queue depths or formatting, is done when the numbers are read.
+ *
+ * Histograms cover everything since the server started.  Once a
+ * second the totals are sampled to give per-second rates.  With
+ * chat.metrics.port set the numbers are served as plain text, one
+ * "name value" per line, at http://localhost:port/metrics.  With
+ * chat.metrics.report set to a number of seconds a one-line summary
+ * is logged that often.
+ */
+public final class ServerMetrics {
+	// How many of the deepest outbound queues are listed by name.
+	private static final int DEEPEST_CLIENTS = 10;
+
+	private static final LongAdder connectionsOpened = new LongAdder();
+	private static final LongAdder connectionsClosed = new LongAdder();
+	private static final LongAdder messagesIn = new LongAdder();
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder framesDropped = new LongAdder();
+	private static final LongAdder nameClaims = new LongAdder();
+	private static final LongAdder nameConflicts = new LongAdder();
+	private static final LongAdder privateMessages = new LongAdder();
+	private static final LongAdder privateMessageMisses = new LongAdder();
+	private static final LongAdder mailboxStored = new LongAdder();
+	private static final LongAdder mailboxDelivered = new LongAdder();
+	private static final LongAdder mailboxFull = new LongAdder();
+	private static final LongAdder linesLimited = new LongAdder();
+	private static final LongAdder linesTooLong = new LongAdder();
+	private static final LongAdder connectionsRefused = new LongAdder();
+	private static final LongAdder acceptsThrottled = new LongAdder();
+	private static final LongAdder searches = new LongAdder();
+	private static final Histogram fanoutMicros = new Histogram();
+	private static final Histogram fanoutRecipients = new Histogram();
+	private static final Histogram claimMicros = new Histogram();
+	private static final Histogram searchMicros = new Histogram();
+
+	private static volatile ClientRegistry<OutboundQueue> clients;
+	private static volatile MessageLog log;
+	private static volatile long messagesInRate;
+	private static volatile long framesOutRate;
+	private static volatile long bytesInRate;
+	private static volatile long bytesOutRate;
+
+	private ServerMetrics() {
+	}
+
+	static void connectionOpened() {
+		connectionsOpened.increment();
+	}
+
+	static void connectionClosed() {
+		connectionsClosed.increment();
+	}
+
+	/**
+	 * Records one line received from a named client.
+	 */
+	static void messageIn() {
+		messagesIn.increment();
+	}
+
+	static void bytesIn(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	/**
+	 * Records a frame an outbound queue dropped or refused because the
+	 * client fell behind.
+	 */
+	static void frameDropped() {
+		framesDropped.increment();
+	}
+
+	/**
+	 * Records one broadcast.
+	 *
+	 * @param postedNanos when the message was handed to its room
+	 */
+	static void fanout(long postedNanos, int recipients) {
+		fanoutMicros.record((System.nanoTime() - postedNanos) / 1000);
+		fanoutRecipients.record(recipients);
+	}
+
+	/**
+	 * Records an attempt to claim a screen name.
+	 *
+	 * @param startNanos when the claim started
+	 */
+	static void nameClaim(boolean granted, long startNanos) {
+		nameClaims.increment();
+		if (!granted)
+			nameConflicts.increment();
+		claimMicros.record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	static void privateMessage() {
+		privateMessages.increment();
+	}
+
+	/**
+	 * Records a private message to a name nobody has.
+	 */
+	static void privateMessageMiss() {
+		privateMessageMisses.increment();
+	}
+
+	/**
+	 * Records a private message kept for a name that is not signed in.
+	 */
+	static void mailboxStored() {
+		mailboxStored.increment();
+	}
+
+	/**
+	 * Records kept private messages handed to their target.
+	 */
+	static void mailboxDelivered(int messages) {
+		mailboxDelivered.add(messages);
+	}
+
+	/**
+	 * Records a private message refused because the mailbox was full.
+	 */
+	static void mailboxFull() {
+		mailboxFull.increment();
+	}
+
+	/**
+	 * Records a line FloodControl dropped because its sender was over
+	 * the rate limit.
+	 */
+	static void lineLimited() {
+		linesLimited.increment();
+	}
+
+	/**
+	 * Records a connection dropped for sending a line that was too long.
+	 */
+	static void lineTooLong() {
+		linesTooLong.increment();
+	}
+
+	/**
+	 * Records a connection closed because its address had too many.
+	 */
+	static void connectionRefused() {
+		connectionsRefused.increment();
+	}
+
+	/**
+	 * Records a wait of the accepting thread for the accept rate limit.
+	 */
+	static void acceptThrottled() {
+		acceptsThrottled.increment();
+	}
+
+	/**
+	 * Records one search.
+	 *
+	 * @param startNanos when the search started
+	 */
+	static void search(long startNanos) {
+		searches.increment();
+		searchMicros.record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	public static long connections() {
+		return connectionsOpened.sum() - connectionsClosed.sum();
+	}
+
+	/**
+	 * @return the number of named clients, or 0 before start
+	 */
+	public static int clients() {
+		ClientRegistry<OutboundQueue> c = clients;
+		return c == null ? 0 : c.size();
+	}
+
+	public static long messagesIn() {
+		return messagesIn.sum();
+	}
+
+	/**
+	 * @return the frames written to clients so far
+	 */
+	public static long framesOut() {
+		return FlushStats.batchFrames().sum();
+	}
+
+	public static long bytesIn() {
+		return bytesIn.sum();
+	}
+
+	public static long bytesOut() {
+		return FlushStats.batchBytes().sum();
+	}
+
+	public static Histogram fanoutMicros() {
+		return fanoutMicros;
+	}
+
+	public static Histogram fanoutRecipients() {
+		return fanoutRecipients;
+	}
+
+	public static Histogram claimMicros() {
+		return claimMicros;
+	}
+
+	public static long nameConflicts() {
+		return nameConflicts.sum();
+	}
+
+	public static long privateMessageMisses() {
+		return privateMessageMisses.sum();
+	}
+
+	/**
+	 * Samples the rates every second and, if configured, serves the
+	 * metrics over HTTP and logs a summary.
+	 *
+	 * @param registry the server's clients, for their queue depths
+	 * @param messageLog the server's log, or null if it keeps none
+	 */
+	static void start(final TimerWheel timer, ClientRegistry<OutboundQueue> registry, MessageLog messageLog,
+			ServerConfig config) throws IOException {
+		clients = registry;
+		log = messageLog;
+		final long reportSeconds = config.getLong("metrics.report", 0);
+		timer.schedule(new TimerWheel.Task() {
+			private long lastIn = messagesIn();
+			private long lastOut = framesOut();
+			private long lastBytesIn = bytesIn();
+			private long lastBytesOut = bytesOut();
+			private long seconds;
+
+			public void expired() {
+				long in = messagesIn();
+				long out = framesOut();
+				long bin = bytesIn();
+				long bout = bytesOut();
+				messagesInRate = in - lastIn;
+				framesOutRate = out - lastOut;
+				bytesInRate = bin - lastBytesIn;
+				bytesOutRate = bout - lastBytesOut;
+				lastIn = in;
+				lastOut = out;
+				lastBytesIn = bin;
+				lastBytesOut = bout;
+				if (reportSeconds > 0 && ++seconds % reportSeconds == 0)
+					System.out.println("[METRICS] " + summary());
+				timer.schedule(this, 1000);
+			}
+		}, 1000);
+
+		int port = config.getInt("metrics.port", 0);
+		if (port > 0) {
+			HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			http.createContext("/metrics", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					byte[] body = render().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+			});
+			http.start();
+			System.out.println("[METRICS] Serving http://localhost:" + port + "/metrics");
+		}
+	}
+
+	/**
+	 * @return one line with the headline numbers
+	 */
+	public static String summary() {
+		QueueDepths depths = queueDepths();
+		return String.format("clients=%d in/s=%d out/s=%d bytesIn/s=%d bytesOut/s=%d fanout(us) p50=%d p99=%d max=%d"
+				+ " queued=%d deepest=%d dropped=%d claims=%d conflicts=%d pmMisses=%d limited=%d",
+				clients(), messagesInRate, framesOutRate, bytesInRate, bytesOutRate,
+				fanoutMicros.percentile(0.5), fanoutMicros.percentile(0.99), fanoutMicros.percentile(1.0),
+				depths.total, depths.deepest(), framesDropped.sum(), nameClaims.sum(), nameConflicts.sum(),
+				privateMessageMisses.sum(), linesLimited.sum());
+	}
+
+	/**
+	 * @return every metric as "name value" lines
+	 */
+	public static String render() {
+		StringBuilder s = new StringBuilder(4096);
+		line(s, "chat_clients", clients());
+		line(s, "chat_connections", connections());
+		line(s, "chat_connections_opened_total", connectionsOpened.sum());
+		line(s, "chat_messages_in_total", messagesIn());
+		line(s, "chat_messages_in_per_second", messagesInRate);
+		line(s, "chat_frames_out_total", framesOut());
+		line(s, "chat_frames_out_per_second", framesOutRate);
+		line(s, "chat_bytes_in_total", bytesIn());
+		line(s, "chat_bytes_in_per_second", bytesInRate);
+		line(s, "chat_bytes_out_total", bytesOut());
+		line(s, "chat_bytes_out_per_second", bytesOutRate);
+		histogram(s, "chat_fanout_latency_micros", fanoutMicros);
+		histogram(s, "chat_fanout_recipients", fanoutRecipients);
+		histogram(s, "chat_flush_frames", FlushStats.batchFrames());
+		histogram(s, "chat_flush_bytes", FlushStats.batchBytes());
+		histogram(s, "chat_flush_delay_micros", FlushStats.delayMicros());
+
+		QueueDepths depths = queueDepths();
+		line(s, "chat_outbound_queued_frames", depths.total);
+		line(s, "chat_outbound_dropped_total", framesDropped.sum());
+		for (Depth d : depths.deepest)
+			label(s.append("chat_outbound_queue_depth{client=\""), d.name).append("\"} ").append(d.depth).append('\n');
+
+		line(s, "chat_name_claims_total", nameClaims.sum());
+		line(s, "chat_name_conflicts_total", nameConflicts.sum());
+		histogram(s, "chat_name_claim_micros", claimMicros);
+		line(s, "chat_private_messages_total", privateMessages.sum());
+		line(s, "chat_private_message_misses_total", privateMessageMisses.sum());
+		line(s, "chat_mailbox_stored_total", mailboxStored.sum());
+		line(s, "chat_mailbox_delivered_total", mailboxDelivered.sum());
+		line(s, "chat_mailbox_full_total", mailboxFull.sum());
+		line(s, "chat_lines_limited_total", linesLimited.sum());
+		line(s, "chat_lines_too_long_total", linesTooLong.sum());
+		line(s, "chat_connections_refused_total", connectionsRefused.sum());
+		line(s, "chat_accepts_throttled_total", acceptsThrottled.sum());
+		MessageLog l = log;
+		if (l != null)
+			line(s, "chat_log_dropped_total", l.dropped());
+		line(s, "chat_searches_total", searches.sum());
+		histogram(s, "chat_search_micros", searchMicros);
+		return s.toString();
+	}
+
+	private static void line(StringBuilder s, String name, long value) {
+		s.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Appends a label value escaped as the text format wants, so a
+	 * screen name cannot break the line it is on.
+	 */
+	private static StringBuilder label(StringBuilder s, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+				s.append('\\').append(c);
+			else if (c == '\n')
+				s.append("\\n");
+			else
+				s.append(c);
+		}
+		return s;
+	}
+
+	private static void histogram(StringBuilder s, String name, Histogram h) {
+		double[] quantiles = { 0.5, 0.9, 0.99, 0.999, 1.0 };
+		for (double q : quantiles)
+			s.append(name).append("{quantile=\"").append(q).append("\"} ").append(h.percentile(q)).append('\n');
+		line(s, name + "_count", h.count());
+		line(s, name + "_sum", h.sum());
+	}
+
+	/**
+	 * One client's outbound queue depth at the moment it was read.
+	 */
+	private static final class Depth {
+		final String name;
+		final int depth;
+
+		Depth(String name, int depth) {
+			this.name = name;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * The outbound backlog of the connected clients, read on demand.
+	 */
+	private static final class QueueDepths {
+		long total;
+		final List<Depth> deepest = new ArrayList<Depth>();
+
+		int deepest() {
+			return deepest.isEmpty() ? 0 : deepest.get(0).depth;
+		}
+	}
+
+	private static QueueDepths queueDepths() {
+		QueueDepths depths = new QueueDepths();
+		ClientRegistry<OutboundQueue> c = clients;
+		if (c == null)
+			return depths;
+
+		List<Depth> all = new ArrayList<Depth>();
+		for (String name : c.names()) {
+			OutboundQueue queue = c.lookup(name);
+			if (queue == null)
+				continue;
+			int depth = queue.depth();
+			depths.total += depth;
+			if (depth > 0)
+				all.add(new Depth(name, depth));
+		}
+		Collections.sort(all, new Comparator<Depth>() {
+			public int compare(Depth a, Depth b) {
+				return Integer.compare(b.depth, a.depth);
+			}
+		});
+		depths.deepest.addAll(all.subList(0, Math.min(DEEPEST_CLIENTS, all.size())));
+		return depths;
+	}
+}
@@ -0,0 +1,314 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+import chatApp.BinaryCodec;
+import chatApp.Protocols;
+
+/**
+ * The chat protocol as one client sees it, whatever Transport carries
+ * its bytes.  The transport hands over every line it reads, with a
+ * binary frame already turned back into the line it stands for, and
+ * the session answers by queueing frames on the client's
+ * OutboundQueue, which the transport drains to the socket.
+ *
+ * A session starts by sending "SUBMITNAME" and asks again until a
+ * unique name of at most 100 bytes arrives, then answers "NAMEACCEPTED" with the lobby's
+ * recent history.  A client may instead sign in with one
+ * "HELLO name [token]" line, answered by "WELCOME name token" or
+ * "REJECTED reason"; the token gets the name back after a reconnect
+ * (see MessageRouter).  "UPGRADE BINARY" before the name switches the
+ * connection to the framing of BinaryCodec.
+ *
+ * Once named, every line is a broadcast to the client's room unless it
+ * is one of:
+ *
+ *     @name text    a private message
+ *     /join room    move to another room, confirmed with "JOINED room"
+ *     /leave        back to the lobby
+ *     SEARCH query  look through the history, see SearchIndex
+ *     PONG          the answer to "PING"
+ *     QUIT          leave, without the name being held
+ *
+ * A client that has been silent for a while is sent "PING" and must
+ * answer or be dropped; see Heartbeat.  This starts as soon as it
+ * connects, so a connection that never picks a name is dropped too.  FloodControl decides how fast a
+ * client may send.
+ *
+ * Lines arrive as InboundLines, views of the bytes the client sent.
+ * Broadcasts, private messages and PONG are handled on those bytes, so
+ * the common lines cost no garbage; the rest are turned into Strings.
+ *
+ * In a cluster a name may take a round trip to claim.  Lines that
+ * arrive meanwhile are held and read once the answer is in.  The join
+ * answer comes back through Link.execute, so a transport that keeps a
+ * connection on one thread gets it there; every method is also
+ * synchronized, so a transport with no such thread needs nothing more.
+ */
+final class Session implements Heartbeat.Peer {
+	// A client has no reason to send anything while its name is pending.
+	private static final int MAX_HELD_LINES = 64;
+
+	/**
+	 * What the session needs from the transport's side of the
+	 * connection.
+	 */
+	interface Link {
+		/**
+		 * Reads binary frames instead of text lines from now on.
+		 */
+		void upgrade();
+
+		/**
+		 * Closes the connection.  Safe to call from any thread; the
+		 * transport calls close once the connection is down.
+		 */
+		void drop();
+
+		/**
+		 * Runs the task where the transport expects calls into the
+		 * session to come from.
+		 */
+		void execute(Runnable task);
+	}
+
+	private final MessageRouter router;
+	private final OutboundQueue queue;
+	private final FloodControl.Client limits;
+	private final Link link;
+	private final Heartbeat heartbeat;
+	private final ArrayDeque<String> held = new ArrayDeque<String>();
+	private boolean binary;
+	private String name;
+	// "name: " in UTF-8, which every message this client sends starts
+	// with, and a key to look up private message targets with.
+	private byte[] from;
+	private final ClientRegistry.Key target = new ClientRegistry.Key();
+	private String joining;
+	private boolean hello;
+	private Room room;
+	private boolean opened;
+	private boolean closed;
+
+	Session(ServerCore core, OutboundQueue queue, FloodControl.Client limits, Link link) {
+		this.router = core.getRouter();
+		this.queue = queue;
+		this.limits = limits;
+		this.link = link;
+		this.heartbeat = new Heartbeat(core.getHeartbeats(), this, core.getConfig().getHeartbeatInterval(),
+				core.getConfig().getHeartbeatTimeout());
+	}
+
+	/**
+	 * Greets the client.  Call once the transport is ready to write.
+	 */
+	synchronized void open() {
+		opened = true;
+		ServerMetrics.connectionOpened();
+		heartbeat.start();
+		send(Protocols.SUBMITNAME);
+	}
+
+	/**
+	 * @return the client's name, or null before it has one
+	 */
+	synchronized String getName() {
+		return name;
+	}
+
+	synchronized boolean isClosed() {
+		return closed;
+	}
+
+	public void ping() {
+		send(Protocols.PING);
+	}
+
+	public void reap() {
+		String name = getName();
+		System.out.println("[SERVER] Dropping unresponsive client " + (name == null ? "before it picked a name" : name));
+		link.drop();
+	}
+
+	private void send(Protocols type) {
+		queue.offer(Frame.of(type));
+	}
+
+	private void send(Protocols type, String payload) {
+		queue.offer(Frame.of(type, payload));
+	}
+
+	/**
+	 * Handles one line from the client.
+	 *
+	 * @param line only read until this returns
+	 */
+	synchronized void line(InboundLine line) {
+		if (closed)
+			return;
+		heartbeat.touch();
+		if (joining != null) {
+			if (held.size() < MAX_HELD_LINES)
+				held.add(line.toString());
+			return;
+		}
+		if (name == null)
+			negotiate(line.toString());
+		else
+			chat(line);
+	}
+
+	private void negotiate(String line) {
+		// Nobody can be called PONG; it answers a PING sent while the
+		// client makes up its mind.
+		if (line.equals("PONG"))
+			return;
+
+		// A client that speaks binary asks for it first.
+		if (line.equals(BinaryCodec.UPGRADE_REQUEST) && !binary) {
+			binary = true;
+			link.upgrade();
+			send(Protocols.BINARYACCEPTED);
+			send(Protocols.SUBMITNAME);
+			return;
+		}
+
+		String[] words = MessageRouter.parseHello(line);
+		String token = null;
+		hello = words != null;
+		if (hello) {
+			if (words.length > 2 || words[0].length() == 0 || !MessageRouter.isValidLength(words[0])) {
+				send(Protocols.REJECTED, "INVALID Send HELLO <name> [token], with a name of at most 100 bytes and no spaces.");
+				return;
+			}
+			line = words[0];
+			token = words.length > 1 ? words[1] : null;
+		} else if (line.length() == 0 || line.indexOf(" ") > -1) {
+			// Force the name not to be empty or contain white spaces.
+			send(Protocols.ERROR, "ERROR: Screen names cannot be empty or contain spaces.");
+			send(Protocols.SUBMITNAME);
+			return;
+		} else if (!MessageRouter.isValidLength(line)) {
+			send(Protocols.ERROR, "ERROR: Screen names cannot be longer than 100 bytes.");
+			send(Protocols.SUBMITNAME);
+			return;
+		}
+
+		// Claiming the name also queues NAMEACCEPTED, or WELCOME, and the
+		// recent history.  Lines that arrive before the answer wait for
+		// it.
+		joining = line;
+		MessageRouter.JoinListener done = new MessageRouter.JoinListener() {
+			public void joined(final boolean accepted) {
+				link.execute(new Runnable() {
+					public void run() {
+						Session.this.joined(accepted);
+					}
+				});
+			}
+		};
+		if (hello)
+			router.hello(line, token, queue, done);
+		else
+			router.join(line, queue, done);
+	}
+
+	private synchronized void joined(boolean accepted) {
+		String requested = joining;
+		joining = null;
+		if (closed) {
+			// Gone while the name was being claimed.
+			if (accepted)
+				router.leave(requested, queue, router.getLobby());
+			return;
+		}
+
+		if (accepted) {
+			name = requested;
+			from = (requested + ": ").getBytes(StandardCharsets.UTF_8);
+			room = router.getLobby();
+		} else if (hello) {
+			send(Protocols.REJECTED, "TAKEN " + requested + " is already in use.");
+		} else {
+			send(Protocols.ERROR, "ERROR: The name " + requested + " is already in use.");
+			send(Protocols.SUBMITNAME);
+		}
+		while (joining == null && !closed && !held.isEmpty())
+			line(InboundLine.of(held.poll()));
+	}
+
+	private void chat(InboundLine line) {
+		ServerMetrics.messageIn();
+		if (line.is("QUIT")) {
+			router.quit(name);
+			// Nothing the client sent after QUIT counts.
+			close();
+			link.drop();
+			return;
+		} else if (line.is("PONG")) {
+			return;
+		}
+
+		if (!limits.allow()) {
+			if (limits.warn())
+				send(Protocols.ERROR, "ERROR: You are sending too fast; some messages were dropped.");
+			return;
+		}
+
+		if (line.length() > 0 && line.byteAt(0) == '@') {
+			int space = line.indexOf((byte) ' ', 1);
+			if (space < 0) {
+				send(Protocols.ERROR, "ERROR: There must be a space between the name and the message.");
+				return;
+			}
+
+			// Deliver straight to the sender and the target.
+			line.copyTo(1, space, target);
+			if (!router.privateMessage(name, from, queue, line, target))
+				send(Protocols.ERROR, "ERROR: User @" + target + " does not exist!");
+			return;
+		}
+
+		if (line.startsWith("/join ") || line.is("/join")) {
+			String to = line.toString(5, line.length()).trim();
+			if (!Room.isValidName(to))
+				send(Protocols.ERROR, "ERROR: Usage: /join <room>, with no spaces in the room name.");
+			else if (to.equals(room.getName()))
+				send(Protocols.ERROR, "ERROR: You are already in " + to + ".");
+			else
+				room = router.move(name, queue, room, to);
+			return;
+		} else if (line.is("/leave")) {
+			if (room == router.getLobby())
+				send(Protocols.ERROR, "ERROR: You are already in the lobby.");
+			else
+				room = router.move(name, queue, room, Room.LOBBY);
+			return;
+		} else if (line.startsWith("SEARCH ")) {
+			router.search(name, line.toString(7, line.length()), queue);
+			return;
+		}
+
+		// A broadcast is encoded once, from the bytes as they came, and
+		// shared by every member of the sender's room.
+		router.broadcast(room, from, line);
+	}
+
+	/**
+	 * The connection is down: frees the name and the limits and stops
+	 * the queue.  The transport closes the socket itself.
+	 */
+	synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		heartbeat.stop();
+		if (opened)
+			ServerMetrics.connectionClosed();
+		if (name != null)
+			router.leave(name, queue, room);
+		queue.close();
+		limits.close();
+	}
+}
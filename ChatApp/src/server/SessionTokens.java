@@ -0,0 +1,157 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chatApp.ServerConfig;
+
+/**
+ * Resume tokens for clients that sign in with HELLO.  Every HELLO that
+ * gets a name is issued a new random token, kept here against the name,
+ * and a client that comes back with it gets the name back and another
+ * new token.  Only the last token issued for a name is good.  It is
+ * revoked when its client says QUIT, when the hold on the name runs
+ * out, and when someone claims the name without it, so a token never
+ * outlives the session it was issued to.  Tokens are kept by this node
+ * only and are lost on a restart.
+ *
+ * When a client that signed in with HELLO drops, its name is held for
+ * chat.session.graceMillis (default 30 seconds) so that only the token
+ * holder can take it back.
+ */
+final class SessionTokens {
+	private static final int TOKEN_BYTES = 16;
+	// Expired holds are swept out every this many drops.
+	private static final int SWEEP_EVERY = 1024;
+
+	/**
+	 * The token issued for a name, and whether the name is held for it.
+	 */
+	private static final class Grant {
+		final String token;
+		// When the session first claimed the name, before any resume.
+		final long claimed;
+		final boolean held;
+		// When the hold ends, in System.nanoTime terms.
+		final long until;
+
+		Grant(String token, long claimed, boolean held, long until) {
+			this.token = token;
+			this.claimed = claimed;
+			this.held = held;
+			this.until = until;
+		}
+	}
+
+	private final long graceNanos;
+	private final SecureRandom random = new SecureRandom();
+	private final ConcurrentHashMap<String, Grant> grants = new ConcurrentHashMap<String, Grant>();
+	private final AtomicInteger drops = new AtomicInteger();
+
+	SessionTokens(long graceMillis) {
+		this.graceNanos = graceMillis * 1000000L;
+	}
+
+	static SessionTokens fromConfig(ServerConfig config) {
+		return new SessionTokens(config.getLong("session.graceMillis", 30000));
+	}
+
+	/**
+	 * Starts a resumable session, replacing any token issued before.
+	 *
+	 * @param claimed when the session claimed the name, kept across
+	 *        resumes; see claimed
+	 * @return the token that gets the name back later
+	 */
+	String issue(String name, long claimed) {
+		byte[] bytes = new byte[TOKEN_BYTES];
+		random.nextBytes(bytes);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		grants.put(name, new Grant(token, claimed, false, 0));
+		return token;
+	}
+
+	/**
+	 * @return when the session holding the name's token claimed it, or
+	 *         Long.MAX_VALUE if the name has no token
+	 */
+	long claimed(String name) {
+		Grant grant = live(name);
+		return grant == null ? Long.MAX_VALUE : grant.claimed;
+	}
+
+	/**
+	 * @return true if token is the last one issued for name and has not
+	 *         been revoked
+	 */
+	boolean verify(String name, String token) {
+		Grant grant = live(name);
+		return grant != null && token != null && MessageDigest.isEqual(
+				grant.token.getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * The name was claimed without its token: whatever was issued for it
+	 * before is no longer good.
+	 */
+	void revoke(String name) {
+		grants.remove(name);
+	}
+
+	/**
+	 * The client with this name is gone; if it signed in with HELLO,
+	 * its name is held for it, and without a grace period its token is
+	 * revoked.
+	 */
+	void disconnected(String name) {
+		Grant grant = grants.get(name);
+		if (grant == null || grant.held)
+			return;
+		if (graceNanos <= 0) {
+			grants.remove(name, grant);
+			return;
+		}
+		long now = System.nanoTime();
+		grants.replace(name, grant, new Grant(grant.token, grant.claimed, true, now + graceNanos));
+		if (drops.incrementAndGet() % SWEEP_EVERY == 0) {
+			for (Iterator<Map.Entry<String, Grant>> i = grants.entrySet().iterator(); i.hasNext();) {
+				Grant g = i.next().getValue();
+				if (g.held && g.until - now <= 0)
+					i.remove();
+			}
+		}
+	}
+
+	/**
+	 * The client with this name left for good.
+	 */
+	void ended(String name) {
+		grants.remove(name);
+	}
+
+	/**
+	 * @return true if the name is being held for its token holder
+	 */
+	boolean isHeld(String name) {
+		Grant grant = live(name);
+		return grant != null && grant.held;
+	}
+
+	/**
+	 * @return the name's grant, or null if it has none or its hold has
+	 *         run out, which revokes it
+	 */
+	private Grant live(String name) {
+		Grant grant = grants.get(name);
+		if (grant == null || !grant.held || grant.until - System.nanoTime() > 0)
+			return grant;
+		grants.remove(name, grant);
+		return null;
+	}
+}
@@ -0,0 +1,33 @@
+package server;
+
+import chatApp.ServerConfig;
+
+/**
+ * What an outbound queue does when its client cannot keep up and the
+ * queue is full.
+ */
+public enum SlowConsumerPolicy {
+	/**
+	 * Throw away the oldest queued line to make room for the new one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Give up on the client and close its connection.
+	 */
+	DISCONNECT,
+
+	/**
+	 * Drop new lines while the queue is full and tell the client once,
+	 * with a single notice, how many it missed.
+	 */
+	COALESCE;
+
+	/**
+	 * Reads the policy from chat.outbound.policy, defaulting to
+	 * DROP_OLDEST.
+	 */
+	public static SlowConsumerPolicy fromConfig(ServerConfig config) {
+		return valueOf(config.getSlowConsumerPolicy().toUpperCase());
+	}
+}
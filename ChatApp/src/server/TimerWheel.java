@@ -0,0 +1,124 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timer wheel: one thread serves the timeouts of every
+ * connection.  Time is cut into fixed ticks and a task lands in the
+ * slot for the tick it is due on; each tick only the tasks in one slot
+ * are looked at.  Deadlines are therefore only as precise as a tick,
+ * which is plenty for idle detection.
+ *
+ * The wheel also keeps a coarse clock that connections can read on
+ * every message without calling System.nanoTime.
+ */
+public final class TimerWheel {
+
+	/**
+	 * Something to run when its timeout expires, on the wheel thread.
+	 * Tasks must be quick; anything slow belongs on another thread.
+	 */
+	public interface Task {
+		void expired();
+	}
+
+	private static final class Entry {
+		final Task task;
+		final long deadline;
+
+		Entry(Task task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+	}
+
+	private final long tickMillis;
+	private final ConcurrentLinkedQueue<Entry>[] slots;
+	private final int mask;
+	private final long startNanos = System.nanoTime();
+	private volatile long tick;
+
+	/**
+	 * @param tickMillis the length of one tick
+	 * @param slotCount the number of slots, rounded up to a power of two
+	 */
+	public TimerWheel(String name, long tickMillis, int slotCount) {
+		this.tickMillis = tickMillis;
+		int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+		this.slots = newSlots(size);
+		this.mask = size - 1;
+
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				turn();
+			}
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	private static ConcurrentLinkedQueue<Entry>[] newSlots(int size) {
+		@SuppressWarnings("unchecked")
+		ConcurrentLinkedQueue<Entry>[] slots = (ConcurrentLinkedQueue<Entry>[]) new ConcurrentLinkedQueue<?>[size];
+		for (int i = 0; i < size; i++)
+			slots[i] = new ConcurrentLinkedQueue<Entry>();
+		return slots;
+	}
+
+	/**
+	 * @return milliseconds since the wheel started, advanced once per tick
+	 */
+	public long now() {
+		return tick * tickMillis;
+	}
+
+	/**
+	 * Runs the task once, about delayMillis from now.  Safe to call from
+	 * any thread, including from inside an expiring task.
+	 */
+	public void schedule(Task task, long delayMillis) {
+		long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+		long deadline = tick + ticks;
+		slots[(int) (deadline & mask)].add(new Entry(task, deadline));
+	}
+
+	private void turn() {
+		List<Entry> due = new ArrayList<Entry>();
+		while (true) {
+			long next = (tick + 1) * tickMillis;
+			long sleep = next - (System.nanoTime() - startNanos) / 1000000L;
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			long current = tick + 1;
+			tick = current;
+
+			// Take the slot's entries first, so tasks rescheduling into
+			// the same slot are not seen again during this tick.
+			ConcurrentLinkedQueue<Entry> slot = slots[(int) (current & mask)];
+			Entry entry;
+			while ((entry = slot.poll()) != null)
+				due.add(entry);
+
+			for (Entry e : due) {
+				if (e.deadline > current) {
+					// Not this time round the wheel.
+					slot.add(e);
+					continue;
+				}
+				try {
+					e.task.expired();
+				} catch (RuntimeException ex) {
+					System.out.println(ex);
+				}
+			}
+			due.clear();
+		}
+	}
+}
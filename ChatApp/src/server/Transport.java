@@ -0,0 +1,41 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * How a ServerCore moves bytes between its clients and their sessions.
+ * The core accepts connections and applies flood control; a transport
+ * takes each connection from there, reads lines off it into a Session
+ * and drains the client's OutboundQueue back onto it.  See ServerCore
+ * for the transports there are.
+ *
+ * The core calls open, then start, then accept for every connection.
+ * toString names the transport in the server's log.
+ */
+interface Transport {
+	/**
+	 * Prepares the transport for core, before the core's router
+	 * exists.
+	 *
+	 * @return the executors rooms should publish on, or null to give
+	 *         rooms threads of their own
+	 */
+	Executor[] open(ServerCore core) throws IOException;
+
+	/**
+	 * Starts whatever threads the transport runs on.  The core is
+	 * complete by now.
+	 */
+	void start();
+
+	/**
+	 * Serves a newly accepted connection until it closes.  Must not
+	 * block the accepting thread for long.
+	 *
+	 * @param limits how fast the client may send; the transport closes
+	 *        them with the connection, through its Session
+	 */
+	void accept(SocketChannel channel, FloodControl.Client limits) throws IOException;
+}
@@ -0,0 +1,47 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factories for the blocking server.  Virtual threads are looked
+ * up reflectively so the project still compiles and runs on JDKs that
+ * predate them (they are final in Java 21).
+ */
+public final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return a factory for virtual threads named prefix + counter, or
+	 *         null if this JVM has no virtual threads
+	 */
+	public static ThreadFactory virtualFactory(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			Method name = builderType.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix, 0L);
+			return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// e.g. preview features not enabled on Java 19/20
+			return null;
+		}
+	}
+
+	/**
+	 * @return a factory for ordinary platform threads named prefix + counter
+	 */
+	public static ThreadFactory platformFactory(final String prefix) {
+		final AtomicInteger counter = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				return new Thread(task, prefix + counter.getAndIncrement());
+			}
+		};
+	}
+}
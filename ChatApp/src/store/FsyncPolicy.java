@@ -0,0 +1,34 @@
+package store;
+
+import chatApp.ServerConfig;
+
+/**
+ * When the message log forces what it has written to disk.  Appends
+ * land in the page cache right away; the policy only decides how much
+ * can be lost if the machine, not just the process, goes down.
+ */
+public enum FsyncPolicy {
+	/**
+	 * Group commit: the log writer forces once after every batch it
+	 * drains, so all messages that arrived together share one fsync.
+	 */
+	BATCH,
+
+	/**
+	 * Force at most once per fsync interval.  Up to one interval of
+	 * messages can be lost in a power failure.
+	 */
+	INTERVAL,
+
+	/**
+	 * Never force; the operating system writes pages back when it likes.
+	 */
+	NONE;
+
+	/**
+	 * Reads the policy from chat.log.fsync, defaulting to INTERVAL.
+	 */
+	public static FsyncPolicy fromConfig(ServerConfig config) {
+		return valueOf(config.getString("log.fsync", "INTERVAL").toUpperCase());
+	}
+}
@@ -0,0 +1,411 @@
+package store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * One immutable file of the search index, covering the log offsets from
+ * its base up to, not including, its next offset.  It is memory-mapped
+ * and never read onto the heap, so a server can search tens of millions
+ * of messages with little more memory than the page cache lends it.
+ *
+ *     header (64 bytes): magic, version, level, term count, base offset,
+ *                        next offset, and where the regions start
+ *     postings: one Postings list per term, in term order
+ *     dictionary: per term, varint length, the term in UTF-8 and the
+ *                 varint position of its postings
+ *     table: per term, an int with the position of its dictionary entry,
+ *            so a term is found with a binary search
+ *     times: pairs of longs (offset, timestamp), for the first message
+ *            and then every TIME_INTERVAL messages
+ *
+ * A segment is written under a temporary name and renamed when it is
+ * complete, so a crash leaves either the whole file or none of it.
+ */
+final class IndexSegment {
+	static final int TIME_INTERVAL = 256;
+
+	private static final int MAGIC = 0x43494458;	// "CIDX"
+	private static final int VERSION = 2;
+	private static final int HEADER = 64;
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int level;
+	private final int terms;
+	private final long baseOffset;
+	private final long nextOffset;
+	private final int dictionaryStart;
+	private final int tableStart;
+	private final int timesStart;
+	private final int timeCount;
+
+	private IndexSegment(File file, MappedByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("Not a search index segment: " + file);
+		this.level = buffer.getInt(8);
+		this.terms = buffer.getInt(12);
+		this.baseOffset = buffer.getLong(16);
+		this.nextOffset = buffer.getLong(24);
+		this.dictionaryStart = buffer.getInt(32);
+		this.tableStart = buffer.getInt(36);
+		this.timesStart = buffer.getInt(40);
+		this.timeCount = buffer.getInt(44);
+	}
+
+	static String fileName(long baseOffset, long nextOffset) {
+		return String.format("%020d-%020d.idx", baseOffset, nextOffset);
+	}
+
+	/**
+	 * Maps an existing segment file.
+	 */
+	static IndexSegment open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// The mapping stays valid after the channel is closed.
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			return new IndexSegment(file, buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long size() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * @return 0 for a segment flushed from memory, one more than its
+	 *         inputs' for a merged one
+	 */
+	int getLevel() {
+		return level;
+	}
+
+	long getBaseOffset() {
+		return baseOffset;
+	}
+
+	long getNextOffset() {
+		return nextOffset;
+	}
+
+	int getTermCount() {
+		return terms;
+	}
+
+	/**
+	 * @return the postings of the term, or null if no message in the
+	 *         segment has it
+	 */
+	Postings.Reader postings(String term) {
+		int lo = 0;
+		int hi = terms - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = term(mid).compareTo(term);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return postingsAt(mid);
+		}
+		return null;
+	}
+
+	String term(int index) {
+		int[] pos = { dictionaryStart + buffer.getInt(tableStart + index * 4) };
+		int length = (int) Postings.getVarLong(buffer, pos);
+		byte[] bytes = new byte[length];
+		ByteBuffer b = buffer.duplicate();
+		b.position(pos[0]);
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	Postings.Reader postingsAt(int index) {
+		int[] pos = { dictionaryStart + buffer.getInt(tableStart + index * 4) };
+		int length = (int) Postings.getVarLong(buffer, pos);
+		pos[0] += length;
+		return new Postings.Reader(buffer, (int) Postings.getVarLong(buffer, pos));
+	}
+
+	/**
+	 * @return an offset below which every message of the segment is
+	 *         older than timestamp, as far as the clock kept going
+	 *         forward
+	 */
+	long lowerBound(long timestamp) {
+		int i = firstAtOrAfter(timestamp);
+		return i == 0 ? baseOffset : offsetAt(i - 1);
+	}
+
+	/**
+	 * @return an offset from which on every message of the segment is at
+	 *         least as new as timestamp
+	 */
+	long upperBound(long timestamp) {
+		int i = firstAtOrAfter(timestamp);
+		return i == timeCount ? nextOffset : offsetAt(i);
+	}
+
+	// The first sample at or after timestamp, or timeCount.
+	private int firstAtOrAfter(long timestamp) {
+		int lo = 0;
+		int hi = timeCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (timeAt(mid) < timestamp)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private long offsetAt(int i) {
+		return buffer.getLong(timesStart + i * 16);
+	}
+
+	private long timeAt(int i) {
+		return buffer.getLong(timesStart + i * 16 + 8);
+	}
+
+	/**
+	 * Deletes the file.  Searches still holding the segment keep
+	 * reading the mapping.
+	 */
+	void delete() {
+		if (!file.delete())
+			System.out.println("[LOG] Could not delete " + file);
+	}
+
+	/**
+	 * Writes a segment from terms in ascending order and maps it.
+	 *
+	 * @param times pairs of (offset, timestamp), as described above
+	 */
+	static IndexSegment write(File dir, int level, long baseOffset, long nextOffset,
+			Iterator<? extends Map.Entry<String, ? extends Postings.Source>> terms, long[] times, int timeCount)
+			throws IOException {
+		File target = new File(dir, fileName(baseOffset, nextOffset));
+		File tmp = new File(dir, target.getName() + ".tmp");
+		File dictionaryTmp = new File(dir, target.getName() + ".dict.tmp");
+		File tableTmp = new File(dir, target.getName() + ".table.tmp");
+		try {
+			Counting out = new Counting(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			Counting dictionary = new Counting(new BufferedOutputStream(new FileOutputStream(dictionaryTmp), 1 << 16));
+			DataOutputStream table = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tableTmp), 1 << 16));
+			int count = 0;
+			boolean written = false;
+			try {
+				out.write(new byte[HEADER]);
+				while (terms.hasNext()) {
+					Map.Entry<String, ? extends Postings.Source> e = terms.next();
+					long postingsAt = out.count;
+					e.getValue().writeTo(out);
+
+					table.writeInt(checkedInt(dictionary.count));
+					byte[] term = e.getKey().getBytes(StandardCharsets.UTF_8);
+					Postings.writeVarLong(dictionary, term.length);
+					dictionary.write(term);
+					Postings.writeVarLong(dictionary, checkedInt(postingsAt));
+					count++;
+				}
+				written = true;
+			} finally {
+				dictionary.close();
+				table.close();
+				if (!written)
+					out.close();
+			}
+
+			long dictionaryStart;
+			long tableStart;
+			long timesStart;
+			try {
+				dictionaryStart = out.count;
+				copy(dictionaryTmp, out);
+				tableStart = out.count;
+				copy(tableTmp, out);
+				timesStart = out.count;
+				DataOutputStream data = new DataOutputStream(out);
+				for (int i = 0; i < timeCount * 2; i++)
+					data.writeLong(times[i]);
+				data.flush();
+				checkedInt(out.count);
+			} finally {
+				out.close();
+			}
+
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				header.putInt(MAGIC).putInt(VERSION).putInt(level).putInt(count);
+				header.putLong(baseOffset).putLong(nextOffset);
+				header.putInt((int) dictionaryStart).putInt((int) tableStart).putInt((int) timesStart).putInt(timeCount);
+				header.rewind();
+				raf.getChannel().write(header, 0);
+				raf.getChannel().force(true);
+			} finally {
+				raf.close();
+			}
+			if (!tmp.renameTo(target))
+				throw new IOException("Cannot rename " + tmp + " to " + target);
+		} finally {
+			tmp.delete();
+			dictionaryTmp.delete();
+			tableTmp.delete();
+		}
+		return open(target);
+	}
+
+	/**
+	 * Merges neighbouring segments, given oldest first, into one of the
+	 * next level.  Postings of a term are concatenated in segment order,
+	 * so they stay ascending, and stream from the inputs to the output a
+	 * block at a time.
+	 */
+	static IndexSegment merge(File dir, final List<IndexSegment> segments) throws IOException {
+		int level = 0;
+		int timeCount = 0;
+		for (IndexSegment s : segments) {
+			level = Math.max(level, s.level + 1);
+			timeCount += s.timeCount;
+		}
+		long[] times = new long[timeCount * 2];
+		int t = 0;
+		for (IndexSegment s : segments) {
+			for (int i = 0; i < s.timeCount; i++) {
+				times[t++] = s.offsetAt(i);
+				times[t++] = s.timeAt(i);
+			}
+		}
+
+		// Walks the term tables of all inputs at once, lowest term first.
+		final PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>();
+		for (int i = 0; i < segments.size(); i++) {
+			if (segments.get(i).terms > 0)
+				cursors.add(new Cursor(segments.get(i), i));
+		}
+		Iterator<Map.Entry<String, Postings.Source>> terms = new Iterator<Map.Entry<String, Postings.Source>>() {
+			private final long[] block = new long[Postings.BLOCK];
+			private final List<Cursor> same = new ArrayList<Cursor>();
+
+			public boolean hasNext() {
+				return !cursors.isEmpty();
+			}
+
+			public Map.Entry<String, Postings.Source> next() {
+				String term = cursors.peek().term;
+				same.clear();
+				while (!cursors.isEmpty() && cursors.peek().term.equals(term))
+					same.add(cursors.poll());
+				// The queue orders equal terms by segment, oldest first.
+				List<Postings.Reader> lists = new ArrayList<Postings.Reader>(same.size());
+				for (Cursor c : same) {
+					lists.add(c.segment.postingsAt(c.index));
+					if (c.advance())
+						cursors.add(c);
+				}
+				return new AbstractMap.SimpleImmutableEntry<String, Postings.Source>(term,
+						new Postings.Concatenation(lists, block));
+			}
+		};
+
+		IndexSegment first = segments.get(0);
+		IndexSegment last = segments.get(segments.size() - 1);
+		return write(dir, level, first.baseOffset, last.nextOffset, terms, times, timeCount);
+	}
+
+	private static final class Cursor implements Comparable<Cursor> {
+		final IndexSegment segment;
+		final int order;
+		int index;
+		String term;
+
+		Cursor(IndexSegment segment, int order) {
+			this.segment = segment;
+			this.order = order;
+			this.term = segment.term(0);
+		}
+
+		boolean advance() {
+			if (++index >= segment.terms)
+				return false;
+			term = segment.term(index);
+			return true;
+		}
+
+		public int compareTo(Cursor o) {
+			int c = term.compareTo(o.term);
+			return c != 0 ? c : Integer.compare(order, o.order);
+		}
+	}
+
+	private static int checkedInt(long position) throws IOException {
+		if (position > Integer.MAX_VALUE)
+			throw new IOException("Search index segment would exceed 2 GB");
+		return (int) position;
+	}
+
+	private static void copy(File from, OutputStream to) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(from), 1 << 16);
+		try {
+			byte[] chunk = new byte[1 << 16];
+			int n;
+			while ((n = in.read(chunk)) > 0)
+				to.write(chunk, 0, n);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Counts the bytes written through it.
+	 */
+	private static final class Counting extends FilterOutputStream {
+		long count;
+
+		Counting(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
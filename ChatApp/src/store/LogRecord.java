@@ -0,0 +1,93 @@
+package store;
+
+/**
+ * One message read back from the log.
+ */
+public final class LogRecord {
+	private final long offset;
+	private final long timestamp;
+	private final String room;
+	private final String sender;
+	private final String text;
+
+	public LogRecord(long offset, long timestamp, String room, String sender, String text) {
+		this.offset = offset;
+		this.timestamp = timestamp;
+		this.room = room;
+		this.sender = sender;
+		this.text = text;
+	}
+
+	/**
+	 * @return the position of the message in the log; the first message
+	 *         ever written is 0 and every message adds one
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return when the message was sent, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the room the message was sent in, "" for messages written
+	 *         before the log recorded rooms, or the conversation of a
+	 *         private message
+	 */
+	public String getRoom() {
+		return room;
+	}
+
+	/**
+	 * @return true if this is a private message, whose room is the
+	 *         conversation of its two names
+	 */
+	public boolean isPrivate() {
+		return room.indexOf(' ') >= 0;
+	}
+
+	/**
+	 * @return true for a message everyone may read, or a private message
+	 *         name sent or received
+	 */
+	public boolean isVisibleTo(String name) {
+		if (!isPrivate())
+			return true;
+		int space = room.indexOf(' ');
+		return room.substring(1, space).equals(name) || room.substring(space + 1).equals(name);
+	}
+
+	/**
+	 * @return the other side of a private message, seen from name
+	 */
+	public String getPeer(String name) {
+		int space = room.indexOf(' ');
+		String a = room.substring(1, space);
+		return a.equals(name) ? room.substring(space + 1) : a;
+	}
+
+	/**
+	 * @return the room private messages between a and b are logged
+	 *         under: "@" and the two names in order, with a space
+	 *         between, which no room name can contain
+	 */
+	public static String conversation(String a, String b) {
+		return a.compareTo(b) <= 0 ? "@" + a + " " + b : "@" + b + " " + a;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public String toString() {
+		return offset + " #" + room + " " + sender + ": " + text;
+	}
+}
@@ -0,0 +1,324 @@
+package store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import chatApp.BinaryCodec;
+
+/**
+ * One fixed-size, memory-mapped file of the message log, plus its
+ * offset index.  Records are laid end to end:
+ *
+ *     int    length of the body
+ *     int    CRC32 of the body
+ *     body:  long   timestamp
+ *            byte   format version
+ *            varint room length, room in UTF-8 (from version 2 on)
+ *            varint sender length, sender in UTF-8
+ *            text in UTF-8 (the rest of the body)
+ *
+ * The unused rest of the file is zero, and a zero length marks the end
+ * of the records.  The index file holds an entry of (record number,
+ * file position) for the first record and then roughly every 4 KB, so
+ * finding a message means a binary search of the index and a short
+ * scan.
+ *
+ * Only the MessageLog writer thread appends.  Readers only look at
+ * records below the published count, which is written after the bytes.
+ */
+final class LogSegment {
+	static final int HEADER = 8;
+	private static final byte VERSION = 2;
+	private static final int INDEX_ENTRY = 8;
+	private static final int INDEX_INTERVAL = 4096;
+
+	// Larger than any record, so a chunk of zeros past the end means
+	// nothing was ever written beyond it.
+	private static final int CLEAN_CHUNK = 2 * (HEADER + 16 + BinaryCodec.MAX_PAYLOAD);
+
+	private final long baseOffset;
+	private final RandomAccessFile logFile;
+	private final RandomAccessFile indexFile;
+	private final MappedByteBuffer log;
+	private final MappedByteBuffer index;
+	private final int capacity;
+	private final CRC32 crc = new CRC32();
+	private volatile int indexEntries;
+	private int lastIndexed;
+	private int end;
+	private volatile int count;
+	private int tornBytes;
+
+	private LogSegment(File dir, long baseOffset, int capacity) throws IOException {
+		this.baseOffset = baseOffset;
+		File file = new File(dir, fileName(baseOffset, ".log"));
+		boolean existed = file.exists();
+		this.logFile = new RandomAccessFile(file, "rw");
+		this.indexFile = new RandomAccessFile(new File(dir, fileName(baseOffset, ".idx")), "rw");
+		this.capacity = existed ? (int) logFile.length() : capacity;
+		int indexBytes = (this.capacity / INDEX_INTERVAL + 2) * INDEX_ENTRY;
+
+		this.log = logFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+		this.index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexBytes);
+	}
+
+	static String fileName(long baseOffset, String suffix) {
+		return String.format("%020d%s", baseOffset, suffix);
+	}
+
+	/**
+	 * Creates an empty segment whose first record will be baseOffset.
+	 */
+	static LogSegment create(File dir, long baseOffset, int capacity) throws IOException {
+		return new LogSegment(dir, baseOffset, capacity);
+	}
+
+	/**
+	 * Opens a full segment that was forced to disk before the next one
+	 * was started.  Its index is trusted as it is.
+	 */
+	static LogSegment openSealed(File dir, long baseOffset, long recordCount) throws IOException {
+		LogSegment segment = new LogSegment(dir, baseOffset, 0);
+		segment.count = (int) recordCount;
+		int n = 0;
+		int max = segment.index.capacity() / INDEX_ENTRY;
+		while (n < max && (n == 0 || segment.index.getInt(n * INDEX_ENTRY + 4) > 0))
+			n++;
+		segment.indexEntries = recordCount == 0 ? 0 : n;
+		return segment;
+	}
+
+	/**
+	 * Opens the segment that was being written when the server stopped.
+	 * Every record is checked; the log ends at the first one that is
+	 * incomplete or fails its checksum, and whatever follows it is
+	 * zeroed so it can never be mistaken for a record later.  The index
+	 * is rebuilt from what survives.
+	 *
+	 * @return the segment; getTornBytes tells whether a tail was cut
+	 */
+	static LogSegment recover(File dir, long baseOffset, int capacity) throws IOException {
+		LogSegment segment = new LogSegment(dir, baseOffset, capacity);
+		segment.scan();
+		return segment;
+	}
+
+	private void scan() {
+		int pos = 0;
+		int n = 0;
+		indexEntries = 0;
+		while (pos + HEADER <= capacity) {
+			int length = log.getInt(pos);
+			if (length <= 0 || length > capacity - pos - HEADER)
+				break;
+			if (checksum(pos + HEADER, length) != log.getInt(pos + 4))
+				break;
+			index(n, pos);
+			pos += HEADER + length;
+			n++;
+		}
+		end = pos;
+		count = n;
+		tornBytes = clearFrom(pos);
+		// Drop index entries left behind by the records that were cut.
+		int max = index.capacity() / INDEX_ENTRY;
+		for (int i = Math.max(indexEntries, 1); i < max && index.getInt(i * INDEX_ENTRY + 4) > 0; i++)
+			index.putLong(i * INDEX_ENTRY, 0);
+	}
+
+	/**
+	 * Zeroes everything from pos up to the first chunk that is already
+	 * clean.
+	 *
+	 * @return how many non-zero bytes were wiped
+	 */
+	private int clearFrom(int pos) {
+		int wiped = 0;
+		while (pos < capacity) {
+			int limit = Math.min(capacity, pos + CLEAN_CHUNK);
+			int dirty = 0;
+			for (int i = pos; i < limit; i++) {
+				if (log.get(i) != 0) {
+					log.put(i, (byte) 0);
+					dirty++;
+				}
+			}
+			if (dirty == 0)
+				break;
+			wiped += dirty;
+			pos = limit;
+		}
+		return wiped;
+	}
+
+	/**
+	 * @return the non-zero bytes found and wiped past the last good
+	 *         record when the segment was recovered
+	 */
+	int getTornBytes() {
+		return tornBytes;
+	}
+
+	long getBaseOffset() {
+		return baseOffset;
+	}
+
+	/**
+	 * @return the offset the next record in this segment would get
+	 */
+	long getNextOffset() {
+		return baseOffset + count;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * Appends a record.  Only called by the log writer thread.
+	 *
+	 * @return false if the record does not fit in what is left of the
+	 *         segment
+	 */
+	boolean append(long timestamp, byte[] room, byte[] sender, byte[] text) {
+		int length = 8 + 1 + BinaryCodec.varintSize(room.length) + room.length
+				+ BinaryCodec.varintSize(sender.length) + sender.length + text.length;
+		if ((long) end + HEADER + length > capacity)
+			return false;
+
+		int pos = end + HEADER;
+		log.putLong(pos, timestamp);
+		pos += 8;
+		log.put(pos++, VERSION);
+		ByteBuffer body = log.duplicate();
+		body.position(pos);
+		putString(body, room);
+		putString(body, sender);
+		body.put(text);
+
+		log.putInt(end + 4, checksum(end + HEADER, length));
+		log.putInt(end, length);
+
+		index(count, end);
+		end += HEADER + length;
+		count++;
+		return true;
+	}
+
+	private static void putString(ByteBuffer body, byte[] s) {
+		int length = s.length;
+		while ((length & ~0x7F) != 0) {
+			body.put((byte) ((length & 0x7F) | 0x80));
+			length >>>= 7;
+		}
+		body.put((byte) length);
+		body.put(s);
+	}
+
+	private void index(int record, int pos) {
+		if (record != 0 && pos - lastIndexed < INDEX_INTERVAL)
+			return;
+		int at = indexEntries * INDEX_ENTRY;
+		if (at + INDEX_ENTRY > index.capacity())
+			return;
+		index.putInt(at, record);
+		index.putInt(at + 4, pos);
+		lastIndexed = pos;
+		indexEntries++;
+	}
+
+	private int checksum(int pos, int length) {
+		ByteBuffer body = log.duplicate();
+		body.limit(pos + length);
+		body.position(pos);
+		crc.reset();
+		crc.update(body);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Adds up to max records, starting at the given offset, to out.
+	 *
+	 * @return the number of records added
+	 */
+	int read(long fromOffset, int max, List<LogRecord> out) {
+		int last = count;
+		int record = (int) Math.max(0, fromOffset - baseOffset);
+		if (record >= last || max <= 0)
+			return 0;
+
+		// Find the last index entry at or before the record.
+		int lo = 0;
+		int hi = indexEntries - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (index.getInt(mid * INDEX_ENTRY) <= record)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		int n = index.getInt(lo * INDEX_ENTRY);
+		int pos = index.getInt(lo * INDEX_ENTRY + 4);
+
+		int added = 0;
+		while (n < last && added < max) {
+			int length = log.getInt(pos);
+			if (n >= record) {
+				out.add(decode(baseOffset + n, pos + HEADER, length));
+				added++;
+			}
+			pos += HEADER + length;
+			n++;
+		}
+		return added;
+	}
+
+	private LogRecord decode(long offset, int pos, int length) {
+		ByteBuffer body = log.duplicate();
+		body.limit(pos + length);
+		body.position(pos);
+		long timestamp = body.getLong();
+		byte version = body.get();
+		String room = version >= 2 ? getString(body) : "";
+		String sender = getString(body);
+		byte[] text = new byte[body.remaining()];
+		body.get(text);
+		return new LogRecord(offset, timestamp, room, sender, new String(text, StandardCharsets.UTF_8));
+	}
+
+	private static String getString(ByteBuffer body) {
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = body.get();
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		byte[] s = new byte[length];
+		body.get(s);
+		return new String(s, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Forces the records and the index to disk.
+	 */
+	void force() {
+		log.force();
+		index.force();
+	}
+
+	void close() throws IOException {
+		force();
+		logFile.close();
+		indexFile.close();
+	}
+}
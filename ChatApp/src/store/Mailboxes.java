@@ -0,0 +1,784 @@
+package store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import chatApp.ServerConfig;
+
+/**
+ * Private messages for names that are not signed in, kept on disk until
+ * they are.  Every name has a mailbox file of its own, named after the
+ * hex of the name's UTF-8 bytes, which is why the server takes no name
+ * longer than 100 bytes:
+ *
+ *     header:  int  magic
+ *              int  version
+ *              long file position of the first message not yet taken
+ *     records: int  length of the body
+ *              int  CRC32 of the body
+ *              body: long   timestamp
+ *                    varint sender length, sender in UTF-8
+ *                    text in UTF-8 (the rest of the body)
+ *
+ * put only adds the message to the mailbox in memory.  A single writer
+ * thread appends whatever has piled up in a mailbox with one write.
+ * take only queues a request; the writer reads the mailbox from the
+ * mark in one read, together with anything not written yet, moves the
+ * mark past what it took and hands the messages to the request's
+ * Receiver.  discard is queued the same way.  So no file is ever touched but by the writer, and it does
+ * its file I/O outside the mailbox's monitor, so put never waits for
+ * the disk.
+ *
+ * Each mailbox holds at most chat.mailbox.messages messages (default
+ * 500) and chat.mailbox.bytes (default 1 MB), and all of them together
+ * at most chat.mailbox.totalBytes (default 256 MB); put refuses a
+ * message that does not fit.  Messages older than
+ * chat.mailbox.ttlMillis (default 7 days) are never delivered.  Every
+ * chat.mailbox.sweepMillis (default 1 minute) the writer moves each
+ * mailbox's mark past the expired messages at its head.
+ *
+ * Marking messages taken leaves them in the file.  When a mailbox is
+ * empty its file is deleted; when more than half of a file, and at
+ * least 64 KB, is behind the mark, what is left is copied to a new file
+ * that replaces it.
+ *
+ * On open every record after the mark is checked, and a mailbox ends
+ * at the first one that is incomplete or fails its checksum.
+ *
+ * The mailboxes live in chat.mailbox.dir (default the "mailbox"
+ * directory of chat.log.dir) and are kept whenever either is set,
+ * unless chat.mailbox.enabled is false.
+ */
+public final class Mailboxes {
+	private static final int MAGIC = 0x43484d42;
+	private static final int VERSION = 1;
+	private static final int HEADER = 16;
+	private static final int RECORD_HEADER = 8;
+	private static final long COMPACT_BYTES = 64 * 1024;
+	private static final String SUFFIX = ".box";
+
+	/**
+	 * A message taken out of a mailbox.
+	 */
+	public static final class Message {
+		private final long timestamp;
+		private final String sender;
+		private final String text;
+
+		Message(long timestamp, String sender, String text) {
+			this.timestamp = timestamp;
+			this.sender = sender;
+			this.text = text;
+		}
+
+		/**
+		 * @return when the message was sent, in milliseconds since the
+		 *         epoch
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public String getSender() {
+			return sender;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+
+	/**
+	 * Hands over the messages taken by take.  Called on the writer
+	 * thread, so it must not block.
+	 */
+	public interface Receiver {
+		void received(List<Message> messages);
+	}
+
+	/**
+	 * A take waiting for the writer, or a discard, which has no
+	 * receiver.
+	 */
+	private static final class Request {
+		final String name;
+		final int max;
+		final Receiver receiver;
+
+		Request(String name, int max, Receiver receiver) {
+			this.name = name;
+			this.max = max;
+			this.receiver = receiver;
+		}
+	}
+
+	/**
+	 * One name's mailbox.  onDisk, mark and end belong to the writer
+	 * thread; the rest is guarded by the box's monitor.
+	 */
+	private static final class Box {
+		final String name;
+		final File file;
+		boolean onDisk;
+		long mark = HEADER;
+		long end = HEADER;
+		// Records not written yet, encoded.
+		List<byte[]> pending = new ArrayList<byte[]>();
+		int count;
+		long bytes;
+		// The timestamp of the first message, or Long.MIN_VALUE if not
+		// known.
+		long oldest = Long.MIN_VALUE;
+		boolean queued;
+		boolean removed;
+
+		Box(String name, File file) {
+			this.name = name;
+			this.file = file;
+		}
+	}
+
+	private final File dir;
+	private final int maxMessages;
+	private final long maxBytes;
+	private final long maxTotalBytes;
+	private final long ttlMillis;
+	private final long sweepNanos;
+	private final ConcurrentHashMap<String, Box> boxes = new ConcurrentHashMap<String, Box>();
+	private final LinkedBlockingQueue<Box> dirty = new LinkedBlockingQueue<Box>();
+	// Queued on dirty to wake the writer for a request; never written.
+	private final Box wake = new Box("", null);
+	// Guarded by its own monitor, as is stopped.
+	private final ArrayDeque<Request> requests = new ArrayDeque<Request>();
+	private boolean stopped;
+	private final AtomicLong totalBytes = new AtomicLong();
+	private final CRC32 crc = new CRC32();
+	private final Thread writer;
+	private volatile boolean closed;
+
+	private Mailboxes(File dir, int maxMessages, long maxBytes, long maxTotalBytes, long ttlMillis, long sweepMillis) {
+		this.dir = dir;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.maxTotalBytes = maxTotalBytes;
+		this.ttlMillis = ttlMillis;
+		this.sweepNanos = TimeUnit.MILLISECONDS.toNanos(sweepMillis);
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "chat-mailbox");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Opens the mailboxes in dir, creating it if needed, and starts the
+	 * writer thread.
+	 */
+	public static Mailboxes open(File dir, int maxMessages, long maxBytes, long maxTotalBytes, long ttlMillis,
+			long sweepMillis) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create mailbox directory " + dir);
+
+		Mailboxes mailboxes = new Mailboxes(dir, maxMessages, maxBytes, maxTotalBytes, ttlMillis, sweepMillis);
+		mailboxes.load();
+		mailboxes.writer.start();
+		return mailboxes;
+	}
+
+	/**
+	 * Opens the mailboxes configured with the chat.mailbox.* settings.
+	 *
+	 * @return the mailboxes, or null if neither chat.mailbox.dir nor
+	 *         chat.log.dir is set, or mailboxes are off
+	 */
+	public static Mailboxes fromConfig(ServerConfig config) throws IOException {
+		String logDir = config.getString("log.dir", null);
+		String dir = config.getString("mailbox.dir", logDir == null ? null : new File(logDir, "mailbox").getPath());
+		if (dir == null || !config.getBoolean("mailbox.enabled", true))
+			return null;
+		return open(new File(dir),
+				config.getInt("mailbox.messages", 500),
+				config.getLong("mailbox.bytes", 1024 * 1024),
+				config.getLong("mailbox.totalBytes", 256L * 1024 * 1024),
+				config.getLong("mailbox.ttlMillis", TimeUnit.DAYS.toMillis(7)),
+				config.getLong("mailbox.sweepMillis", TimeUnit.MINUTES.toMillis(1)));
+	}
+
+	private void load() throws IOException {
+		File[] files = dir.listFiles();
+		int loaded = 0;
+		for (File file : files == null ? new File[0] : files) {
+			String fileName = file.getName();
+			if (fileName.endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+			if (!fileName.endsWith(SUFFIX))
+				continue;
+			Box box;
+			try {
+				String name = fromHex(fileName.substring(0, fileName.length() - SUFFIX.length()));
+				box = new Box(name, file);
+				recover(box);
+			} catch (IOException e) {
+				System.out.println("[LOG] Dropping unreadable mailbox " + file + ": " + e.getMessage());
+				file.delete();
+				continue;
+			}
+			if (box.count == 0) {
+				file.delete();
+				continue;
+			}
+			boxes.put(box.name, box);
+			totalBytes.addAndGet(box.bytes);
+			loaded++;
+		}
+		if (loaded > 0)
+			System.out.println("[LOG] " + loaded + " mailboxes hold " + totalBytes.get() + " bytes of messages");
+	}
+
+	/**
+	 * Reads a mailbox's counts from its file, and cuts off a torn tail.
+	 */
+	private void recover(Box box) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(box.file, "rw");
+		try {
+			if (raf.length() < HEADER || raf.readInt() != MAGIC || raf.readInt() != VERSION)
+				throw new IOException("Not a mailbox");
+			long mark = raf.readLong();
+			if (mark < HEADER || mark > raf.length())
+				throw new IOException("Bad mark " + mark);
+			byte[] data = new byte[(int) (raf.length() - mark)];
+			raf.seek(mark);
+			raf.readFully(data);
+
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			int pos = 0;
+			while (pos + RECORD_HEADER <= data.length) {
+				int length = buffer.getInt(pos);
+				if (length < 9 || length > data.length - pos - RECORD_HEADER
+						|| checksum(data, pos + RECORD_HEADER, length) != buffer.getInt(pos + 4))
+					break;
+				if (box.count == 0)
+					box.oldest = buffer.getLong(pos + RECORD_HEADER);
+				box.count++;
+				box.bytes += RECORD_HEADER + length;
+				pos += RECORD_HEADER + length;
+			}
+			if (pos < data.length) {
+				System.out.println("[LOG] Truncated " + (data.length - pos) + " torn bytes from the mailbox of "
+						+ box.name);
+				raf.setLength(mark + pos);
+			}
+			box.onDisk = true;
+			box.mark = mark;
+			box.end = mark + pos;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Leaves a message for recipient.  Never blocks on the disk.
+	 *
+	 * @return false if the mailbox or the store is full, or closed
+	 */
+	public boolean put(String recipient, String sender, String text) {
+		long now = System.currentTimeMillis();
+		byte[] record = encode(now, sender, text);
+		while (!closed) {
+			Box box = box(recipient);
+			synchronized (box) {
+				// Emptied and deleted since it was looked up.
+				if (box.removed)
+					continue;
+				boolean fits = box.count < maxMessages && box.bytes + record.length <= maxBytes;
+				if (fits && totalBytes.addAndGet(record.length) > maxTotalBytes) {
+					totalBytes.addAndGet(-record.length);
+					fits = false;
+				}
+				if (!fits) {
+					// Do not leave behind an empty mailbox made for this.
+					retire(box);
+					return false;
+				}
+				if (box.count == 0)
+					box.oldest = now;
+				box.pending.add(record);
+				box.count++;
+				box.bytes += record.length;
+				if (!box.queued) {
+					box.queued = true;
+					dirty.add(box);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Box box(String name) {
+		Box box = boxes.get(name);
+		if (box != null)
+			return box;
+		Box created = new Box(name, new File(dir, toHex(name) + SUFFIX));
+		box = boxes.putIfAbsent(name, created);
+		return box == null ? created : box;
+	}
+
+	/**
+	 * @return the number of messages waiting for name
+	 */
+	public int waiting(String name) {
+		Box box = boxes.get(name);
+		if (box == null)
+			return 0;
+		synchronized (box) {
+			return box.removed ? 0 : box.count;
+		}
+	}
+
+	/**
+	 * Takes up to max of the messages waiting for name out of its
+	 * mailbox, oldest first, and hands them to receiver on the writer
+	 * thread.  Expired messages are dropped on the way.  Once the
+	 * mailboxes are closed, receiver gets nothing, on this thread.
+	 */
+	public void take(String name, int max, Receiver receiver) {
+		synchronized (requests) {
+			if (!stopped) {
+				requests.add(new Request(name, max, receiver));
+				dirty.add(wake);
+				return;
+			}
+		}
+		receiver.received(Collections.<Message>emptyList());
+	}
+
+	/**
+	 * Throws away everything waiting for name, on the writer thread.
+	 */
+	public void discard(String name) {
+		synchronized (requests) {
+			if (!stopped) {
+				requests.add(new Request(name, 0, null));
+				dirty.add(wake);
+			}
+		}
+	}
+
+	/**
+	 * Answers the requests queued by take and discard.
+	 */
+	private void serve() {
+		while (true) {
+			Request request;
+			synchronized (requests) {
+				request = requests.poll();
+			}
+			if (request == null)
+				return;
+			if (request.receiver == null) {
+				drop(request.name);
+				continue;
+			}
+			try {
+				request.receiver.received(take(request.name, request.max));
+			} catch (RuntimeException e) {
+				System.out.println("[LOG] Cannot deliver the mailbox of " + request.name + ": " + e);
+			}
+		}
+	}
+
+	private List<Message> take(String name, int max) {
+		Box box = boxes.get(name);
+		if (box == null || max <= 0)
+			return Collections.emptyList();
+		synchronized (box) {
+			if (box.removed || box.count == 0)
+				return Collections.emptyList();
+		}
+		long expires = System.currentTimeMillis() - ttlMillis;
+		List<Message> out = new ArrayList<Message>();
+		try {
+			// Only this thread moves the mark and the end, and only it
+			// removes a mailbox that has messages, so the file can be read
+			// outside the monitor.
+			byte[] data = box.end > box.mark ? read(box, box.mark, box.end) : new byte[0];
+			synchronized (box) {
+				int pos = 0;
+				while (pos < data.length && out.size() < max) {
+					int length = RECORD_HEADER + ByteBuffer.wrap(data, pos, 4).getInt();
+					Message message = decode(data, pos + RECORD_HEADER, length - RECORD_HEADER);
+					if (message.timestamp >= expires)
+						out.add(message);
+					remove(box, 1, length);
+					pos += length;
+				}
+				box.mark += pos;
+				int taken = 0;
+				while (box.mark == box.end && taken < box.pending.size() && out.size() < max) {
+					byte[] record = box.pending.get(taken++);
+					Message message = decode(record, RECORD_HEADER, record.length - RECORD_HEADER);
+					if (message.timestamp >= expires)
+						out.add(message);
+					remove(box, 1, record.length);
+				}
+				box.pending.subList(0, taken).clear();
+				box.oldest = Long.MIN_VALUE;
+				retire(box);
+			}
+			settle(box);
+		} catch (IOException e) {
+			System.out.println("[LOG] Cannot read the mailbox of " + name + ": " + e);
+		}
+		return out;
+	}
+
+	private void drop(String name) {
+		Box box = boxes.get(name);
+		if (box == null)
+			return;
+		synchronized (box) {
+			if (box.removed)
+				return;
+			remove(box, box.count, box.bytes);
+			box.pending.clear();
+			retire(box);
+		}
+		try {
+			settle(box);
+		} catch (IOException e) {
+			System.out.println("[LOG] Cannot delete the mailbox of " + name + ": " + e);
+		}
+	}
+
+	/**
+	 * Called holding the box's monitor.
+	 */
+	private void remove(Box box, int messages, long recordBytes) {
+		box.count -= messages;
+		box.bytes -= recordBytes;
+		totalBytes.addAndGet(-recordBytes);
+	}
+
+	/**
+	 * Takes an empty mailbox out of the map, so the next put makes a new
+	 * one.  Called holding the box's monitor; settle deletes its file.
+	 */
+	private void retire(Box box) {
+		if (box.count == 0) {
+			box.removed = true;
+			boxes.remove(box.name, box);
+		}
+	}
+
+	/**
+	 * Stops the writer after it has written everything still in memory.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write() {
+		long nextSweep = System.nanoTime() + sweepNanos;
+		try {
+			while (true) {
+				Box box = dirty.poll(100, TimeUnit.MILLISECONDS);
+				if (box != null) {
+					serve();
+					do {
+						if (box != wake)
+							flush(box);
+					} while ((box = dirty.poll()) != null);
+				} else if (closed) {
+					return;
+				}
+				if (System.nanoTime() - nextSweep >= 0) {
+					sweep();
+					nextSweep = System.nanoTime() + sweepNanos;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Fall through and answer whoever is still waiting.
+		} finally {
+			synchronized (requests) {
+				stopped = true;
+			}
+			serve();
+		}
+	}
+
+	/**
+	 * Appends a mailbox's pending records to its file with one write.
+	 * The records are swapped out under the monitor and written outside
+	 * it.  If that fails they go back in front of anything put since,
+	 * where take still finds them.
+	 */
+	private void flush(Box box) {
+		List<byte[]> records;
+		synchronized (box) {
+			box.queued = false;
+			if (box.removed || box.pending.isEmpty())
+				return;
+			records = box.pending;
+			box.pending = new ArrayList<byte[]>();
+		}
+		int length = 0;
+		for (byte[] record : records)
+			length += record.length;
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (byte[] record : records)
+			buffer.put(record);
+		buffer.flip();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(box.file, "rw");
+			try {
+				if (!box.onDisk) {
+					raf.setLength(0);
+					raf.getChannel().write(header(HEADER), 0);
+					box.onDisk = true;
+					box.mark = box.end = HEADER;
+				}
+				long at = box.end;
+				while (buffer.hasRemaining())
+					at += raf.getChannel().write(buffer, at);
+			} finally {
+				raf.close();
+			}
+			box.end += length;
+		} catch (IOException e) {
+			System.out.println("[LOG] Cannot write the mailbox of " + box.name + ": " + e);
+			synchronized (box) {
+				box.pending.addAll(0, records);
+			}
+		}
+	}
+
+	/**
+	 * Moves every mailbox's mark past its expired messages.
+	 */
+	private void sweep() {
+		long expires = System.currentTimeMillis() - ttlMillis;
+		int expired = 0;
+		for (Box box : boxes.values()) {
+			synchronized (box) {
+				if (box.removed || box.count == 0 || box.oldest >= expires)
+					continue;
+			}
+			try {
+				int n = expire(box, expires);
+				if (n > 0) {
+					expired += n;
+					settle(box);
+				}
+			} catch (IOException e) {
+				System.out.println("[LOG] Cannot sweep the mailbox of " + box.name + ": " + e);
+			}
+		}
+		if (expired > 0)
+			System.out.println("[LOG] Expired " + expired + " undelivered private messages");
+	}
+
+	/**
+	 * Drops the messages at the head of a mailbox sent before expires,
+	 * and notes when the first one left was sent.
+	 *
+	 * @return the number dropped
+	 */
+	private int expire(Box box, long expires) throws IOException {
+		// The file is scanned outside the monitor, as in take.
+		int expired = 0;
+		long mark = box.mark;
+		long oldest = Long.MIN_VALUE;
+		if (box.end > mark) {
+			RandomAccessFile raf = new RandomAccessFile(box.file, "r");
+			try {
+				while (mark < box.end) {
+					raf.seek(mark);
+					int length = RECORD_HEADER + raf.readInt();
+					raf.readInt();
+					long timestamp = raf.readLong();
+					if (timestamp >= expires) {
+						oldest = timestamp;
+						break;
+					}
+					mark += length;
+					expired++;
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		synchronized (box) {
+			remove(box, expired, mark - box.mark);
+			box.mark = mark;
+			while (mark == box.end && !box.pending.isEmpty()) {
+				long timestamp = ByteBuffer.wrap(box.pending.get(0), RECORD_HEADER, 8).getLong();
+				if (timestamp >= expires) {
+					oldest = timestamp;
+					break;
+				}
+				remove(box, 1, box.pending.remove(0).length);
+				expired++;
+			}
+			box.oldest = oldest;
+			retire(box);
+		}
+		return expired;
+	}
+
+	/**
+	 * After messages were taken or expired, on the writer thread:
+	 * deletes the file of a retired mailbox, compacts a mostly delivered
+	 * one, or else records the new mark.
+	 */
+	private void settle(Box box) throws IOException {
+		if (box.removed) {
+			if (box.onDisk && !box.file.delete() && box.file.exists())
+				throw new IOException("Cannot delete " + box.file);
+			return;
+		}
+		if (!box.onDisk)
+			return;
+		long delivered = box.mark - HEADER;
+		if (delivered >= COMPACT_BYTES && delivered > (box.end - HEADER) / 2) {
+			compact(box);
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(box.file, "rw");
+		try {
+			raf.getChannel().write(header(box.mark), 0);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Copies what is left after the mark to a new file and puts it in
+	 * place of the old one.
+	 */
+	private void compact(Box box) throws IOException {
+		byte[] live = read(box, box.mark, box.end);
+		File tmp = new File(dir, box.file.getName() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			raf.getChannel().write(header(HEADER), 0);
+			ByteBuffer buffer = ByteBuffer.wrap(live);
+			long at = HEADER;
+			while (buffer.hasRemaining())
+				at += raf.getChannel().write(buffer, at);
+		} finally {
+			raf.close();
+		}
+		if (!tmp.renameTo(box.file)) {
+			tmp.delete();
+			throw new IOException("Cannot replace " + box.file);
+		}
+		box.mark = HEADER;
+		box.end = HEADER + live.length;
+	}
+
+	private static ByteBuffer header(long mark) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putInt(VERSION).putLong(mark);
+		header.flip();
+		return header;
+	}
+
+	private static byte[] read(Box box, long from, long to) throws IOException {
+		byte[] data = new byte[(int) (to - from)];
+		RandomAccessFile raf = new RandomAccessFile(box.file, "r");
+		try {
+			if (raf.length() < to)
+				throw new EOFException(box.file + " is shorter than expected");
+			raf.seek(from);
+			raf.readFully(data);
+		} finally {
+			raf.close();
+		}
+		return data;
+	}
+
+	private byte[] encode(long timestamp, String sender, String text) {
+		byte[] s = sender.getBytes(StandardCharsets.UTF_8);
+		byte[] t = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(RECORD_HEADER + 8 + 5 + s.length + t.length);
+		body.position(RECORD_HEADER);
+		body.putLong(timestamp);
+		int v = s.length;
+		while ((v & ~0x7F) != 0) {
+			body.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		body.put((byte) v);
+		body.put(s).put(t);
+		int length = body.position() - RECORD_HEADER;
+		byte[] record = new byte[RECORD_HEADER + length];
+		System.arraycopy(body.array(), 0, record, 0, record.length);
+		ByteBuffer.wrap(record).putInt(length).putInt(checksum(record, RECORD_HEADER, length));
+		return record;
+	}
+
+	private static Message decode(byte[] data, int pos, int length) {
+		ByteBuffer body = ByteBuffer.wrap(data, pos, length);
+		long timestamp = body.getLong();
+		int senderLength = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = body.get();
+			senderLength |= (b & 0x7F) << shift;
+			if (b >= 0)
+				break;
+		}
+		String sender = new String(data, body.position(), senderLength, StandardCharsets.UTF_8);
+		int textAt = body.position() + senderLength;
+		String text = new String(data, textAt, pos + length - textAt, StandardCharsets.UTF_8);
+		return new Message(timestamp, sender, text);
+	}
+
+	private int checksum(byte[] data, int pos, int length) {
+		synchronized (crc) {
+			crc.reset();
+			crc.update(data, pos, length);
+			return (int) crc.getValue();
+		}
+	}
+
+	private static String toHex(String name) {
+		StringBuilder s = new StringBuilder();
+		for (byte b : name.getBytes(StandardCharsets.UTF_8))
+			s.append(String.format("%02x", b & 0xFF));
+		return s.toString();
+	}
+
+	private static String fromHex(String hex) throws IOException {
+		if (hex.isEmpty() || hex.length() % 2 != 0 || !hex.matches("[0-9a-f]+"))
+			throw new IOException("Not a mailbox name: " + hex);
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,270 @@
+package store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import chatApp.ServerConfig;
+
+/**
+ * The durable chat history: an append-only log of broadcast messages
+ * kept in a directory of fixed-size, memory-mapped segment files (see
+ * LogSegment).  Every message gets the next offset, starting at 0.
+ *
+ * Appending never blocks the caller.  append only puts the message on
+ * a bounded queue; a single writer thread drains the queue in batches,
+ * copies each batch into the mapped segment and then syncs according
+ * to the FsyncPolicy.  If the writer falls so far behind that the queue
+ * is full, new messages are counted as dropped rather than making the
+ * broadcast wait.
+ *
+ * On open the last segment is checked record by record and a torn tail
+ * left by a crash is cut off; see LogSegment.recover.
+ *
+ * The servers keep a log when -Dchat.log.dir is set.  Further settings:
+ * -Dchat.log.segmentBytes (default 64 MB), -Dchat.log.fsync (see
+ * FsyncPolicy), -Dchat.log.fsyncMillis (default 1000) and
+ * -Dchat.log.queue (default 65536 messages).
+ */
+public final class MessageLog {
+	private static final int MIN_SEGMENT_BYTES = 1024 * 1024;
+
+	private static final class Entry {
+		final long timestamp;
+		final String room;
+		final String sender;
+		final String text;
+
+		Entry(long timestamp, String room, String sender, String text) {
+			this.timestamp = timestamp;
+			this.room = room;
+			this.sender = sender;
+			this.text = text;
+		}
+	}
+
+	private final File dir;
+	private final int segmentBytes;
+	private final FsyncPolicy policy;
+	private final long fsyncIntervalNanos;
+	private final CopyOnWriteArrayList<LogSegment> segments = new CopyOnWriteArrayList<LogSegment>();
+	private final BlockingQueue<Entry> pending;
+	private final LongAdder dropped = new LongAdder();
+	private final Thread writer;
+	private volatile boolean closed;
+	private long lastSync = System.nanoTime();
+	private boolean dirty;
+
+	private MessageLog(File dir, int segmentBytes, FsyncPolicy policy, long fsyncIntervalMillis, int queueCapacity) {
+		this.dir = dir;
+		this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+		this.policy = policy;
+		this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+		this.pending = new ArrayBlockingQueue<Entry>(queueCapacity);
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "chat-log");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Opens the log in dir, creating it if needed, recovers the last
+	 * segment and starts the writer thread.
+	 */
+	public static MessageLog open(File dir, int segmentBytes, FsyncPolicy policy, long fsyncIntervalMillis, int queueCapacity)
+			throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create log directory " + dir);
+
+		MessageLog log = new MessageLog(dir, segmentBytes, policy, fsyncIntervalMillis, queueCapacity);
+		log.load();
+		log.writer.start();
+		return log;
+	}
+
+	/**
+	 * Opens the log configured with the chat.log.* settings.
+	 *
+	 * @return the log, or null if chat.log.dir is not set
+	 */
+	public static MessageLog fromConfig(ServerConfig config) throws IOException {
+		String dir = config.getString("log.dir", null);
+		if (dir == null)
+			return null;
+		return open(new File(dir),
+				config.getInt("log.segmentBytes", 64 * 1024 * 1024),
+				FsyncPolicy.fromConfig(config),
+				config.getLong("log.fsyncMillis", 1000),
+				config.getInt("log.queue", 65536));
+	}
+
+	private void load() throws IOException {
+		String[] names = dir.list();
+		List<Long> bases = new ArrayList<Long>();
+		for (String name : names == null ? new String[0] : names) {
+			if (name.endsWith(".log"))
+				bases.add(Long.parseLong(name.substring(0, name.length() - 4)));
+		}
+		Long[] sorted = bases.toArray(new Long[0]);
+		Arrays.sort(sorted);
+
+		if (sorted.length == 0) {
+			segments.add(LogSegment.create(dir, 0, segmentBytes));
+			return;
+		}
+
+		// Every segment but the last was sealed before the next began.
+		for (int i = 0; i < sorted.length - 1; i++)
+			segments.add(LogSegment.openSealed(dir, sorted[i], sorted[i + 1] - sorted[i]));
+
+		LogSegment last = LogSegment.recover(dir, sorted[sorted.length - 1], segmentBytes);
+		if (last.getTornBytes() > 0)
+			System.out.println("[LOG] Truncated a torn record at offset " + last.getNextOffset()
+					+ " (" + last.getTornBytes() + " bytes wiped)");
+		segments.add(last);
+	}
+
+	/**
+	 * Queues a message to be written.  Never blocks.
+	 *
+	 * @return false if the queue was full and the message was dropped
+	 */
+	public boolean append(String room, String sender, String text) {
+		if (closed || !pending.offer(new Entry(System.currentTimeMillis(), room, sender, text))) {
+			dropped.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the offset of the oldest message in the log
+	 */
+	public long startOffset() {
+		return segments.get(0).getBaseOffset();
+	}
+
+	/**
+	 * @return the offset the next written message will get; everything
+	 *         below it can be read
+	 */
+	public long nextOffset() {
+		return segments.get(segments.size() - 1).getNextOffset();
+	}
+
+	/**
+	 * @return up to max messages starting at fromOffset, oldest first
+	 */
+	public List<LogRecord> read(long fromOffset, int max) {
+		List<LogRecord> out = new ArrayList<LogRecord>(Math.min(max, 1024));
+		for (LogSegment segment : segments) {
+			if (out.size() >= max)
+				break;
+			if (segment.getNextOffset() <= fromOffset)
+				continue;
+			segment.read(Math.max(fromOffset, segment.getBaseOffset()), max - out.size(), out);
+		}
+		return out;
+	}
+
+	/**
+	 * @return the number of messages dropped because the writer could
+	 *         not keep up or could not write them
+	 */
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Writes whatever is still queued, forces it to disk and closes the
+	 * segment files.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			writer.join();
+			for (LogSegment segment : segments)
+				segment.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+
+	private void write() {
+		List<Entry> batch = new ArrayList<Entry>();
+		while (true) {
+			int written = 0;
+			try {
+				Entry first = pending.poll(100, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					pending.drainTo(batch);
+					for (Entry entry : batch) {
+						write(entry);
+						written++;
+					}
+					batch.clear();
+					dirty = true;
+				} else if (closed) {
+					sync(true);
+					return;
+				}
+				sync(false);
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				// The rest of the batch is lost; count it like a full queue.
+				int lost = batch.size() - written;
+				dropped.add(lost);
+				System.out.println("[LOG] " + e + "; dropped " + lost + " messages");
+				batch.clear();
+				if (written > 0)
+					dirty = true;
+			}
+		}
+	}
+
+	private void write(Entry entry) throws IOException {
+		byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+		byte[] sender = entry.sender.getBytes(StandardCharsets.UTF_8);
+		byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+		LogSegment active = segments.get(segments.size() - 1);
+		if (active.append(entry.timestamp, room, sender, text))
+			return;
+
+		// The segment is full: seal it and start the next one.
+		active.force();
+		LogSegment next = LogSegment.create(dir, active.getNextOffset(), segmentBytes);
+		segments.add(next);
+		if (!next.append(entry.timestamp, room, sender, text)) {
+			dropped.increment();
+			System.out.println("[LOG] Message from " + entry.sender + " is too large for a segment");
+		}
+	}
+
+	private void sync(boolean force) {
+		if (!dirty)
+			return;
+		long now = System.nanoTime();
+		if (force || policy == FsyncPolicy.BATCH
+				|| (policy == FsyncPolicy.INTERVAL && now - lastSync >= fsyncIntervalNanos)) {
+			segments.get(segments.size() - 1).force();
+			lastSync = now;
+			dirty = false;
+		}
+	}
+}
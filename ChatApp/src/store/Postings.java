@@ -0,0 +1,296 @@
+package store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The list of log offsets a term occurs at, compressed.  Offsets are
+ * kept in ascending order and cut into blocks of BLOCK; within a block
+ * each offset is stored as the varint of its distance from the one
+ * before, which for a term in every hundredth message is one byte.
+ *
+ *     varint count
+ *     varint blocks
+ *     varint first offset
+ *     per block after the first:
+ *                int  its first offset, less the list's first offset
+ *                int  where the block starts, counted from the end of
+ *                     the table
+ *     the blocks: varint deltas of every offset but the first
+ *
+ * The table of blocks up front lets a reader jump to the block that
+ * holds a given offset, so a search can walk a list from its newest
+ * end, or skip most of a long list to meet a short one, without
+ * decoding what it passes over.  Its entries have a fixed size, so the
+ * table itself is searched where it lies rather than decoded.  An int
+ * is enough for them: a segment stays below 2 GB and every message in
+ * it adds to a list, so no list spans 2^31 offsets.
+ */
+final class Postings {
+	static final int BLOCK = 128;
+
+	private Postings() {
+	}
+
+	/**
+	 * A list about to be written into a segment.
+	 */
+	interface Source {
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Builds one list.  Offsets must be added in ascending order.
+	 */
+	static final class Writer implements Source {
+		private byte[] data = new byte[16];
+		private int length;
+		private long[] firsts = new long[1];
+		private int[] starts = new int[1];
+		private int blocks;
+		private int count;
+		private long last = -1;
+
+		void add(long offset) {
+			if (offset <= last)
+				throw new IllegalArgumentException("Offsets must ascend: " + offset + " after " + last);
+			if (count % BLOCK == 0) {
+				if (blocks == firsts.length) {
+					firsts = Arrays.copyOf(firsts, blocks * 2);
+					starts = Arrays.copyOf(starts, blocks * 2);
+				}
+				firsts[blocks] = offset;
+				starts[blocks++] = length;
+			} else {
+				putVarLong(offset - last);
+			}
+			last = offset;
+			count++;
+		}
+
+		int count() {
+			return count;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			writeVarLong(out, count);
+			writeVarLong(out, blocks);
+			writeVarLong(out, firsts[0]);
+			for (int i = 1; i < blocks; i++) {
+				writeInt(out, (int) (firsts[i] - firsts[0]));
+				writeInt(out, starts[i]);
+			}
+			out.write(data, 0, length);
+		}
+
+		private void putVarLong(long v) {
+			if (length + 10 > data.length)
+				data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+			while ((v & ~0x7FL) != 0) {
+				data[length++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			data[length++] = (byte) v;
+		}
+	}
+
+	/**
+	 * Lists read from older segments, each wholly below the next, written
+	 * as one.  Nothing is gathered on the heap: the inputs are decoded a
+	 * block at a time, once to write the table and once more for the
+	 * blocks.
+	 */
+	static final class Concatenation implements Source {
+		private final List<Reader> lists;
+		private final long[] block;
+
+		/**
+		 * @param block room for BLOCK offsets, used while writing
+		 */
+		Concatenation(List<Reader> lists, long[] block) {
+			this.lists = lists;
+			this.block = block;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			int count = 0;
+			for (Reader list : lists)
+				count += list.count();
+			writeVarLong(out, count);
+			writeVarLong(out, (count + BLOCK - 1) / BLOCK);
+			walk(out, true);
+			walk(out, false);
+		}
+
+		/**
+		 * Goes through every offset, writing either the table entry of
+		 * every block or the deltas within the blocks.
+		 */
+		private void walk(OutputStream out, boolean table) throws IOException {
+			int n = 0;
+			int bytes = 0;
+			long first = 0;
+			long last = -1;
+			for (Reader list : lists) {
+				for (int b = 0; b < list.blocks(); b++) {
+					int size = list.block(b, block);
+					for (int i = 0; i < size; i++, n++) {
+						long offset = block[i];
+						if (n == 0) {
+							if (table)
+								writeVarLong(out, offset);
+							first = offset;
+						} else if (n % BLOCK == 0) {
+							if (table) {
+								writeInt(out, (int) (offset - first));
+								writeInt(out, bytes);
+							}
+						} else if (table) {
+							bytes += varLongSize(offset - last);
+						} else {
+							writeVarLong(out, offset - last);
+						}
+						last = offset;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads one list out of a segment's mapped file.  Not thread-safe;
+	 * every search makes its own.
+	 */
+	static final class Reader {
+		private static final int ENTRY = 8;
+
+		private final ByteBuffer buffer;
+		private final int count;
+		private final int blocks;
+		private final long base;
+		private final int table;
+		private final int data;
+		private long[] block;
+		private int current = -1;
+		private int currentSize;
+
+		/**
+		 * @param position where the list starts in buffer
+		 */
+		Reader(ByteBuffer buffer, int position) {
+			this.buffer = buffer;
+			int[] pos = { position };
+			this.count = (int) getVarLong(buffer, pos);
+			this.blocks = (int) getVarLong(buffer, pos);
+			this.base = getVarLong(buffer, pos);
+			this.table = pos[0];
+			this.data = table + (blocks - 1) * ENTRY;
+		}
+
+		int count() {
+			return count;
+		}
+
+		int blocks() {
+			return blocks;
+		}
+
+		private long first(int index) {
+			return index == 0 ? base : base + buffer.getInt(table + (index - 1) * ENTRY);
+		}
+
+		private int start(int index) {
+			return index == 0 ? data : data + buffer.getInt(table + (index - 1) * ENTRY + 4);
+		}
+
+		/**
+		 * Decodes one block.
+		 *
+		 * @return the number of offsets put in out, at most BLOCK
+		 */
+		int block(int index, long[] out) {
+			int n = Math.min(BLOCK, count - index * BLOCK);
+			int[] pos = { start(index) };
+			long offset = first(index);
+			out[0] = offset;
+			for (int i = 1; i < n; i++) {
+				offset += getVarLong(buffer, pos);
+				out[i] = offset;
+			}
+			return n;
+		}
+
+		/**
+		 * @return the largest offset in the list below before, or -1 if
+		 *         there is none
+		 */
+		long previous(long before) {
+			// The last block starting below before holds the answer.
+			int lo = 0;
+			int hi = blocks - 1;
+			int found = -1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (first(mid) < before) {
+					found = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			if (found < 0)
+				return -1;
+			if (found != current) {
+				if (block == null)
+					block = new long[BLOCK];
+				currentSize = block(found, block);
+				current = found;
+			}
+			int i = Arrays.binarySearch(block, 0, currentSize, before);
+			// Not found gives -(insertion point) - 1; the entry before the
+			// insertion point is below before, and the block's first is.
+			return block[i >= 0 ? i - 1 : -i - 2];
+		}
+	}
+
+	static void writeVarLong(OutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	static int varLongSize(long v) {
+		int size = 1;
+		while ((v & ~0x7FL) != 0) {
+			v >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static void writeInt(OutputStream out, int v) throws IOException {
+		out.write(v >>> 24);
+		out.write(v >>> 16);
+		out.write(v >>> 8);
+		out.write(v);
+	}
+
+	/**
+	 * Reads a varint at pos[0] of the buffer, without moving its
+	 * position, and advances pos[0] past it.
+	 */
+	static long getVarLong(ByteBuffer buffer, int[] pos) {
+		long v = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = buffer.get(pos[0]++);
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return v;
+		}
+	}
+}
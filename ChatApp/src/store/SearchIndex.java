@@ -0,0 +1,573 @@
+package store;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import chatApp.ServerConfig;
+
+/**
+ * Full-text search over the MessageLog: an inverted index from terms to
+ * the log offsets of the messages that have them.  The terms of a
+ * message are the words of its text, lowercased ("w:hello"), its
+ * sender ("u:alice") and its room, or for a private message the
+ * conversation of its two names ("r:lobby", "r:@alice bob").  Times are
+ * kept as a sample of (offset, timestamp) pairs, which turns a date
+ * into a range of offsets.
+ *
+ * A background thread follows the log and collects the postings of new
+ * messages in memory.  Every chat.search.flushMessages messages (default
+ * 16384), or chat.search.flushMillis after the first one (default 1000),
+ * it writes them out as an IndexSegment of level 0.  Whenever the
+ * newest chat.search.mergeFactor segments (default 8) share a level
+ * they are merged into one of the next level, so a log of N messages
+ * has O(log N) segments, none larger than chat.search.maxSegmentBytes
+ * (default 1 GB).  Segments are memory-mapped and only their headers
+ * are on the heap.
+ *
+ * A search walks the postings of its terms from the newest offset
+ * down, in every segment from the newest, stepping each list to the
+ * other's offset until they agree, and reads the matching messages
+ * back from the log.  Messages the indexer has not flushed yet are
+ * scanned in the log directly, so results are never behind the chat.
+ * Pages are chat.search.pageSize results (default 20), newest first;
+ * the next page starts below the last result, so paging costs the same
+ * however deep it goes.
+ *
+ * The index lives in chat.search.dir (default the "search" directory of
+ * the log) and is kept whenever there is a log, unless
+ * chat.search.enabled is false.  A restart carries on from the last
+ * segment written; a segment that no longer matches the log is
+ * deleted and rebuilt.
+ */
+public final class SearchIndex {
+	private static final int READ_CHUNK = 4096;
+	private static final int MIN_WORD = 2;
+	private static final int MAX_WORD = 64;
+	private static final int MAX_TERMS = 8;
+	// Rooms were not logged at first; those messages were all in the
+	// lobby (server.Room.LOBBY).
+	private static final String OLD_ROOM = "lobby";
+
+	/**
+	 * One page of results.
+	 */
+	public static final class Page {
+		private final List<LogRecord> results;
+		private final long next;
+
+		Page(List<LogRecord> results, long next) {
+			this.results = results;
+			this.next = next;
+		}
+
+		/**
+		 * @return the matching messages, newest first
+		 */
+		public List<LogRecord> getResults() {
+			return results;
+		}
+
+		/**
+		 * @return the page: value that continues the search, or -1 if
+		 *         this was the last page
+		 */
+		public long getNext() {
+			return next;
+		}
+	}
+
+	/**
+	 * What a client searches for:
+	 *
+	 *     words...       messages with every one of the words
+	 *     from:name      sent by name
+	 *     in:room        in the room
+	 *     in:@name       between the searcher and name
+	 *     since:date     sent on or after the date, such as 2024-05-31 or
+	 *                    2024-05-31T18:30, in the server's time zone
+	 *     until:date     sent before the date
+	 *     page:n         the page that a previous search said comes next
+	 *
+	 * At least one word, from: or in: is needed.  Private messages are
+	 * only found if the searcher sent or received them, and only from
+	 * after the searcher claimed the name, which may have been someone
+	 * else's before.
+	 */
+	public static final class Query {
+		private final String name;
+		private final long claimed;
+		private final List<String> terms;
+		private final long since;
+		private final long until;
+		private final long before;
+
+		private Query(String name, long claimed, List<String> terms, long since, long until, long before) {
+			this.name = name;
+			this.claimed = claimed;
+			this.terms = terms;
+			this.since = since;
+			this.until = until;
+			this.before = before;
+		}
+
+		/**
+		 * @param name who is searching, which decides the private
+		 *        messages they may see
+		 * @param claimed when the searcher claimed the name, in
+		 *        milliseconds since the epoch; private messages from
+		 *        before then were someone else's
+		 * @throws IllegalArgumentException with a message for the client
+		 *         if the query cannot be understood
+		 */
+		public static Query parse(String name, long claimed, String text) {
+			Set<String> terms = new LinkedHashSet<String>();
+			long since = Long.MIN_VALUE;
+			long until = Long.MAX_VALUE;
+			long before = Long.MAX_VALUE;
+			List<String> words = new ArrayList<String>();
+			for (String token : text.trim().split("\\s+")) {
+				if (token.startsWith("from:") && token.length() > 5) {
+					terms.add("u:" + token.substring(5));
+				} else if (token.startsWith("in:@") && token.length() > 4) {
+					terms.add("r:" + LogRecord.conversation(name, token.substring(4)));
+				} else if (token.startsWith("in:") && token.length() > 3) {
+					terms.add("r:" + (token.charAt(3) == '#' ? token.substring(4) : token.substring(3)));
+				} else if (token.startsWith("since:")) {
+					since = parseTime(token.substring(6));
+				} else if (token.startsWith("until:")) {
+					until = parseTime(token.substring(6));
+				} else if (token.startsWith("page:")) {
+					try {
+						before = Long.parseLong(token.substring(5));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("page: takes the number the last search gave.");
+					}
+				} else {
+					words.clear();
+					words(token, words);
+					for (String word : words)
+						terms.add("w:" + word);
+				}
+			}
+			if (terms.isEmpty())
+				throw new IllegalArgumentException("Search for at least one word, from:name or in:room.");
+			if (terms.size() > MAX_TERMS)
+				throw new IllegalArgumentException("Search for at most " + MAX_TERMS + " words and filters.");
+			return new Query(name, claimed, new ArrayList<String>(terms), since, until, before);
+		}
+
+		private static long parseTime(String value) {
+			try {
+				if (value.indexOf('T') >= 0)
+					return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+				return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("Dates look like 2024-05-31 or 2024-05-31T18:30.");
+			}
+		}
+
+		/**
+		 * The checks the index cannot make: who may see the message and
+		 * exactly when it was sent.
+		 */
+		boolean accepts(LogRecord record) {
+			if (record.isPrivate() && (!record.isVisibleTo(name) || record.getTimestamp() <= claimed))
+				return false;
+			return record.getTimestamp() >= since && record.getTimestamp() < until;
+		}
+	}
+
+	/**
+	 * The segments and how far they reach, swapped as one so a search
+	 * never sees a message in both a segment and the unindexed tail.
+	 */
+	private static final class State {
+		final List<IndexSegment> segments;
+		final long indexed;
+
+		State(List<IndexSegment> segments, long indexed) {
+			this.segments = segments;
+			this.indexed = indexed;
+		}
+	}
+
+	private final MessageLog log;
+	private final File dir;
+	private final int flushMessages;
+	private final long flushNanos;
+	private final int mergeFactor;
+	private final long maxSegmentBytes;
+	private final int pageSize;
+	private final Thread indexer;
+	private volatile State state;
+	private volatile boolean closed;
+
+	// The messages not yet written to a segment; indexer thread only.
+	private HashMap<String, Postings.Writer> buffer = new HashMap<String, Postings.Writer>();
+	private long bufferBase;
+	private long bufferNext;
+	private long bufferStarted;
+	private long[] times = new long[64];
+	private int timeCount;
+
+	private SearchIndex(MessageLog log, File dir, int flushMessages, long flushMillis, int mergeFactor,
+			long maxSegmentBytes, int pageSize) {
+		this.log = log;
+		this.dir = dir;
+		this.flushMessages = Math.max(1, flushMessages);
+		this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+		this.mergeFactor = Math.max(2, mergeFactor);
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.pageSize = Math.max(1, pageSize);
+		this.indexer = new Thread(new Runnable() {
+			public void run() {
+				index();
+			}
+		}, "chat-search");
+		indexer.setDaemon(true);
+	}
+
+	/**
+	 * Opens the index of log in dir, creating it if needed, and starts
+	 * indexing whatever the log holds beyond it.
+	 */
+	public static SearchIndex open(MessageLog log, File dir, int flushMessages, long flushMillis, int mergeFactor,
+			long maxSegmentBytes, int pageSize) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create search index directory " + dir);
+
+		SearchIndex index = new SearchIndex(log, dir, flushMessages, flushMillis, mergeFactor, maxSegmentBytes, pageSize);
+		index.load();
+		index.indexer.start();
+		return index;
+	}
+
+	/**
+	 * Opens the index configured with the chat.search.* settings.
+	 *
+	 * @return the index, or null if there is no log or search is off
+	 */
+	public static SearchIndex fromConfig(ServerConfig config, MessageLog log) throws IOException {
+		if (log == null || !config.getBoolean("search.enabled", true))
+			return null;
+		String dir = config.getString("search.dir", new File(config.getString("log.dir", "."), "search").getPath());
+		return open(log, new File(dir),
+				config.getInt("search.flushMessages", 16384),
+				config.getLong("search.flushMillis", 1000),
+				config.getInt("search.mergeFactor", 8),
+				config.getLong("search.maxSegmentBytes", 1L << 30),
+				config.getInt("search.pageSize", 20));
+	}
+
+	private void load() throws IOException {
+		List<IndexSegment> found = new ArrayList<IndexSegment>();
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			if (file.getName().endsWith(".tmp")) {
+				file.delete();
+			} else if (file.getName().endsWith(".idx")) {
+				try {
+					found.add(IndexSegment.open(file));
+				} catch (IOException e) {
+					System.out.println("[LOG] Dropping unreadable search segment " + file + ": " + e.getMessage());
+					file.delete();
+				}
+			}
+		}
+		// Oldest first, and of segments starting together the widest,
+		// which a crash during a merge leaves next to its inputs.
+		Collections.sort(found, new Comparator<IndexSegment>() {
+			public int compare(IndexSegment a, IndexSegment b) {
+				int c = Long.compare(a.getBaseOffset(), b.getBaseOffset());
+				return c != 0 ? c : Long.compare(b.getNextOffset(), a.getNextOffset());
+			}
+		});
+
+		List<IndexSegment> segments = new ArrayList<IndexSegment>();
+		long next = log.startOffset();
+		for (IndexSegment segment : found) {
+			if (segment.getBaseOffset() == next && segment.getNextOffset() <= log.nextOffset()) {
+				segments.add(segment);
+				next = segment.getNextOffset();
+			} else {
+				// Merged into a neighbour, or left from a log that has
+				// since lost its tail.
+				segment.delete();
+			}
+		}
+		bufferBase = bufferNext = next;
+		state = new State(Collections.unmodifiableList(segments), next);
+		if (!segments.isEmpty())
+			System.out.println("[LOG] Search index covers " + next + " messages in " + segments.size() + " segments");
+	}
+
+	/**
+	 * @return the offset below which every message is in a segment
+	 */
+	public long indexedOffset() {
+		return state.indexed;
+	}
+
+	/**
+	 * @return the number of segments
+	 */
+	public int segmentCount() {
+		return state.segments.size();
+	}
+
+	/**
+	 * Runs a query.
+	 */
+	public Page search(Query query) {
+		State current = state;
+		long before = Math.min(query.before, log.nextOffset());
+		List<LogRecord> out = new ArrayList<LogRecord>(pageSize + 1);
+
+		if (before > current.indexed)
+			scanTail(query, current.indexed, before, out);
+
+		List<IndexSegment> segments = current.segments;
+		for (int i = segments.size() - 1; i >= 0 && out.size() <= pageSize; i--) {
+			IndexSegment segment = segments.get(i);
+			if (segment.getBaseOffset() >= before)
+				continue;
+			searchSegment(query, segment, before, out);
+			// Older segments hold only older messages.
+			if (query.since != Long.MIN_VALUE && segment.lowerBound(query.since) > segment.getBaseOffset())
+				break;
+		}
+
+		if (out.size() <= pageSize)
+			return new Page(out, -1);
+		out.remove(pageSize);
+		return new Page(out, out.get(pageSize - 1).getOffset());
+	}
+
+	/**
+	 * Matches the messages from from to before one by one, keeping the
+	 * newest pageSize + 1.
+	 */
+	private void scanTail(Query query, long from, long before, List<LogRecord> out) {
+		ArrayDeque<LogRecord> newest = new ArrayDeque<LogRecord>();
+		Set<String> terms = new HashSet<String>();
+		List<String> words = new ArrayList<String>();
+		while (from < before) {
+			List<LogRecord> records = log.read(from, (int) Math.min(READ_CHUNK, before - from));
+			if (records.isEmpty())
+				break;
+			for (LogRecord record : records) {
+				terms.clear();
+				terms(record, terms, words);
+				if (terms.containsAll(query.terms) && query.accepts(record)) {
+					newest.add(record);
+					if (newest.size() > pageSize + 1)
+						newest.poll();
+				}
+			}
+			from = records.get(records.size() - 1).getOffset() + 1;
+		}
+		while (!newest.isEmpty())
+			out.add(newest.pollLast());
+	}
+
+	private void searchSegment(Query query, IndexSegment segment, long before, List<LogRecord> out) {
+		Postings.Reader[] lists = new Postings.Reader[query.terms.size()];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = segment.postings(query.terms.get(i));
+			if (lists[i] == null)
+				return;
+		}
+		// Led by the shortest list, the others mostly skip.
+		Arrays.sort(lists, new Comparator<Postings.Reader>() {
+			public int compare(Postings.Reader a, Postings.Reader b) {
+				return Integer.compare(a.count(), b.count());
+			}
+		});
+
+		long upper = Math.min(before, segment.getNextOffset());
+		long lower = segment.getBaseOffset();
+		if (query.until != Long.MAX_VALUE)
+			upper = Math.min(upper, segment.upperBound(query.until));
+		if (query.since != Long.MIN_VALUE)
+			lower = segment.lowerBound(query.since);
+
+		long x = lists[0].previous(upper);
+		while (x >= lower) {
+			boolean all = true;
+			for (int i = 1; i < lists.length; i++) {
+				long y = lists[i].previous(x + 1);
+				if (y != x) {
+					all = false;
+					x = y < 0 ? -1 : lists[0].previous(y + 1);
+					break;
+				}
+			}
+			if (!all)
+				continue;
+
+			List<LogRecord> record = log.read(x, 1);
+			if (!record.isEmpty() && query.accepts(record.get(0))) {
+				out.add(record.get(0));
+				if (out.size() > pageSize)
+					return;
+			}
+			x = lists[0].previous(x);
+		}
+	}
+
+	/**
+	 * Adds the terms of a message to terms.
+	 */
+	static void terms(LogRecord record, Set<String> terms, List<String> words) {
+		words.clear();
+		words(record.getText(), words);
+		for (String word : words)
+			terms.add("w:" + word);
+		terms.add("u:" + record.getSender());
+		terms.add("r:" + (record.getRoom().isEmpty() ? OLD_ROOM : record.getRoom()));
+	}
+
+	/**
+	 * Splits text into lowercase words: runs of letters and digits from
+	 * MIN_WORD to MAX_WORD characters long.
+	 */
+	static void words(String text, List<String> out) {
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (inWord && start < 0) {
+				start = i;
+			} else if (!inWord && start >= 0) {
+				int length = i - start;
+				if (length >= MIN_WORD && length <= MAX_WORD)
+					out.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+	}
+
+	private void index() {
+		Set<String> terms = new HashSet<String>();
+		List<String> words = new ArrayList<String>();
+		while (!closed) {
+			try {
+				List<LogRecord> records = log.read(bufferNext, READ_CHUNK);
+				for (LogRecord record : records) {
+					terms.clear();
+					terms(record, terms, words);
+					add(record, terms);
+				}
+				if (bufferNext - bufferBase >= flushMessages
+						|| (bufferNext > bufferBase && System.nanoTime() - bufferStarted >= flushNanos)) {
+					flush();
+					merge();
+				} else if (records.isEmpty()) {
+					Thread.sleep(100);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				System.out.println("[LOG] Search index: " + e);
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void add(LogRecord record, Set<String> terms) {
+		long offset = record.getOffset();
+		if (bufferNext == bufferBase)
+			bufferStarted = System.nanoTime();
+		if ((offset - bufferBase) % IndexSegment.TIME_INTERVAL == 0) {
+			if (timeCount * 2 == times.length)
+				times = Arrays.copyOf(times, times.length * 2);
+			times[timeCount * 2] = offset;
+			times[timeCount * 2 + 1] = record.getTimestamp();
+			timeCount++;
+		}
+		for (String term : terms) {
+			Postings.Writer postings = buffer.get(term);
+			if (postings == null) {
+				postings = new Postings.Writer();
+				buffer.put(term, postings);
+			}
+			postings.add(offset);
+		}
+		bufferNext = offset + 1;
+	}
+
+	private void flush() throws IOException {
+		TreeMap<String, Postings.Writer> sorted = new TreeMap<String, Postings.Writer>(buffer);
+		IndexSegment segment = IndexSegment.write(dir, 0, bufferBase, bufferNext, sorted.entrySet().iterator(),
+				times, timeCount);
+
+		List<IndexSegment> segments = new ArrayList<IndexSegment>(state.segments);
+		segments.add(segment);
+		state = new State(Collections.unmodifiableList(segments), bufferNext);
+		buffer = new HashMap<String, Postings.Writer>();
+		bufferBase = bufferNext;
+		timeCount = 0;
+	}
+
+	/**
+	 * Merges the newest segments for as long as mergeFactor of them
+	 * share a level.
+	 */
+	private void merge() throws IOException {
+		while (!closed) {
+			List<IndexSegment> segments = state.segments;
+			int n = segments.size();
+			if (n < mergeFactor)
+				return;
+			int level = segments.get(n - 1).getLevel();
+			int run = 0;
+			long bytes = 0;
+			while (run < mergeFactor && segments.get(n - 1 - run).getLevel() == level) {
+				bytes += segments.get(n - 1 - run).size();
+				run++;
+			}
+			if (run < mergeFactor || bytes > maxSegmentBytes)
+				return;
+
+			List<IndexSegment> inputs = segments.subList(n - run, n);
+			IndexSegment merged = IndexSegment.merge(dir, inputs);
+			List<IndexSegment> next = new ArrayList<IndexSegment>(segments.subList(0, n - run));
+			next.add(merged);
+			state = new State(Collections.unmodifiableList(next), state.indexed);
+			for (IndexSegment input : inputs)
+				input.delete();
+		}
+	}
+
+	/**
+	 * Stops indexing.  What was not written to a segment yet is indexed
+	 * again from the log on the next start.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			indexer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}